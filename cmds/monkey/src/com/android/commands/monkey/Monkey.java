@@ -235,6 +235,9 @@ public class Monkey {
     /** filenames of the script (if any) */
     private ArrayList<String> mScriptFileNames = new ArrayList<String>();
 
+    /** a filename to compile the script into, instead of running it (if any) */
+    private String mCompiledScriptFileName = null;
+
     /** a TCP port to listen on for remote commands. */
     private int mServerPort = -1;
 
@@ -599,6 +602,10 @@ public class Monkey {
             return -1;
         }
 
+        if (mCompiledScriptFileName != null) {
+            return compileScript();
+        }
+
         if (!loadPackageLists()) {
             return -1;
         }
@@ -783,6 +790,31 @@ public class Monkey {
         }
     }
 
+    /**
+     * Compile the script given with -f into mCompiledScriptFileName, which can
+     * then be run with -f like a text script.
+     *
+     * @return Returns a posix-style result code. 0 for no error.
+     */
+    private int compileScript() {
+        if (mScriptFileNames.size() != 1) {
+            Logger.err.println("** Error: --compile-script needs exactly one -f scriptfile");
+            showUsage();
+            return -1;
+        }
+        try {
+            if (!MonkeyScriptCompiler.compile(mScriptFileNames.get(0),
+                        mCompiledScriptFileName)) {
+                Logger.err.println("** Error: Bad header in script " + mScriptFileNames.get(0));
+                return -1;
+            }
+        } catch (IOException e) {
+            Logger.err.println("** Error: Compiling script: " + e.toString());
+            return -1;
+        }
+        return 0;
+    }
+
     /**
      * Process the command-line options
      *
@@ -877,6 +909,8 @@ public class Monkey {
                     mSetupFileName = nextOptionData();
                 } else if (opt.equals("-f")) {
                     mScriptFileNames.add(nextOptionData());
+                } else if (opt.equals("--compile-script")) {
+                    mCompiledScriptFileName = nextOptionData();
                 } else if (opt.equals("--profile-wait")) {
                     mProfileWaitTime = nextOptionLong("Profile delay" +
                                 " (in milliseconds) to wait between user action");
@@ -911,8 +945,8 @@ public class Monkey {
         }
 
         // If a server port hasn't been specified, we need to specify
-        // a count
-        if (mServerPort == -1) {
+        // a count, unless the script is only being compiled
+        if (mServerPort == -1 && mCompiledScriptFileName == null) {
             String countStr = nextArg();
             if (countStr == null) {
                 Logger.err.println("** Error: Count not specified");
@@ -1458,6 +1492,7 @@ public class Monkey {
         usage.append("              [--pkg-whitelist-file PACKAGE_WHITELIST_FILE]\n");
         usage.append("              [--wait-dbg] [--dbg-no-events]\n");
         usage.append("              [--setup scriptfile] [-f scriptfile [-f scriptfile] ...]\n");
+        usage.append("              [--compile-script COMPILED_SCRIPT_FILE]\n");
         usage.append("              [--port port]\n");
         usage.append("              [-s SEED] [-v [-v] ...]\n");
         usage.append("              [--throttle MILLISEC] [--randomize-throttle]\n");
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compiles a text monkey script into a binary one that MonkeySourceScript can
+ * replay without parsing strings.  Long recorded sessions are almost all
+ * DispatchKey, DispatchPointer and DispatchTrackball lines, and splitting and
+ * parsing them is most of the time spent reading the script.
+ *
+ * The compiled file is big-endian:
+ *
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     count, from the header
+ * double  speed, from the header
+ * byte    1 if linebyline is in the header, otherwise 0
+ * records, each an opcode byte followed by its arguments
+ * </pre>
+ *
+ * Key and motion records store their event time as an int delta from the event
+ * time of the one before, and their down time as an int offset back from their
+ * event time.  An OP_TIME record sets the event time when the delta is too big.
+ * Lines that aren't compiled are stored as OP_LINE, and are handled the same way
+ * as in a text script when they're read.
+ */
+public class MonkeyScriptCompiler {
+    /** The first int of a compiled script. */
+    static final int MAGIC = 0x4d4b5342; // "MKSB"
+
+    /** Change this when the layout of the file changes. */
+    static final int VERSION = 1;
+
+    /** long eventTime */
+    static final byte OP_TIME = 1;
+
+    /** int eventTimeDelta, int downTimeOffset, int action, int code, int repeat,
+     * int metaState, int device, int scancode */
+    static final byte OP_KEY = 2;
+
+    /** int eventTimeDelta, int downTimeOffset, int action, float x, float y,
+     * float pressure, float size, int metaState, float xPrecision, float yPrecision,
+     * int device, int edgeFlags, byte pointerId */
+    static final byte OP_TOUCH = 3;
+
+    /** The same as OP_TOUCH */
+    static final byte OP_TRACKBALL = 4;
+
+    /** long waitTime */
+    static final byte OP_WAIT = 5;
+
+    /** int length, then the line in UTF-8 */
+    static final byte OP_LINE = 6;
+
+    /** The pointerId of a motion line without one. */
+    static final byte NO_POINTER_ID = -1;
+
+    /**
+     * The keywords that handleEvent() checks before EVENT_KEYWORD_WAIT.  A wait
+     * line with any of these in it is stored as a line.
+     */
+    private static final String[] KEYWORDS_BEFORE_WAIT = new String[] {
+        MonkeySourceScript.EVENT_KEYWORD_KEY,
+        MonkeySourceScript.EVENT_KEYWORD_POINTER,
+        MonkeySourceScript.EVENT_KEYWORD_TRACKBALL,
+        MonkeySourceScript.EVENT_KEYWORD_ROTATION,
+        MonkeySourceScript.EVENT_KEYWORD_TAP,
+        MonkeySourceScript.EVENT_KEYWORD_PRESSANDHOLD,
+        MonkeySourceScript.EVENT_KEYWORD_DRAG,
+        MonkeySourceScript.EVENT_KEYWORD_PINCH_ZOOM,
+        MonkeySourceScript.EVENT_KEYWORD_FLIP,
+        MonkeySourceScript.EVENT_KEYWORD_ACTIVITY,
+        MonkeySourceScript.EVENT_KEYWORD_DEVICE_WAKEUP,
+        MonkeySourceScript.EVENT_KEYWORD_INSTRUMENTATION,
+    };
+
+    private DataOutputStream mOut;
+
+    /** The event time of the last key or motion record. */
+    private long mLastEventTime = 0;
+
+    private int mLineCount = 0;
+    private int mCompiledCount = 0;
+
+    private MonkeyScriptCompiler(DataOutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Checks whether a file is a compiled script, without moving its position.
+     *
+     * @param channel The open file.
+     * @return True if the file starts with MAGIC.
+     * @throws IOException If there was an error reading the file.
+     */
+    static boolean isCompiled(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, magic.position()) < 0) {
+                return false;
+            }
+        }
+        magic.flip();
+        return magic.getInt() == MAGIC;
+    }
+
+    /**
+     * Compiles a text script.
+     *
+     * @param inFileName The text script.
+     * @param outFileName The compiled script to write.
+     * @return True if it was compiled, and false if the header of the text script
+     *         couldn't be parsed.
+     * @throws IOException If there was an error reading or writing the files.
+     */
+    public static boolean compile(String inFileName, String outFileName) throws IOException {
+        // The same charset that MonkeySourceScript reads text scripts with
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(inFileName)));
+        try {
+            int count = 0;
+            double speed = 1.0;
+            boolean lineByLine = false;
+            boolean validHeader = false;
+
+            // Parsed the same way as MonkeySourceScript.readHeader()
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+
+                if (line.indexOf(MonkeySourceScript.HEADER_COUNT) >= 0) {
+                    try {
+                        String value = line.substring(
+                                MonkeySourceScript.HEADER_COUNT.length() + 1).trim();
+                        count = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        Logger.err.println("" + e);
+                        return false;
+                    }
+                } else if (line.indexOf(MonkeySourceScript.HEADER_SPEED) >= 0) {
+                    try {
+                        String value = line.substring(
+                                MonkeySourceScript.HEADER_COUNT.length() + 1).trim();
+                        speed = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        Logger.err.println("" + e);
+                        return false;
+                    }
+                } else if (line.indexOf(MonkeySourceScript.HEADER_LINE_BY_LINE) >= 0) {
+                    lineByLine = true;
+                } else if (line.indexOf(MonkeySourceScript.STARTING_DATA_LINE) >= 0) {
+                    validHeader = true;
+                    break;
+                }
+            }
+            if (!validHeader) {
+                return false;
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFileName)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                out.writeDouble(speed);
+                out.writeByte(lineByLine ? 1 : 0);
+
+                MonkeyScriptCompiler compiler = new MonkeyScriptCompiler(out);
+                while ((line = in.readLine()) != null) {
+                    compiler.compileLine(line);
+                }
+                Logger.out.println("// Compiled " + compiler.mCompiledCount + " of "
+                        + compiler.mLineCount + " lines of " + inFileName);
+            } finally {
+                out.close();
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the record for one line of the script.  The line is split the same
+     * way as MonkeySourceScript.processLine(), and only compiled when
+     * handleEvent() would make the same events from it.
+     */
+    private void compileLine(String line) throws IOException {
+        int index1 = line.indexOf('(');
+        int index2 = line.indexOf(')');
+
+        if (index1 < 0 || index2 < 0) {
+            // No events
+            return;
+        }
+        mLineCount++;
+
+        String[] args = line.substring(index1 + 1, index2).split(",");
+
+        for (int i = 0; i < args.length; i++) {
+            args[i] = args[i].trim();
+        }
+
+        try {
+            if (line.indexOf(MonkeySourceScript.EVENT_KEYWORD_KEY) >= 0) {
+                if (args.length == 8 && compileKey(args)) {
+                    mCompiledCount++;
+                    return;
+                }
+            } else if (line.indexOf(MonkeySourceScript.EVENT_KEYWORD_POINTER) >= 0
+                    || line.indexOf(MonkeySourceScript.EVENT_KEYWORD_TRACKBALL) >= 0) {
+                if ((args.length == 12 || args.length == 13)
+                        && compileMotion(line.indexOf("Pointer") > 0, args)) {
+                    mCompiledCount++;
+                    return;
+                }
+            } else if (line.indexOf(MonkeySourceScript.EVENT_KEYWORD_WAIT) >= 0
+                    && args.length == 1 && !hasKeywordBeforeWait(line)) {
+                long waitTime = Integer.parseInt(args[0]);
+                mOut.writeByte(OP_WAIT);
+                mOut.writeLong(waitTime);
+                mCompiledCount++;
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Stored as a line, which makes the same events as in the text script.
+        }
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        mOut.writeByte(OP_LINE);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private boolean compileKey(String[] args) throws IOException {
+        long downTime = Long.parseLong(args[0]);
+        long eventTime = Long.parseLong(args[1]);
+        int action = Integer.parseInt(args[2]);
+        int code = Integer.parseInt(args[3]);
+        int repeat = Integer.parseInt(args[4]);
+        int metaState = Integer.parseInt(args[5]);
+        int device = Integer.parseInt(args[6]);
+        int scancode = Integer.parseInt(args[7]);
+
+        if (!fitsInInt(eventTime - downTime)) {
+            return false;
+        }
+
+        writeTimes(OP_KEY, downTime, eventTime);
+        mOut.writeInt(action);
+        mOut.writeInt(code);
+        mOut.writeInt(repeat);
+        mOut.writeInt(metaState);
+        mOut.writeInt(device);
+        mOut.writeInt(scancode);
+        return true;
+    }
+
+    private boolean compileMotion(boolean touch, String[] args) throws IOException {
+        long downTime = Long.parseLong(args[0]);
+        long eventTime = Long.parseLong(args[1]);
+        int action = Integer.parseInt(args[2]);
+        float x = Float.parseFloat(args[3]);
+        float y = Float.parseFloat(args[4]);
+        float pressure = Float.parseFloat(args[5]);
+        float size = Float.parseFloat(args[6]);
+        int metaState = Integer.parseInt(args[7]);
+        float xPrecision = Float.parseFloat(args[8]);
+        float yPrecision = Float.parseFloat(args[9]);
+        int device = Integer.parseInt(args[10]);
+        int edgeFlags = Integer.parseInt(args[11]);
+        int pointerId = NO_POINTER_ID;
+        if (args.length == 13) {
+            pointerId = Integer.parseInt(args[12]);
+            if (pointerId < 0 || pointerId > Byte.MAX_VALUE) {
+                return false;
+            }
+        }
+
+        if (!fitsInInt(eventTime - downTime)) {
+            return false;
+        }
+
+        writeTimes(touch ? OP_TOUCH : OP_TRACKBALL, downTime, eventTime);
+        mOut.writeInt(action);
+        mOut.writeFloat(x);
+        mOut.writeFloat(y);
+        mOut.writeFloat(pressure);
+        mOut.writeFloat(size);
+        mOut.writeInt(metaState);
+        mOut.writeFloat(xPrecision);
+        mOut.writeFloat(yPrecision);
+        mOut.writeInt(device);
+        mOut.writeInt(edgeFlags);
+        mOut.writeByte(pointerId);
+        return true;
+    }
+
+    /**
+     * Writes the opcode and times of a key or motion record, with an OP_TIME
+     * before it if the event time is too far from the last one.
+     */
+    private void writeTimes(byte op, long downTime, long eventTime) throws IOException {
+        if (!fitsInInt(eventTime - mLastEventTime)) {
+            mOut.writeByte(OP_TIME);
+            mOut.writeLong(eventTime);
+            mLastEventTime = eventTime;
+        }
+        mOut.writeByte(op);
+        mOut.writeInt((int) (eventTime - mLastEventTime));
+        mOut.writeInt((int) (eventTime - downTime));
+        mLastEventTime = eventTime;
+    }
+
+    private static boolean hasKeywordBeforeWait(String line) {
+        for (String keyword : KEYWORDS_BEFORE_WAIT) {
+            if (line.indexOf(keyword) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean fitsInInt(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+}
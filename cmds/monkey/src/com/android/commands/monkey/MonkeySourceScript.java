@@ -27,6 +27,11 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -43,6 +48,15 @@ import java.util.Random;
  * captureDispatchFlip(true)
  * ...
  * </pre>
+ *
+ * The script can also be one compiled by MonkeyScriptCompiler, which is mapped
+ * into memory and read without any string parsing.
+ *
+ * Recorded key, pointer and trackball events are replayed at their recorded times,
+ * scaled by the speed.  Each one has a deadline measured from when the first one
+ * was replayed, rather than a delay from the one before, so lateness doesn't add
+ * up over a long script.  Time spent on events that aren't in the recording, like
+ * waits and launches, moves the later deadlines back by as much.
  */
 public class MonkeySourceScript implements MonkeyEventSource {
     private int mEventCountInScript = 0; // total number of events in the file
@@ -55,9 +69,9 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private MonkeyEventQueue mQ;
 
-    private static final String HEADER_COUNT = "count=";
+    static final String HEADER_COUNT = "count=";
 
-    private static final String HEADER_SPEED = "speed=";
+    static final String HEADER_SPEED = "speed=";
 
     private long mLastRecordedDownTimeKey = 0;
 
@@ -67,43 +81,42 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private long mLastExportDownTimeMotion = 0;
 
-    private long mLastExportEventTime = -1;
-
-    private long mLastRecordedEventTime = -1;
-
     // process scripts in line-by-line mode (true) or batch processing mode (false)
     private boolean mReadScriptLineByLine = false;
 
     private static final boolean THIS_DEBUG = false;
 
-    // a parameter that compensates the difference of real elapsed time and
-    // time in theory
-    private static final long SLEEP_COMPENSATE_DIFF = 16;
+    // how long before a deadline to stop sleeping and spin instead, because sleep
+    // can wake up late
+    private static final long SPIN_TIME = 2;
+
+    // events replayed later than this are counted in the replay statistics
+    private static final long LATE_THRESHOLD = 10;
 
     // if this header is present, scripts are read and processed in line-by-line mode
-    private static final String HEADER_LINE_BY_LINE = "linebyline";
+    static final String HEADER_LINE_BY_LINE = "linebyline";
 
     // maximum number of events that we read at one time
     private static final int MAX_ONE_TIME_READS = 100;
 
     // event key word in the capture log
-    private static final String EVENT_KEYWORD_POINTER = "DispatchPointer";
+    static final String EVENT_KEYWORD_POINTER = "DispatchPointer";
 
-    private static final String EVENT_KEYWORD_TRACKBALL = "DispatchTrackball";
+    static final String EVENT_KEYWORD_TRACKBALL = "DispatchTrackball";
 
-    private static final String EVENT_KEYWORD_ROTATION = "RotateScreen";
+    static final String EVENT_KEYWORD_ROTATION = "RotateScreen";
 
-    private static final String EVENT_KEYWORD_KEY = "DispatchKey";
+    static final String EVENT_KEYWORD_KEY = "DispatchKey";
 
-    private static final String EVENT_KEYWORD_FLIP = "DispatchFlip";
+    static final String EVENT_KEYWORD_FLIP = "DispatchFlip";
 
     private static final String EVENT_KEYWORD_KEYPRESS = "DispatchPress";
 
-    private static final String EVENT_KEYWORD_ACTIVITY = "LaunchActivity";
+    static final String EVENT_KEYWORD_ACTIVITY = "LaunchActivity";
 
-    private static final String EVENT_KEYWORD_INSTRUMENTATION = "LaunchInstrumentation";
+    static final String EVENT_KEYWORD_INSTRUMENTATION = "LaunchInstrumentation";
 
-    private static final String EVENT_KEYWORD_WAIT = "UserWait";
+    static final String EVENT_KEYWORD_WAIT = "UserWait";
 
     private static final String EVENT_KEYWORD_LONGPRESS = "LongPress";
 
@@ -113,19 +126,19 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private static final String EVENT_KEYWORD_RUNCMD = "RunCmd";
 
-    private static final String EVENT_KEYWORD_TAP = "Tap";
+    static final String EVENT_KEYWORD_TAP = "Tap";
 
     private static final String EVENT_KEYWORD_PROFILE_WAIT = "ProfileWait";
 
-    private static final String EVENT_KEYWORD_DEVICE_WAKEUP = "DeviceWakeUp";
+    static final String EVENT_KEYWORD_DEVICE_WAKEUP = "DeviceWakeUp";
 
     private static final String EVENT_KEYWORD_INPUT_STRING = "DispatchString";
 
-    private static final String EVENT_KEYWORD_PRESSANDHOLD = "PressAndHold";
+    static final String EVENT_KEYWORD_PRESSANDHOLD = "PressAndHold";
 
-    private static final String EVENT_KEYWORD_DRAG = "Drag";
+    static final String EVENT_KEYWORD_DRAG = "Drag";
 
-    private static final String EVENT_KEYWORD_PINCH_ZOOM = "PinchZoom";
+    static final String EVENT_KEYWORD_PINCH_ZOOM = "PinchZoom";
 
     private static final String EVENT_KEYWORD_START_FRAMERATE_CAPTURE = "StartCaptureFramerate";
 
@@ -137,7 +150,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
     private static final String EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE = "EndCaptureAppFramerate";
 
     // a line at the end of the header
-    private static final String STARTING_DATA_LINE = "start data >>";
+    static final String STARTING_DATA_LINE = "start data >>";
 
     private boolean mFileOpened = false;
 
@@ -153,15 +166,42 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     BufferedReader mBufferedReader;
 
+    // The rest of a compiled script, or null if the script is text
+    private ByteBuffer mCompiled;
+
+    // The event time of the last key or motion record in the compiled script
+    private long mCompiledEventTime;
+
     // X and Y coordincates of last touch event. Array Index is the pointerId
     private float mLastX[] = new float[2];
 
     private float mLastY[] = new float[2];
 
+    // The recorded time of the first recorded event, and the uptime it was replayed at
     private long mScriptStartTime = -1;
 
     private long mMonkeyStartTime = -1;
 
+    // The recorded events that are in the queue
+    private HashSet<MonkeyEvent> mRecordedEvents = new HashSet<MonkeyEvent>();
+
+    // Time spent on events that aren't recorded, which the deadlines are moved back by
+    private long mPausedTime = 0;
+
+    // Whether the last event returned was recorded, and the uptime it was returned at
+    private boolean mLastEventRecorded = true;
+
+    private long mLastEventTime = -1;
+
+    // How late the recorded events were replayed, in ms
+    private int mReplayedCount = 0;
+
+    private long mTotalLateness = 0;
+
+    private long mMaxLateness = 0;
+
+    private int mLateCount = 0;
+
     /**
      * Creates a MonkeySourceScript instance.
      *
@@ -182,10 +222,16 @@ public class MonkeySourceScript implements MonkeyEventSource {
     private void resetValue() {
         mLastRecordedDownTimeKey = 0;
         mLastRecordedDownTimeMotion = 0;
-        mLastRecordedEventTime = -1;
         mLastExportDownTimeKey = 0;
         mLastExportDownTimeMotion = 0;
-        mLastExportEventTime = -1;
+        mScriptStartTime = -1;
+        mMonkeyStartTime = -1;
+        mPausedTime = 0;
+        mLastEventRecorded = true;
+        mReplayedCount = 0;
+        mTotalLateness = 0;
+        mMaxLateness = 0;
+        mLateCount = 0;
     }
 
     /**
@@ -198,6 +244,9 @@ public class MonkeySourceScript implements MonkeyEventSource {
         mFileOpened = true;
 
         mFStream = new FileInputStream(mScriptFileName);
+        if (MonkeyScriptCompiler.isCompiled(mFStream.getChannel())) {
+            return readCompiledHeader();
+        }
         mInputStream = new DataInputStream(mFStream);
         mBufferedReader = new BufferedReader(new InputStreamReader(mInputStream));
 
@@ -232,6 +281,101 @@ public class MonkeySourceScript implements MonkeyEventSource {
         return false;
     }
 
+    /**
+     * Maps a compiled script and reads its header.
+     *
+     * @return True if the header could be read, and false otherwise.
+     * @throws IOException If there was an error reading the file.
+     */
+    private boolean readCompiledHeader() throws IOException {
+        FileChannel channel = mFStream.getChannel();
+        mCompiled = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        mCompiledEventTime = 0;
+        try {
+            mCompiled.getInt(); // MAGIC
+            int version = mCompiled.getInt();
+            if (version != MonkeyScriptCompiler.VERSION) {
+                Logger.err.println("** Compiled script " + mScriptFileName + " is version "
+                        + version + ", expected " + MonkeyScriptCompiler.VERSION);
+                return false;
+            }
+            mEventCountInScript = mCompiled.getInt();
+            mSpeed = mCompiled.getDouble();
+            mReadScriptLineByLine = mCompiled.get() != 0;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number of records from a compiled script and adds their events to
+     * the event queue.  OP_TIME records aren't counted.
+     *
+     * @param max The most records to read.
+     * @return The number of records read.
+     * @throws IOException If the compiled script is cut off.
+     */
+    private int readCompiledRecords(int max) throws IOException {
+        final ByteBuffer in = mCompiled;
+        int count = 0;
+        try {
+            while (count < max && in.hasRemaining()) {
+                byte op = in.get();
+                if (op == MonkeyScriptCompiler.OP_TIME) {
+                    mCompiledEventTime = in.getLong();
+                    continue;
+                }
+                count++;
+                if (op == MonkeyScriptCompiler.OP_KEY) {
+                    mCompiledEventTime += in.getInt();
+                    long eventTime = mCompiledEventTime;
+                    long downTime = eventTime - in.getInt();
+                    addKeyEvent(new MonkeyKeyEvent(downTime, eventTime, in.getInt(), in.getInt(),
+                            in.getInt(), in.getInt(), in.getInt(), in.getInt()));
+                } else if (op == MonkeyScriptCompiler.OP_TOUCH
+                        || op == MonkeyScriptCompiler.OP_TRACKBALL) {
+                    mCompiledEventTime += in.getInt();
+                    long eventTime = mCompiledEventTime;
+                    long downTime = eventTime - in.getInt();
+                    int action = in.getInt();
+                    float x = in.getFloat();
+                    float y = in.getFloat();
+                    float pressure = in.getFloat();
+                    float size = in.getFloat();
+                    int metaState = in.getInt();
+                    float xPrecision = in.getFloat();
+                    float yPrecision = in.getFloat();
+                    int device = in.getInt();
+                    int edgeFlags = in.getInt();
+                    int pointerId = in.get();
+
+                    boolean touch = op == MonkeyScriptCompiler.OP_TOUCH;
+                    if (pointerId == MonkeyScriptCompiler.NO_POINTER_ID) {
+                        addMotionEvent(touch, downTime, eventTime, action, x, y, pressure, size,
+                                metaState, xPrecision, yPrecision, device, edgeFlags);
+                    } else {
+                        addMultiTouchEvent(touch, downTime, eventTime, action, x, y, pressure,
+                                size, metaState, xPrecision, yPrecision, device, edgeFlags,
+                                pointerId);
+                    }
+                } else if (op == MonkeyScriptCompiler.OP_WAIT) {
+                    mQ.addLast(new MonkeyWaitEvent(in.getLong()));
+                } else if (op == MonkeyScriptCompiler.OP_LINE) {
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    processLine(new String(bytes, StandardCharsets.UTF_8));
+                } else {
+                    throw new IOException("Bad opcode " + op + " in compiled script "
+                            + mScriptFileName);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Compiled script " + mScriptFileName + " is cut off");
+        }
+        return count;
+    }
+
     /**
      * Reads a number of lines and passes the lines to be processed.
      *
@@ -294,7 +438,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
                         metaState, device, scancode);
                 Logger.out.println(" Key code " + code + "\n");
 
-                mQ.addLast(e);
+                addKeyEvent(e);
                 Logger.out.println("Added key up \n");
             } catch (NumberFormatException e) {
             }
@@ -318,21 +462,8 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 int device = Integer.parseInt(args[10]);
                 int edgeFlags = Integer.parseInt(args[11]);
 
-                MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    e = new MonkeyTouchEvent(action);
-                } else {
-                    e = new MonkeyTrackballEvent(action);
-                }
-
-                e.setDownTime(downTime)
-                        .setEventTime(eventTime)
-                        .setMetaState(metaState)
-                        .setPrecision(xPrecision, yPrecision)
-                        .setDeviceId(device)
-                        .setEdgeFlags(edgeFlags)
-                        .addPointer(0, x, y, pressure, size);
-                mQ.addLast(e);
+                addMotionEvent(s.indexOf("Pointer") > 0, downTime, eventTime, action, x, y,
+                        pressure, size, metaState, xPrecision, yPrecision, device, edgeFlags);
             } catch (NumberFormatException e) {
             }
             return;
@@ -356,61 +487,9 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 int edgeFlags = Integer.parseInt(args[11]);
                 int pointerId = Integer.parseInt(args[12]);
 
-                MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    if (action == MotionEvent.ACTION_POINTER_DOWN) {
-                        e = new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
-                                | (pointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
-                                        .setIntermediateNote(true);
-                    } else {
-                        e = new MonkeyTouchEvent(action);
-                    }
-                    if (mScriptStartTime < 0) {
-                        mMonkeyStartTime = SystemClock.uptimeMillis();
-                        mScriptStartTime = eventTime;
-                    }
-                } else {
-                    e = new MonkeyTrackballEvent(action);
-                }
-
-                if (pointerId == 1) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, mLastX[0], mLastY[0], pressure, size)
-                            .addPointer(1, x, y, pressure, size);
-                    mLastX[1] = x;
-                    mLastY[1] = y;
-                } else if (pointerId == 0) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, x, y, pressure, size);
-                     if(action == MotionEvent.ACTION_POINTER_UP) {
-                         e.addPointer(1, mLastX[1], mLastY[1]);
-                     }
-                     mLastX[0] = x;
-                     mLastY[0] = y;
-                }
-
-                // Dynamically adjust waiting time to ensure that simulated evnets follow
-                // the time tap specified in the script
-                if (mReadScriptLineByLine) {
-                    long curUpTime = SystemClock.uptimeMillis();
-                    long realElapsedTime = curUpTime - mMonkeyStartTime;
-                    long scriptElapsedTime = eventTime - mScriptStartTime;
-                    if (realElapsedTime < scriptElapsedTime) {
-                        long waitDuration = scriptElapsedTime - realElapsedTime;
-                        mQ.addLast(new MonkeyWaitEvent(waitDuration));
-                    }
-                }
-                mQ.addLast(e);
+                addMultiTouchEvent(s.indexOf("Pointer") > 0, downTime, eventTime, action, x, y,
+                        pressure, size, metaState, xPrecision, yPrecision, device, edgeFlags,
+                        pointerId);
             } catch (NumberFormatException e) {
             }
             return;
@@ -770,6 +849,86 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     }
 
+    /**
+     * Adds a recorded key event to the event queue.
+     */
+    private void addKeyEvent(MonkeyKeyEvent e) {
+        mRecordedEvents.add(e);
+        mQ.addLast(e);
+    }
+
+    /**
+     * Adds a single pointer touch or trackball event to the event queue.
+     */
+    private void addMotionEvent(boolean touch, long downTime, long eventTime, int action,
+            float x, float y, float pressure, float size, int metaState, float xPrecision,
+            float yPrecision, int device, int edgeFlags) {
+        MonkeyMotionEvent e;
+        if (touch) {
+            e = new MonkeyTouchEvent(action);
+        } else {
+            e = new MonkeyTrackballEvent(action);
+        }
+
+        e.setDownTime(downTime)
+                .setEventTime(eventTime)
+                .setMetaState(metaState)
+                .setPrecision(xPrecision, yPrecision)
+                .setDeviceId(device)
+                .setEdgeFlags(edgeFlags)
+                .addPointer(0, x, y, pressure, size);
+        mRecordedEvents.add(e);
+        mQ.addLast(e);
+    }
+
+    /**
+     * Adds a multi-touch or trackball event for one pointer to the event queue.
+     */
+    private void addMultiTouchEvent(boolean touch, long downTime, long eventTime, int action,
+            float x, float y, float pressure, float size, int metaState, float xPrecision,
+            float yPrecision, int device, int edgeFlags, int pointerId) {
+        MonkeyMotionEvent e;
+        if (touch) {
+            if (action == MotionEvent.ACTION_POINTER_DOWN) {
+                e = new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
+                        | (pointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
+                                .setIntermediateNote(true);
+            } else {
+                e = new MonkeyTouchEvent(action);
+            }
+        } else {
+            e = new MonkeyTrackballEvent(action);
+        }
+
+        if (pointerId == 1) {
+            e.setDownTime(downTime)
+                    .setEventTime(eventTime)
+                    .setMetaState(metaState)
+                    .setPrecision(xPrecision, yPrecision)
+                    .setDeviceId(device)
+                    .setEdgeFlags(edgeFlags)
+                    .addPointer(0, mLastX[0], mLastY[0], pressure, size)
+                    .addPointer(1, x, y, pressure, size);
+            mLastX[1] = x;
+            mLastY[1] = y;
+        } else if (pointerId == 0) {
+            e.setDownTime(downTime)
+                    .setEventTime(eventTime)
+                    .setMetaState(metaState)
+                    .setPrecision(xPrecision, yPrecision)
+                    .setDeviceId(device)
+                    .setEdgeFlags(edgeFlags)
+                    .addPointer(0, x, y, pressure, size);
+            if (action == MotionEvent.ACTION_POINTER_UP) {
+                e.addPointer(1, mLastX[1], mLastY[1]);
+            }
+            mLastX[0] = x;
+            mLastY[0] = y;
+        }
+        mRecordedEvents.add(e);
+        mQ.addLast(e);
+    }
+
     /**
      * Extracts an event and a list of arguments from a line. If the line does
      * not match the format required, it is ignored.
@@ -800,6 +959,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
      */
     private void closeFile() throws IOException {
         mFileOpened = false;
+        mCompiled = null;
 
         try {
             mFStream.close();
@@ -829,13 +989,21 @@ public class MonkeySourceScript implements MonkeyEventSource {
             readHeader();
         }
 
-        if (mReadScriptLineByLine) {
+        if (mCompiled != null) {
+            linesRead = readCompiledRecords(mReadScriptLineByLine ? 1 : MAX_ONE_TIME_READS);
+        } else if (mReadScriptLineByLine) {
             linesRead = readOneLine();
         } else {
             linesRead = readLines();
         }
 
         if (linesRead == 0) {
+            if (mReplayedCount > 0) {
+                Logger.out.println(String.format("// Replayed %d recorded events from %s:"
+                        + " %.1f ms late on average, %d ms at most, %d more than %d ms late",
+                        mReplayedCount, mScriptFileName, mTotalLateness / (double) mReplayedCount,
+                        mMaxLateness, mLateCount, LATE_THRESHOLD));
+            }
             closeFile();
         }
     }
@@ -883,44 +1051,87 @@ public class MonkeySourceScript implements MonkeyEventSource {
     }
 
     /**
-     * Adjust key downtime and eventtime according to both recorded values and
-     * current system time.
+     * Waits until the deadline of a recorded event, and adds how late it is to
+     * the replay statistics.
+     *
+     * @param recordedTime The recorded event time.
+     * @return The deadline, in uptime.
+     */
+    private long waitForDeadline(long recordedTime) {
+        long now = SystemClock.uptimeMillis();
+        if (mScriptStartTime < 0) {
+            mScriptStartTime = recordedTime;
+            mMonkeyStartTime = now;
+            // The events before this one ran before the timeline started.
+            mPausedTime = 0;
+        }
+        long deadline = toReplayTime(recordedTime);
+
+        needSleep(deadline - now - SPIN_TIME);
+        while ((now = SystemClock.uptimeMillis()) < deadline) {
+            // Spin for the last few ms
+        }
+
+        long lateness = now - deadline;
+        mReplayedCount++;
+        mTotalLateness += lateness;
+        if (lateness > mMaxLateness) {
+            mMaxLateness = lateness;
+        }
+        if (lateness > LATE_THRESHOLD) {
+            mLateCount++;
+        }
+        return deadline;
+    }
+
+    /**
+     * Converts a recorded time into the uptime it should be replayed at.
+     */
+    private long toReplayTime(long recordedTime) {
+        return mMonkeyStartTime + mPausedTime
+                + (long) ((recordedTime - mScriptStartTime) * mSpeed);
+    }
+
+    /**
+     * Waits until the deadline of a recorded key event, and sets its downtime
+     * and eventtime to when it's replayed.
      *
-     * @param e A KeyEvent
+     * @param e A recorded KeyEvent
      */
-    private void adjustKeyEventTime(MonkeyKeyEvent e) {
+    private void scheduleKeyEvent(MonkeyKeyEvent e) {
         if (e.getEventTime() < 0) {
             return;
         }
-        long thisDownTime = 0;
-        long thisEventTime = 0;
-        long expectedDelay = 0;
+        long thisEventTime = waitForDeadline(e.getEventTime());
+        if (e.getDownTime() != mLastRecordedDownTimeKey) {
+            mLastRecordedDownTimeKey = e.getDownTime();
+            mLastExportDownTimeKey = Math.min(toReplayTime(e.getDownTime()), thisEventTime);
+        }
+        e.setDownTime(mLastExportDownTimeKey);
+        e.setEventTime(thisEventTime);
+    }
 
-        if (mLastRecordedEventTime <= 0) {
-            // first time event
-            thisDownTime = SystemClock.uptimeMillis();
-            thisEventTime = thisDownTime;
-        } else {
-            if (e.getDownTime() != mLastRecordedDownTimeKey) {
-                thisDownTime = e.getDownTime();
-            } else {
-                thisDownTime = mLastExportDownTimeKey;
-            }
-            expectedDelay = (long) ((e.getEventTime() - mLastRecordedEventTime) * mSpeed);
-            thisEventTime = mLastExportEventTime + expectedDelay;
-            // add sleep to simulate everything in recording
-            needSleep(expectedDelay - SLEEP_COMPENSATE_DIFF);
-        }
-        mLastRecordedDownTimeKey = e.getDownTime();
-        mLastRecordedEventTime = e.getEventTime();
-        e.setDownTime(thisDownTime);
+    /**
+     * Waits until the deadline of a recorded motion event, and sets its downtime
+     * and eventtime to when it's replayed.
+     *
+     * @param e A recorded MotionEvent
+     */
+    private void scheduleMotionEvent(MonkeyMotionEvent e) {
+        long thisEventTime = waitForDeadline(e.getEventTime());
+        if (e.getDownTime() != mLastRecordedDownTimeMotion) {
+            // this event is the start of a new batch
+            mLastRecordedDownTimeMotion = e.getDownTime();
+            mLastExportDownTimeMotion = Math.min(toReplayTime(e.getDownTime()), thisEventTime);
+        }
+        e.setDownTime(mLastExportDownTimeMotion);
         e.setEventTime(thisEventTime);
-        mLastExportDownTimeKey = thisDownTime;
-        mLastExportEventTime = thisEventTime;
     }
 
     /**
      * Adjust motion downtime and eventtime according to current system time.
+     * For the motion events that the script makes, like taps, which weren't
+     * recorded.
      *
      * @param e A MotionEvent
      */
@@ -954,9 +1165,13 @@ public class MonkeySourceScript implements MonkeyEventSource {
      */
     @Override
     public MonkeyEvent getNextEvent() {
-        long recordedEventTime = -1;
         MonkeyEvent ev;
 
+        // The event before wasn't recorded, so the time it took isn't in the recording.
+        if (!mLastEventRecorded) {
+            mPausedTime += SystemClock.uptimeMillis() - mLastEventTime;
+        }
+
         if (mQ.isEmpty()) {
             try {
                 readNextBatch();
@@ -972,12 +1187,21 @@ public class MonkeySourceScript implements MonkeyEventSource {
             return null;
         }
 
+        boolean recorded = mRecordedEvents.remove(ev);
         if (ev.getEventType() == MonkeyEvent.EVENT_TYPE_KEY) {
-            adjustKeyEventTime((MonkeyKeyEvent) ev);
+            if (recorded) {
+                scheduleKeyEvent((MonkeyKeyEvent) ev);
+            }
         } else if (ev.getEventType() == MonkeyEvent.EVENT_TYPE_TOUCH
                 || ev.getEventType() == MonkeyEvent.EVENT_TYPE_TRACKBALL) {
-            adjustMotionEventTime((MonkeyMotionEvent) ev);
+            if (recorded) {
+                scheduleMotionEvent((MonkeyMotionEvent) ev);
+            } else {
+                adjustMotionEventTime((MonkeyMotionEvent) ev);
+            }
         }
+        mLastEventRecorded = recorded;
+        mLastEventTime = SystemClock.uptimeMillis();
         return ev;
     }
 }
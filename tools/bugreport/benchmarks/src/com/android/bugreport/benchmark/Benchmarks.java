@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.benchmark;
+
+import com.android.bugreport.bugreport.Bugreport;
+import com.android.bugreport.bugreport.BugreportParser;
+import com.android.bugreport.html.Renderer;
+import com.android.bugreport.inspector.Inspector;
+import com.android.bugreport.logcat.LogcatParser;
+import com.android.bugreport.stacks.VmTracesParser;
+import com.android.bugreport.util.ArgParser;
+import com.android.bugreport.util.Line;
+import com.android.bugreport.util.Lines;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Times each stage of the tool on synthetic input from CorpusGenerator.
+ *
+ * For each stage it reports the throughput, the bytes allocated by the benchmark
+ * thread, and the peak heap.  The allocation counts come from the HotSpot thread
+ * allocation counters, which is what the JMH GC profiler reads, so stages that
+ * use other threads are under-counted.  The peak heap is the sum of the peaks of
+ * the heap pools while the stage ran, so it's an upper bound.
+ *
+ * Each iteration can have untimed setup, like parsing the bugreport again before
+ * inspecting it, since inspecting changes it.
+ */
+public class Benchmarks {
+    /**
+     * One thing to time.
+     */
+    private static abstract class Stage {
+        /**
+         * The name that --stage selects it with.
+         */
+        public final String name;
+
+        /**
+         * The number of characters of input each run handles, for the MB/s.
+         */
+        public final long bytes;
+
+        public Stage(String name, long bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get ready for the next run.  Not timed.
+         */
+        public void prepare() throws IOException {
+        }
+
+        /**
+         * Do the work.  The result is kept so the work can't be optimized away.
+         */
+        public abstract Object run() throws IOException;
+    }
+
+    /**
+     * Where the results of the runs go.
+     */
+    private static volatile Object sSink;
+
+    /**
+     * Main entry point.
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Parse the args and run the benchmarks.
+     *
+     * @return the process exit code.
+     */
+    public static int run(String[] args) {
+        int size = 20000;
+        long seed = 1;
+        int warmup = 5;
+        int iterations = 10;
+        final HashSet<String> only = new HashSet<String>();
+
+        String flag;
+        final ArgParser argParser = new ArgParser(args);
+        try {
+            while ((flag = argParser.nextFlag()) != null) {
+                if (!argParser.hasData(1)) {
+                    return usage();
+                }
+                if ("--size".equals(flag)) {
+                    size = Integer.parseInt(argParser.nextData());
+                } else if ("--seed".equals(flag)) {
+                    seed = Long.parseLong(argParser.nextData());
+                } else if ("--warmup".equals(flag)) {
+                    warmup = Integer.parseInt(argParser.nextData());
+                } else if ("--iterations".equals(flag)) {
+                    iterations = Integer.parseInt(argParser.nextData());
+                } else if ("--stage".equals(flag)) {
+                    only.add(argParser.nextData());
+                } else {
+                    return usage();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return usage();
+        }
+        if (argParser.remaining() != 0 || size <= 0 || warmup < 0 || iterations <= 0) {
+            return usage();
+        }
+
+        try {
+            final ArrayList<Stage> stages = makeStages(size, seed);
+            System.out.println(String.format("%-24s %10s %10s %10s %12s %12s %10s", "stage",
+                        "ops/s", "ms/op", "MB/s", "alloc MB/op", "alloc MB/s", "peak MB"));
+            for (Stage stage: stages) {
+                if (only.size() == 0 || only.contains(stage.name)) {
+                    measure(stage, warmup, iterations);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Prints the usage message to stderr and returns 1.
+     */
+    private static int usage() {
+        System.err.println("usage: bugreport-benchmarks [--size LOGLINES] [--seed N]"
+                + " [--warmup N] [--iterations N] [--stage NAME]...\n");
+        return 1;
+    }
+
+    /**
+     * Make the corpora and the stages that use them.
+     */
+    private static ArrayList<Stage> makeStages(int size, long seed) throws IOException {
+        final CorpusGenerator generator = new CorpusGenerator(seed);
+        final ArrayList<String> bugreportText = generator.makeBugreport(size);
+        final ArrayList<String> logcatText = generator.makeLogcat(size);
+        final ArrayList<String> vmTracesText = generator.makeVmTraces(16,
+                Math.max(4, size / 200));
+
+        final File bugreportFile = File.createTempFile("bugreport", ".txt");
+        bugreportFile.deleteOnExit();
+        CorpusGenerator.write(bugreportFile, bugreportText);
+        final File htmlFile = File.createTempFile("bugreport", ".html");
+        htmlFile.deleteOnExit();
+
+        System.out.println("bugreport: " + bugreportText.size() + " lines, "
+                + formatMb(bugreportFile.length()) + " MB");
+
+        final ArrayList<Stage> result = new ArrayList<Stage>();
+
+        result.add(new Stage("readLines", bugreportFile.length()) {
+                    @Override
+                    public Object run() throws IOException {
+                        return Lines.readLines(bugreportFile);
+                    }
+                });
+
+        result.add(new Stage("BugreportParser", CorpusGenerator.length(bugreportText)) {
+                    private Lines<Line> mLines;
+
+                    @Override
+                    public void prepare() {
+                        mLines = CorpusGenerator.toLines(bugreportText);
+                    }
+
+                    @Override
+                    public Object run() {
+                        return new BugreportParser().parse(mLines);
+                    }
+                });
+
+        result.add(new Stage("LogcatParser", CorpusGenerator.length(logcatText)) {
+                    private final LogcatParser mParser = new LogcatParser();
+                    private Lines<Line> mLines;
+
+                    @Override
+                    public void prepare() {
+                        mLines = CorpusGenerator.toLines(logcatText);
+                    }
+
+                    @Override
+                    public Object run() {
+                        return mParser.parse(mLines);
+                    }
+                });
+
+        result.add(new Stage("VmTracesParser", CorpusGenerator.length(vmTracesText)) {
+                    private final VmTracesParser mParser = new VmTracesParser();
+                    private Lines<Line> mLines;
+
+                    @Override
+                    public void prepare() {
+                        mLines = CorpusGenerator.toLines(vmTracesText);
+                    }
+
+                    @Override
+                    public Object run() {
+                        return mParser.parse(mLines);
+                    }
+                });
+
+        result.add(new Stage("Inspector", CorpusGenerator.length(bugreportText)) {
+                    private Bugreport mBugreport;
+
+                    @Override
+                    public void prepare() {
+                        // Inspecting changes the Bugreport, so start from a new one.
+                        mBugreport = new BugreportParser().parse(
+                                CorpusGenerator.toLines(bugreportText));
+                    }
+
+                    @Override
+                    public Object run() {
+                        Inspector.inspect(mBugreport);
+                        return mBugreport;
+                    }
+                });
+
+        result.add(new Stage("Renderer", CorpusGenerator.length(bugreportText)) {
+                    private final Renderer mRenderer = new Renderer();
+                    private Bugreport mBugreport;
+
+                    @Override
+                    public void prepare() throws IOException {
+                        if (mBugreport == null) {
+                            mBugreport = new BugreportParser().parse(
+                                    CorpusGenerator.toLines(bugreportText));
+                            Inspector.inspect(mBugreport);
+                            if (mBugreport.anr == null) {
+                                throw new IOException("The generated bugreport has no anr");
+                            }
+                        }
+                    }
+
+                    @Override
+                    public Object run() throws IOException {
+                        mRenderer.render(htmlFile, mBugreport);
+                        return htmlFile;
+                    }
+                });
+
+        return result;
+    }
+
+    /**
+     * Run the stage warmup times, and then time it for iterations more, and print
+     * the results.
+     */
+    private static void measure(Stage stage, int warmup, int iterations) throws IOException {
+        for (int i=0; i<warmup; i++) {
+            stage.prepare();
+            sSink = stage.run();
+        }
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocBean
+                = threadBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean)threadBean : null;
+        final long threadId = Thread.currentThread().getId();
+
+        // Start the peaks from what's live now, not from the warmup's garbage.
+        sSink = null;
+        System.gc();
+        final ArrayList<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long elapsedNs = 0;
+        long allocated = 0;
+        for (int i=0; i<iterations; i++) {
+            stage.prepare();
+            final long startAlloc = allocBean != null
+                    ? allocBean.getThreadAllocatedBytes(threadId) : 0;
+            final long startTime = System.nanoTime();
+
+            sSink = stage.run();
+
+            elapsedNs += System.nanoTime() - startTime;
+            if (allocBean != null) {
+                allocated += allocBean.getThreadAllocatedBytes(threadId) - startAlloc;
+            }
+        }
+        sSink = null;
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool: heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+
+        final double seconds = elapsedNs / 1e9;
+        System.out.println(String.format("%-24s %10.2f %10.2f %10s %12s %12s %10s", stage.name,
+                    iterations / seconds, (elapsedNs / 1e6) / iterations,
+                    formatMb((long)(stage.bytes * iterations / seconds)),
+                    allocBean != null ? formatMb(allocated / iterations) : "?",
+                    allocBean != null ? formatMb((long)(allocated / seconds)) : "?",
+                    formatMb(peak)));
+    }
+
+    /**
+     * Format a number of bytes as megabytes.
+     */
+    private static String formatMb(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.benchmark;
+
+import com.android.bugreport.util.Line;
+import com.android.bugreport.util.Lines;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes synthetic logcats, VM traces and whole bugreports for the benchmarks.
+ *
+ * The same seed always makes the same text.  The bugreports have an ANR in the
+ * system log and a lock cycle in the ANRing process, so every stage of the tool
+ * has something to do.
+ */
+public class CorpusGenerator {
+    /**
+     * The pid of the process that ANRs.
+     */
+    public static final int ANR_PID = 2000;
+
+    private static final String[] TAGS = new String[] {
+        "ActivityManager", "InputDispatcher", "WindowManager", "PackageManager", "Zygote",
+        "art", "libc",
+    };
+    private static final String LEVELS = "VDIWE";
+    private static final int[] PIDS = new int[] { 1000, ANR_PID, 3000, 4000, 1234 };
+    private static final String[] THREAD_STATES = new String[] {
+        "Native", "Blocked", "Runnable", "Waiting",
+    };
+
+    private final Random mRandom;
+
+    /**
+     * Construct a CorpusGenerator with the given random seed.
+     */
+    public CorpusGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Make count lines of "logcat -v threadtime", spread over an hour.  The ANR lines
+     * are in the middle, and there are buffer markers and a few lines that don't
+     * parse, like in real logs.
+     */
+    public ArrayList<String> makeLogcat(int count) {
+        final ArrayList<String> result = new ArrayList<String>(count + (count / 90) + 8);
+        result.add("--------- beginning of main");
+        for (int i=0; i<count; i++) {
+            final String time = makeTime(secondsInHour(i, count), mRandom.nextInt(1000));
+            if (i == count / 2) {
+                result.add(time + "  1000  1010 E ActivityManager: ANR in com.foo"
+                        + " (com.foo/.MainActivity)");
+                result.add(time + "  1000  1010 E ActivityManager: PID: " + ANR_PID);
+                result.add(time + "  1000  1010 E ActivityManager: Reason: Input dispatching"
+                        + " timed out");
+                result.add(time + "  1000  1010 E ActivityManager: Load: 1.0 / 2.0 / 3.0");
+                result.add(time + "  1000  1011 I InputDispatcher: Application is not"
+                        + " responding: Window{abc u0 com.foo}.  It has been 5001.2ms since"
+                        + " event, 5000.9ms since wait started.  Reason: waiting");
+            }
+            if (i == count / 3) {
+                result.add("--------- beginning of system");
+            }
+            if (i % 97 == 5) {
+                result.add("garbage line that does not match " + i);
+            }
+            final int pid = PIDS[mRandom.nextInt(PIDS.length)];
+            final int tid = pid + mRandom.nextInt(21);
+            result.add(String.format("%s %5d %5d %c %s: message number %d with: colon", time,
+                        pid, tid, LEVELS.charAt(mRandom.nextInt(LEVELS.length())),
+                        TAGS[mRandom.nextInt(TAGS.length)], i));
+        }
+        return result;
+    }
+
+    /**
+     * Make a VM traces dump with the given number of processes, each with the given
+     * number of java threads, plus an unmanaged and a not attached thread.
+     */
+    public ArrayList<String> makeVmTraces(int processes, int threads) {
+        final ArrayList<String> result = new ArrayList<String>();
+        for (int i=0; i<processes; i++) {
+            final int pid = i == 0 ? 1000 : (i == 1 ? ANR_PID : 3000 + (i * 100));
+            final String cmd = i == 0 ? "system_server" : (i == 1 ? "com.foo" : "com.app" + i);
+            makeProcess(result, pid, cmd, threads, pid == ANR_PID);
+        }
+        return result;
+    }
+
+    /**
+     * Make a whole bugreport with logLines lines of system log.  The VM traces grow
+     * with it, at one thread per 200 log lines in each process.
+     */
+    public ArrayList<String> makeBugreport(int logLines) {
+        final ArrayList<String> result = new ArrayList<String>();
+        result.add("========================================================");
+        result.add("== dumpstate: 2016-05-01 12:00:00");
+        result.add("========================================================");
+        result.add("");
+        result.add("Build: TEST.123");
+        result.add("Bootloader: foo");
+        result.add("");
+
+        result.add("------ UPTIME (uptime) ------");
+        result.add(" 12:00:00 up 1 day");
+        result.add("------ 0.010s was the duration of 'UPTIME' ------");
+
+        result.add("------ DUMPSYS MEMINFO (dumpsys meminfo) ------");
+        for (int i=0; i<logLines/4; i++) {
+            result.add("  " + (1 + mRandom.nextInt(99999)) + " K: com.example.proc" + i
+                    + " (pid " + (3000 + i) + ")");
+        }
+        result.add("------ 1.234s was the duration of 'DUMPSYS MEMINFO' ------");
+
+        result.add("------ SYSTEM LOG (logcat -v threadtime -d *:v) ------");
+        result.addAll(makeLogcat(logLines));
+        result.add("------ 0.500s was the duration of 'SYSTEM LOG' ------");
+
+        result.add("------ EVENT LOG (logcat -b events -v threadtime -d *:v) ------");
+        for (int i=0; i<logLines/2; i++) {
+            result.add(makeTime(secondsInHour(i, logLines / 2), mRandom.nextInt(1000))
+                    + "  1000  1000 I am_proc_start: [0," + i + ",10000,com.foo]");
+        }
+        result.add("------ 0.200s was the duration of 'EVENT LOG' ------");
+
+        final int threads = Math.max(4, logLines / 200);
+        result.add("------ VM TRACES JUST NOW (/data/anr/traces.txt.bugreport:"
+                + " 2016-05-01 12:00:00) ------");
+        result.addAll(makeVmTraces(4, threads));
+        result.add("------ 0.100s was the duration of 'VM TRACES JUST NOW' ------");
+        result.add("------ VM TRACES AT LAST ANR (/data/anr/traces.txt: 2016-05-01 11:30:00)"
+                + " ------");
+        result.addAll(makeVmTraces(4, threads));
+        result.add("------ 0.100s was the duration of 'VM TRACES AT LAST ANR' ------");
+
+        result.add("------ 600.000s was the duration of 'DUMPSTATE' ------");
+        return result;
+    }
+
+    /**
+     * Make a Lines object from the text, numbering the lines from 1.
+     */
+    public static Lines<Line> toLines(List<String> text) {
+        final int N = text.size();
+        final ArrayList<Line> list = new ArrayList<Line>(N);
+        for (int i=0; i<N; i++) {
+            list.add(new Line(i + 1, text.get(i)));
+        }
+        return new Lines<Line>(list);
+    }
+
+    /**
+     * Write the text to a file, one line per string.
+     */
+    public static void write(File file, List<String> text) throws IOException {
+        final BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (String line: text) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Return the number of characters in the text, counting the newlines.
+     */
+    public static long length(List<String> text) {
+        long result = 0;
+        for (String line: text) {
+            result += line.length() + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Add one process of the VM traces.
+     */
+    private void makeProcess(ArrayList<String> result, int pid, String cmd, int threads,
+            boolean deadlock) {
+        result.add("");
+        result.add("----- pid " + pid + " at 2016-05-01 12:00:00 -----");
+        result.add("Cmd line: " + cmd);
+        result.add("");
+        result.add("DALVIK THREADS (" + threads + "):");
+        for (int t=1; t<=threads; t++) {
+            final String name = t == 1 ? "main"
+                    : (t % 3 == 0 ? "Binder:" + pid + "_" + t : "Thread-" + t);
+            result.add("\"" + name + "\" prio=5 tid=" + t + " "
+                    + THREAD_STATES[mRandom.nextInt(THREAD_STATES.length)]);
+            result.add("  | group=\"main\" sCount=1 dsCount=0 obj=0x75 self=0x7f");
+            result.add("  | sysTid=" + (pid + t) + " nice=-2 cgrp=default sched=0/0"
+                    + " handle=0x7f");
+            result.add("  | state=" + "RSD".charAt(mRandom.nextInt(3))
+                    + " schedstat=( 0 0 0 ) utm=1 stm=1 core=0 HZ=100");
+            result.add("  | held mutexes=");
+            result.add("  kernel: __switch_to+0x8c/0xa0");
+            result.add("  kernel: (couldn't read /proc/self/task/" + (pid + t) + "/stack)");
+            result.add("  native: #00 pc 0000000000069be4  /system/lib64/libc.so"
+                    + " (__epoll_pwait+8)");
+            result.add("  native: #01 pc 000000000001a3f4  /system/lib64/libutils.so (???)");
+            result.add("  #02 pc 00000000000aa0f4  /system/lib64/libandroid_runtime.so");
+            if (t % 3 == 0) {
+                result.add("  at android.os.BinderProxy.transactNative(Native method)");
+                result.add("  at android.os.BinderProxy.transact(Binder.java:615)");
+                result.add("  at android.app.IActivityManager$Stub$Proxy.getTasks"
+                        + "(IActivityManager.java:100)");
+            }
+            if (deadlock && (t == 1 || t == 2)) {
+                final int other = t == 1 ? 2 : 1;
+                result.add("  at com.foo.Locker.lock" + t + "(Locker.java:" + (10 + t) + ")");
+                result.add(String.format("  - waiting to lock <0x0000%04x> (a java.lang.Object)"
+                            + " held by thread %d", other, other));
+                result.add(String.format("  - locked <0x0000%04x> (a java.lang.Object)", t));
+            }
+            result.add("  at android.os.MessageQueue.nativePollOnce(Native method)");
+            result.add("  at android.os.MessageQueue.next(MessageQueue.java:323)");
+            result.add("  - waiting on <0x0a1b2c3d> (a android.os.MessageQueue)");
+            result.add("  at android.os.Looper.loop(Looper.java:" + (100 + mRandom.nextInt(100))
+                    + ")");
+            if (t % 3 == 0) {
+                result.add("  at android.app.ActivityManagerNative.onTransact"
+                        + "(ActivityManagerNative.java:100)");
+                result.add("  at android.os.Binder.execTransact(Binder.java:565)");
+            }
+            result.add("  at java.lang.Thread.run(Thread.java:761)");
+            result.add("");
+        }
+        result.add("\"Signal Catcher\" sysTid=" + (pid + 999));
+        result.add("  native: #00 pc 0000000000069be4  /system/lib64/libc.so"
+                + " (__epoll_pwait+8)");
+        result.add("");
+        result.add("\"jit\" prio=5 (not attached)");
+        result.add("  | sysTid=" + (pid + 998) + " nice=0");
+        result.add("  (no managed stack frames)");
+        result.add("");
+        result.add("----- end " + pid + " -----");
+    }
+
+    /**
+     * The second in the hour for line i of count, so they're spread evenly over it.
+     * Done in long, because i * 3600 doesn't fit in an int for big corpora.
+     */
+    private static int secondsInHour(int i, int count) {
+        return (int) ((long) i * 3600 / Math.max(count, 1));
+    }
+
+    /**
+     * Format a threadtime timestamp sec seconds after 11:50 on the day of the
+     * bugreport.
+     */
+    private static String makeTime(int sec, int ms) {
+        sec += 600;
+        return String.format("05-01 %02d:%02d:%02d.%03d", 11 + (sec / 3600), (sec / 60) % 60,
+                sec % 60, ms);
+    }
+}
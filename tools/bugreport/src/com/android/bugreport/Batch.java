@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport;
+
+import com.android.bugreport.anr.AnrSignature;
+import com.android.bugreport.anr.SignatureIndex;
+import com.android.bugreport.bugreport.BatchReport;
+import com.android.bugreport.bugreport.Bugreport;
+import com.android.bugreport.bugreport.BugreportParser;
+import com.android.bugreport.bugreport.Metrics;
+import com.android.bugreport.html.Renderer;
+import com.android.bugreport.inspector.Inspector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the tool over a whole directory (or list) of bugreports in one process.
+ *
+ * The bugreports are processed on a fixed size thread pool.  Each thread keeps its
+ * own parser and renderer, so those are only set up once per thread.  One html file
+ * is written for each bugreport that has an ANR, and index.html lists all of them.
+ */
+public class Batch {
+    /**
+     * The parser and renderer for one thread of the pool.
+     */
+    private static class Worker {
+        public final BugreportParser parser = new BugreportParser();
+        public final Renderer renderer = new Renderer();
+    }
+
+    private static final ThreadLocal<Worker> sWorker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Run the batch.
+     *
+     * @return the process exit code.
+     */
+    public static int run(final Options options) {
+        final ArrayList<File> files;
+        try {
+            files = findBugreports(options.batch);
+        } catch (IOException ex) {
+            System.err.println("Error reading batch file: " + options.batch);
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+
+        final File outDir = options.html;
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.err.println("Error creating output directory: " + outDir);
+            return 1;
+        }
+
+        final SignatureIndex signatures;
+        if (options.signatures != null) {
+            signatures = Main.openSignatures(options.signatures);
+            if (signatures == null) {
+                return 1;
+            }
+        } else {
+            signatures = null;
+        }
+
+        final int threads = options.threads > 0 ? options.threads
+                : Runtime.getRuntime().availableProcessors();
+        final long startTime = System.nanoTime();
+        final long startCpu = getProcessCpuTime();
+
+        // Queue them all up.
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ArrayList<Future<BatchReport>> futures = new ArrayList<Future<BatchReport>>();
+        final HashSet<String> htmlNames = new HashSet<String>();
+        htmlNames.add("index.html");
+        for (final File file: files) {
+            final File html = new File(outDir, makeHtmlName(file, htmlNames));
+            futures.add(executor.submit(new Callable<BatchReport>() {
+                        @Override
+                        public BatchReport call() {
+                            return process(file, html, options, signatures);
+                        }
+                    }));
+        }
+
+        // Collect the results, in the same order as the files.
+        final ArrayList<BatchReport> reports = new ArrayList<BatchReport>();
+        long cpuMs = 0;
+        try {
+            for (Future<BatchReport> future: futures) {
+                final BatchReport report = future.get();
+                reports.add(report);
+                cpuMs += report.cpuMs;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (signatures != null) {
+            // The counts as of the end of the batch.
+            for (BatchReport report: reports) {
+                if (report.signature != null) {
+                    report.clusterCount = signatures.get(report.signature.hash).count;
+                }
+            }
+            try {
+                signatures.close();
+            } catch (IOException ex) {
+                System.err.println("Error writing signature index: " + options.signatures);
+                System.err.println("Error: " + ex.getMessage());
+                return 1;
+            }
+        }
+
+        final long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+
+        // The whole process, if it can be had.  The reports only count their own
+        // threads, which misses the pool threads that --parallel parses on.
+        if (startCpu >= 0) {
+            cpuMs = (getProcessCpuTime() - startCpu) / 1000000;
+        }
+
+        // Write the index
+        final File index = new File(outDir, "index.html");
+        try {
+            new Renderer().renderIndex(index, reports, elapsedMs, cpuMs);
+        } catch (IOException ex) {
+            System.err.println("Error writing output file: " + index);
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+
+        System.err.println("Processed " + reports.size() + " bugreports on " + threads
+                + " threads in " + elapsedMs + "ms (" + cpuMs + "ms cpu)");
+        return 0;
+    }
+
+    /**
+     * Parse, inspect and render one bugreport, using this thread's Worker.  Never
+     * throws; problems are reported in BatchReport.error.
+     */
+    private static BatchReport process(File file, File html, Options options,
+            SignatureIndex signatures) {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final long startTime = System.nanoTime();
+        final long startCpu = threadBean.getCurrentThreadCpuTime();
+
+        final BatchReport report = new BatchReport();
+        report.bugreport = file;
+
+        final Worker worker = sWorker.get();
+        final Metrics metrics = options.metrics ? new Metrics() : null;
+        final Metrics.Stopwatch stopwatch = new Metrics.Stopwatch(
+                metrics != null ? metrics.stages : null);
+        try {
+            worker.parser.setMetrics(metrics);
+            final Bugreport bugreport = Main.parseBugreport(worker.parser, file, options);
+            bugreport.metrics = metrics;
+            stopwatch.lap("parse");
+
+            Inspector.inspect(bugreport);
+            stopwatch.lap("inspect");
+
+            if (bugreport.anr == null) {
+                report.error = "No anr";
+            } else {
+                report.anrProcess = bugreport.anr.processName;
+                report.anrReason = bugreport.anr.reason;
+                worker.renderer.render(html, bugreport);
+                report.html = html;
+                stopwatch.lap("render");
+
+                if (signatures != null) {
+                    final AnrSignature signature = AnrSignature.make(bugreport.anr);
+                    if (signature != null) {
+                        signatures.add(signature, file.getPath());
+                        report.signature = signature;
+                    }
+                    stopwatch.lap("signature");
+                }
+            }
+            if (!Main.writeMetrics(html, metrics) && report.error == null) {
+                report.error = "Error writing metrics";
+            }
+        } catch (IOException ex) {
+            report.error = "Error: " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            // One bad bugreport shouldn't stop the rest of the batch.
+            report.error = "Error: " + ex;
+        } catch (StackOverflowError ex) {
+            // Nor should one that's deep enough to overflow the stack.  The stack
+            // has unwound, so the next one can go on.
+            report.error = "Error: " + ex;
+        } catch (OutOfMemoryError ex) {
+            // Nor one that's too big to fit.  What it made is garbage now, but the
+            // parser and renderer could be left half way through, so this thread
+            // gets new ones.
+            sWorker.remove();
+            report.error = "Error: " + ex;
+        }
+
+        report.elapsedMs = (System.nanoTime() - startTime) / 1000000;
+        if (startCpu >= 0) {
+            report.cpuMs = (threadBean.getCurrentThreadCpuTime() - startCpu) / 1000000;
+        }
+        return report;
+    }
+
+    /**
+     * Return the cpu time used by the whole process in ns, or -1 if the JVM
+     * doesn't say.
+     */
+    private static long getProcessCpuTime() {
+        final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Return the bugreport files to process.  If batch is a directory, that's all
+     * of the .txt files in it.  Otherwise it's a file with one path per line.
+     * Blank lines and lines starting with '#' are skipped, and relative paths are
+     * relative to the directory that the file is in.
+     */
+    private static ArrayList<File> findBugreports(File batch) throws IOException {
+        final ArrayList<File> result = new ArrayList<File>();
+        if (batch.isDirectory()) {
+            final File[] files = batch.listFiles();
+            if (files == null) {
+                throw new IOException("Can't list directory");
+            }
+            Arrays.sort(files);
+            for (File file: files) {
+                if (file.isFile() && file.getName().endsWith(".txt")) {
+                    result.add(file);
+                }
+            }
+        } else {
+            final BufferedReader in = new BufferedReader(new FileReader(batch));
+            try {
+                String text;
+                while ((text = in.readLine()) != null) {
+                    text = text.trim();
+                    if (text.length() == 0 || text.startsWith("#")) {
+                        continue;
+                    }
+                    File file = new File(text);
+                    if (!file.isAbsolute()) {
+                        file = new File(batch.getAbsoluteFile().getParentFile(), text);
+                    }
+                    result.add(file);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make a name for the html file for the bugreport that isn't in names
+     * already, and add it.
+     */
+    private static String makeHtmlName(File file, HashSet<String> names) {
+        String base = file.getName();
+        final int dot = base.lastIndexOf('.');
+        if (dot > 0) {
+            base = base.substring(0, dot);
+        }
+        String name = base + ".html";
+        for (int i=2; !names.add(name); i++) {
+            name = base + "-" + i + ".html";
+        }
+        return name;
+    }
+}
@@ -16,17 +16,26 @@
 
 package com.android.bugreport;
 
+import com.android.bugreport.anr.Anr;
+import com.android.bugreport.anr.AnrSignature;
+import com.android.bugreport.anr.SignatureIndex;
 import com.android.bugreport.bugreport.Bugreport;
+import com.android.bugreport.bugreport.BugreportCache;
 import com.android.bugreport.bugreport.BugreportParser;
+import com.android.bugreport.bugreport.Metrics;
 import com.android.bugreport.html.Renderer;
 import com.android.bugreport.inspector.Inspector;
+import com.android.bugreport.logcat.Logcat;
+import com.android.bugreport.logcat.LogcatMerger;
 import com.android.bugreport.logcat.LogcatParser;
 import com.android.bugreport.monkey.MonkeyLogParser;
 import com.android.bugreport.util.Lines;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Main entry point.
@@ -60,62 +69,143 @@ public class Main {
      */
     private static int usage() {
         System.err.println("usage: bugreport --monkey MONKEYLOG --html HTML --logcat SYSTEMLOG"
-                + " BUGREPORT\n");
+                + " [--parallel|--stream] [--cache DIR] [--metrics] [--signatures INDEX]"
+                + " BUGREPORT\n"
+                + "       bugreport --batch DIR|MANIFEST --html OUTDIR [--threads N]"
+                + " [--parallel|--stream] [--cache DIR] [--metrics] [--signatures INDEX]\n"
+                + "       bugreport --tail LOGCAT [--poll MS]\n"
+                + "       bugreport --signatures INDEX\n");
         return 1;
     }
 
+    /**
+     * Parse the bugreport file, or load it from the cache if there is one.
+     */
+    static Bugreport parseBugreport(BugreportParser parser, File file, Options options)
+            throws IOException {
+        BugreportCache cache = null;
+        File cacheFile = null;
+        if (options.cache != null) {
+            cache = new BugreportCache(options.cache);
+            cacheFile = cache.getCacheFile(file);
+            try {
+                final Bugreport bugreport = cache.load(cacheFile);
+                if (bugreport != null) {
+                    return bugreport;
+                }
+            } catch (IOException ex) {
+                System.err.println("Ignoring bad cache file: " + cacheFile);
+                System.err.println("Error: " + ex.getMessage());
+            }
+        }
+
+        final Bugreport bugreport;
+        if (options.stream) {
+            bugreport = parser.parse(file);
+        } else if (options.parallel) {
+            bugreport = parser.parse(Lines.mapLines(file), ForkJoinPool.commonPool());
+        } else {
+            bugreport = parser.parse(Lines.mapLines(file));
+        }
+
+        if (cache != null) {
+            try {
+                cache.save(cacheFile, bugreport);
+            } catch (IOException ex) {
+                System.err.println("Error writing cache file: " + cacheFile);
+                System.err.println("Error: " + ex.getMessage());
+            }
+        }
+        return bugreport;
+    }
+
     /**
      * Run the tool with the given files.
      *
      * @return the process exit code.
      */
     public static int run(Options options) {
+        if (options.tail != null) {
+            return Tail.run(options);
+        }
+        if (options.batch != null) {
+            return Batch.run(options);
+        }
+        if (options.bugreport == null) {
+            return listSignatures(options.signatures);
+        }
+
         Bugreport bugreport = null;
+        final Metrics metrics = options.metrics ? new Metrics() : null;
+        final Metrics.Stopwatch stopwatch = new Metrics.Stopwatch(
+                metrics != null ? metrics.stages : null);
 
         // Parse bugreport file
         try {
             final BugreportParser parser = new BugreportParser();
-            bugreport = parser.parse(Lines.readLines(options.bugreport));
+            parser.setMetrics(metrics);
+            bugreport = parseBugreport(parser, options.bugreport, options);
         } catch (IOException ex) {
             System.err.println("Error reading monkey file: " + options.bugreport);
             System.err.println("Error: " + ex.getMessage());
             return 1;
         }
+        // Also when it came from the cache.
+        bugreport.metrics = metrics;
+        stopwatch.lap("parse");
 
         // Also parse the monkey log if we have one. That parser will merge
         // into the Bugreport we already parsed.
         if (options.monkey != null) {
             try {
                 final MonkeyLogParser parser = new MonkeyLogParser();
-                parser.parse(bugreport, Lines.readLines(options.monkey));
+                parser.parse(bugreport, options.monkey);
             } catch (IOException ex) {
-                System.err.println("Error reading bugreport file: " + options.bugreport);
+                System.err.println("Error reading monkey file: " + options.monkey);
                 System.err.println("Error: " + ex.getMessage());
                 return 1;
             }
+            if (bugreport.monkeyAnrs.size() > 1) {
+                System.err.println(bugreport.monkeyAnrs.size() + " ANRs in the monkey file."
+                        + "  Using the first one" + (options.signatures != null
+                                ? ", and adding all of them to the signature index." : "."));
+            }
+            stopwatch.lap("monkey");
         }
 
-        // Also parse the logcat if we have one. That parser will merge
-        // into the Bugreport we already parsed.
-        if (options.logcat != null) {
-            try {
-                final LogcatParser parser = new LogcatParser();
-                bugreport.logcat = parser.parse(Lines.readLines(options.logcat));
-            } catch (IOException ex) {
-                System.err.println("Error reading bugreport file: " + options.bugreport);
-                System.err.println("Error: " + ex.getMessage());
-                return 1;
+        // Also parse the logcats if we have any. They are merged, and used instead
+        // of the ones in the Bugreport we already parsed.
+        if (options.logcat.size() > 0) {
+            final LogcatParser parser = new LogcatParser();
+            final LogcatMerger merger = new LogcatMerger();
+            Logcat logcat = null;
+            for (File file: options.logcat) {
+                try {
+                    logcat = parser.parse(Lines.mapLines(file));
+                    merger.add(logcat, null);
+                } catch (IOException ex) {
+                    System.err.println("Error reading logcat file: " + file);
+                    System.err.println("Error: " + ex.getMessage());
+                    return 1;
+                }
             }
+            if (options.logcat.size() == 1) {
+                bugreport.logcat = logcat;
+            } else {
+                bugreport.logcat = merger.merge(1, null);
+            }
+            stopwatch.lap("logcat");
         }
 
         // Inspect the Failure and see if we can figure out what's going on.
         // Fills in the additional fields in the Anr object.
         Inspector.inspect(bugreport);
+        stopwatch.lap("inspect");
 
         // For now, since all we do is ANRs, just bail out if there wasn't one.
         if (bugreport.anr == null) {
             System.err.println("No anr!");
-            return 0;
+            return writeMetrics(options.html, metrics) ? 0 : 1;
         }
 
         // Write the html
@@ -127,8 +217,113 @@ public class Main {
             System.err.println("Error: " + ex.getMessage());
             return 1;
         }
+        stopwatch.lap("render");
+
+        // Add it to the signature index, and say which cluster it's in.
+        if (options.signatures != null) {
+            final SignatureIndex index = openSignatures(options.signatures);
+            if (index == null) {
+                return 1;
+            }
+            try {
+                final AnrSignature signature = AnrSignature.make(bugreport.anr);
+                if (signature == null) {
+                    System.err.println("No traces for the main thread, so no signature");
+                } else {
+                    final SignatureIndex.Cluster cluster = index.add(signature,
+                            options.bugreport.getPath());
+                    System.err.println("Signature " + signature.getHashString() + ": "
+                            + cluster.count + " so far, first " + cluster.firstReport);
+                }
 
+                // The monkey's other ANRs go in the index too, so they get counted.
+                for (Anr anr: bugreport.monkeyAnrs) {
+                    if (anr == bugreport.anr) {
+                        continue;
+                    }
+                    final AnrSignature other = AnrSignature.make(anr);
+                    if (other != null) {
+                        index.add(other, options.bugreport.getPath());
+                    }
+                }
+                index.close();
+            } catch (IOException ex) {
+                System.err.println("Error writing signature index: " + options.signatures);
+                System.err.println("Error: " + ex.getMessage());
+                return 1;
+            } finally {
+                // Already closed, unless something went wrong.
+                try {
+                    index.close();
+                } catch (IOException ex) {
+                }
+            }
+            stopwatch.lap("signature");
+        }
+
+        return writeMetrics(options.html, metrics) ? 0 : 1;
+    }
+
+    /**
+     * Open the signature index.  Returns null, after saying why, if it can't be.
+     */
+    static SignatureIndex openSignatures(File file) {
+        try {
+            return new SignatureIndex(file);
+        } catch (IOException ex) {
+            System.err.println("Error reading signature index: " + file);
+            System.err.println("Error: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Print the clusters in the signature index, biggest first.
+     *
+     * @return the process exit code.
+     */
+    private static int listSignatures(File file) {
+        // Only read, so a typo doesn't make a new file, and a batch that's adding
+        // to it doesn't have its last record cut off.
+        final SignatureIndex index;
+        try {
+            index = SignatureIndex.read(file);
+        } catch (IOException ex) {
+            System.err.println("Error reading signature index: " + file);
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+        for (SignatureIndex.Cluster cluster: index.getClusters()) {
+            System.out.println(AnrSignature.toHashString(cluster.hash) + "  " + cluster.count
+                    + "  first " + cluster.firstReport + "  last " + cluster.lastReport);
+            for (String line: cluster.text.split("\n")) {
+                System.out.println("    " + line);
+            }
+        }
+        try {
+            index.close();
+        } catch (IOException ex) {
+        }
         return 0;
     }
+
+    /**
+     * Write the metrics next to the html file, if there are any.  Returns false if
+     * that failed.
+     */
+    static boolean writeMetrics(File html, Metrics metrics) {
+        if (metrics == null) {
+            return true;
+        }
+        final File file = Metrics.getMetricsFile(html);
+        try {
+            metrics.write(file);
+            return true;
+        } catch (IOException ex) {
+            System.err.println("Error writing metrics file: " + file);
+            System.err.println("Error: " + ex.getMessage());
+            return false;
+        }
+    }
 }
 
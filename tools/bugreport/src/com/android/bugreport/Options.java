@@ -19,6 +19,7 @@ package com.android.bugreport;
 import com.android.bugreport.util.ArgParser;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Class to encapsulate the command line arguments.
@@ -57,17 +58,68 @@ public class Options {
     public File monkey;
 
     /**
-     * The logcat file to parse.
+     * The logcat files to parse.
      *
-     * Will be used instead of the "SYSTEM LOG" section of the bugreport.
+     * Will be used instead of the log sections of the bugreport.  If there is more
+     * than one, they are merged by timestamp.
      */
-    public File logcat;
+    public ArrayList<File> logcat = new ArrayList<File>();
 
     /**
      * The html file to output.
      */
     public File html;
 
+    /**
+     * Whether to parse the sections of the bugreport in parallel.
+     */
+    public boolean parallel;
+
+    /**
+     * Whether to read the bugreport one line at a time instead of mapping it, so
+     * only the lines of the sections that are parsed are held in memory.
+     */
+    public boolean stream;
+
+    /**
+     * The directory to cache parsed bugreports in, or null not to.
+     */
+    public File cache;
+
+    /**
+     * A directory of bugreports, or a file listing them one per line, to process
+     * in one run.  When this is set, html is the directory to write to.
+     */
+    public File batch;
+
+    /**
+     * The number of bugreports to process at once in batch mode.  If 0, one per
+     * processor.
+     */
+    public int threads;
+
+    /**
+     * Whether to write out how long each part of the processing took, next to the
+     * html.
+     */
+    public boolean metrics;
+
+    /**
+     * A logcat file that is still being written, to watch for ANRs.
+     */
+    public File tail;
+
+    /**
+     * How often to check the tail file for new lines, in milliseconds.
+     */
+    public int pollMs = 1000;
+
+    /**
+     * The signature index file to add the ANR of each bugreport to, or null not to.
+     * If there is no bugreport, the clusters in it are listed instead.
+     */
+    public File signatures;
+
     /**
      * Parse the arguments.
      *
@@ -94,16 +146,112 @@ public class Options {
                 }
                 result.html = new File(argParser.nextData());
             } else if ("--logcat".equals(flag)) {
-                if (result.logcat != null || !argParser.hasData(1)) {
+                if (!argParser.hasData(1)) {
                     return new Options(args, argParser.pos(),
                             "--logcat flag requires an argument");
                 }
-                result.logcat = new File(argParser.nextData());
+                result.logcat.add(new File(argParser.nextData()));
+            } else if ("--parallel".equals(flag)) {
+                result.parallel = true;
+            } else if ("--stream".equals(flag)) {
+                result.stream = true;
+            } else if ("--metrics".equals(flag)) {
+                result.metrics = true;
+            } else if ("--cache".equals(flag)) {
+                if (result.cache != null || !argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--cache flag requires an argument");
+                }
+                result.cache = new File(argParser.nextData());
+            } else if ("--batch".equals(flag)) {
+                if (result.batch != null || !argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--batch flag requires an argument");
+                }
+                result.batch = new File(argParser.nextData());
+            } else if ("--signatures".equals(flag)) {
+                if (result.signatures != null || !argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--signatures flag requires an argument");
+                }
+                result.signatures = new File(argParser.nextData());
+            } else if ("--tail".equals(flag)) {
+                if (result.tail != null || !argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--tail flag requires an argument");
+                }
+                result.tail = new File(argParser.nextData());
+            } else if ("--poll".equals(flag)) {
+                if (!argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--poll flag requires an argument");
+                }
+                try {
+                    result.pollMs = Integer.parseInt(argParser.nextData());
+                } catch (NumberFormatException ex) {
+                    result.pollMs = -1;
+                }
+                if (result.pollMs <= 0) {
+                    return new Options(args, argParser.pos(),
+                            "--poll flag requires a positive number");
+                }
+            } else if ("--threads".equals(flag)) {
+                if (!argParser.hasData(1)) {
+                    return new Options(args, argParser.pos(),
+                            "--threads flag requires an argument");
+                }
+                try {
+                    result.threads = Integer.parseInt(argParser.nextData());
+                } catch (NumberFormatException ex) {
+                    result.threads = -1;
+                }
+                if (result.threads <= 0) {
+                    return new Options(args, argParser.pos(),
+                            "--threads flag requires a positive number");
+                }
             } else {
                 return new Options(args, argParser.pos(),
                         "Unknown flag: " + flag);
             }
         }
+        if (result.parallel && result.stream) {
+            return new Options(args, argParser.pos(),
+                    "--parallel and --stream can't be used together");
+        }
+        if (result.tail != null) {
+            // None of these mean anything to the tail, so don't let them look like
+            // they do.
+            if (result.batch != null || result.html != null || result.monkey != null
+                    || result.logcat.size() != 0 || result.metrics
+                    || result.signatures != null || result.cache != null || result.parallel
+                    || result.stream || result.threads != 0) {
+                return new Options(args, argParser.pos(),
+                        "--tail can only be used with --poll");
+            }
+            if (argParser.remaining() != 0) {
+                return new Options(args, argParser.pos(),
+                        "bugreport file name not allowed with --tail");
+            }
+            return result;
+        }
+        if (result.batch != null) {
+            if (result.monkey != null || result.logcat.size() != 0) {
+                return new Options(args, argParser.pos(),
+                        "--monkey and --logcat can't be used with --batch");
+            }
+            if (result.html == null) {
+                return new Options(args, argParser.pos(),
+                        "--batch requires --html for the output directory");
+            }
+            if (argParser.remaining() != 0) {
+                return new Options(args, argParser.pos(),
+                        "bugreport file name not allowed with --batch");
+            }
+            return result;
+        }
+        if (result.signatures != null && argParser.remaining() == 0) {
+            return result;
+        }
         if ((!argParser.hasData(1)) || argParser.remaining() != 1) {
             return new Options(args, argParser.pos(),
                     "bugreport file name required");
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport;
+
+import com.android.bugreport.inspector.LiveInspector;
+import com.android.bugreport.logcat.LogcatTailer;
+import com.android.bugreport.logcat.LogLine;
+import com.android.bugreport.util.Line;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Watches a logcat file while it is still being written, like during a long monkey
+ * or soak run, and prints a short triage report for each ANR as it happens.
+ *
+ * Runs until it's killed.  On the way out, like for ^C, an ANR that is still
+ * waiting for the rest of its lines is printed with what it has.
+ */
+public class Tail {
+    /**
+     * The number of recent log lines to keep.
+     */
+    private static final int RECENT_LINES = 20000;
+
+    /**
+     * The most to read from the file in one poll, so catching up on a long file
+     * doesn't hold it all at once.
+     */
+    private static final int MAX_BYTES_PER_POLL = 4 * 1024 * 1024;
+
+    /**
+     * The most log lines from the anr region to print.
+     */
+    private static final int MAX_REGION_LINES = 50;
+
+    /**
+     * Run the tail.
+     *
+     * @return the process exit code.
+     */
+    public static int run(Options options) {
+        final PrintStream out = System.out;
+        final LiveInspector inspector = new LiveInspector(RECENT_LINES,
+                new LiveInspector.Listener() {
+                    @Override
+                    public void onAnr(LiveInspector.Triage triage) {
+                        printTriage(out, triage);
+                    }
+                });
+
+        // SIGINT doesn't interrupt this thread, it just runs the shutdown hooks.
+        // The inspector is the lock, so the hook doesn't flush in the middle of
+        // addLines.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (inspector) {
+                            inspector.flush();
+                        }
+                        out.flush();
+                    }
+                });
+
+        final LogcatTailer tailer = new LogcatTailer(options.tail, MAX_BYTES_PER_POLL);
+        try {
+            while (true) {
+                final ArrayList<Line> lines = tailer.poll();
+                synchronized (inspector) {
+                    inspector.addLines(lines);
+                }
+
+                // Don't wait if it's still catching up.
+                if (lines.size() == 0) {
+                    Thread.sleep(options.pollMs);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Error reading logcat file: " + options.tail);
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        } catch (InterruptedException ex) {
+            synchronized (inspector) {
+                inspector.flush();
+            }
+            return 0;
+        } finally {
+            try {
+                tailer.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Print the report for one ANR.
+     */
+    private static void printTriage(PrintStream out, LiveInspector.Triage triage) {
+        out.println("ANR in " + triage.anr.processName + " (pid " + triage.anr.pid + ")");
+        if (triage.anr.reason != null) {
+            out.println("  Reason: " + triage.anr.reason);
+        }
+        out.println("  " + triage.anrLines.get(0).rawText);
+
+        out.println("  Interesting log lines:");
+        for (LogLine line: triage.interestingLines) {
+            out.println("    " + line.rawText);
+        }
+
+        final int N = triage.regionLines.size();
+        out.println("  Log lines while it was not responding (" + N + "):");
+        if (N > MAX_REGION_LINES) {
+            out.println("    ... " + (N - MAX_REGION_LINES) + " more before these");
+        }
+        for (int i=Math.max(0, N-MAX_REGION_LINES); i<N; i++) {
+            out.println("    " + triage.regionLines.get(i).rawText);
+        }
+        out.println();
+        out.flush();
+    }
+}
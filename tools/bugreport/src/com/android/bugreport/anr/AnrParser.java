@@ -97,7 +97,8 @@ public class AnrParser {
             } else if (Utils.matches(beginProcessRe, text)) {
                 if (tryTraces && anr != null) {
                     lines.rewind();
-                    ProcessSnapshotParser parser = new ProcessSnapshotParser(); 
+                    ProcessSnapshotParser parser
+                            = new ProcessSnapshotParser(anr.vmTraces.stacks);
                     final ProcessSnapshot snapshot = parser.parse(lines);
                     if (snapshot != null) {
                         anr.vmTraces.processes.add(snapshot);
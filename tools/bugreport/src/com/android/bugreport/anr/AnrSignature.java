@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.anr;
+
+import com.android.bugreport.stacks.JavaStackFrameSnapshot;
+import com.android.bugreport.stacks.LockSnapshot;
+import com.android.bugreport.stacks.ProcessSnapshot;
+import com.android.bugreport.stacks.StackFrameSnapshot;
+import com.android.bugreport.stacks.ThreadSnapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+/**
+ * What an ANR was stuck on, boiled down so that ANRs from different bugreports with
+ * the same cause come out the same.
+ *
+ * It's made from the main thread of the process that was not responding, after the
+ * Inspector has run: the process name, the top java frames without line numbers,
+ * the binder call it was making, and which thread holds the lock it was blocked on.
+ * Anything that changes from run to run, like tids, lock addresses and the numbers
+ * in thread and lambda names, is left out.
+ */
+public class AnrSignature {
+    /**
+     * Change this when the text of signatures changes, because the old ones won't
+     * match the new ones any more.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * How many java frames of the main thread to use.
+     */
+    public static final int MAX_FRAMES = 8;
+
+    private static final Pattern DIGITS_RE = Pattern.compile("\\d+");
+    private static final Pattern LAMBDA_RE = Pattern.compile("Lambda\\$\\d+");
+
+    /**
+     * The normalized text, one part per line.
+     */
+    public final String text;
+
+    /**
+     * The first 64 bits of the SHA-256 of the text.
+     */
+    public final long hash;
+
+    /**
+     * Constructor.
+     */
+    public AnrSignature(String text) {
+        this.text = text;
+        this.hash = hash(text);
+    }
+
+    /**
+     * Make the signature of an inspected ANR.  Returns null if there are no traces
+     * for the main thread of its process.
+     */
+    public static AnrSignature make(Anr anr) {
+        if (anr.vmTraces == null) {
+            return null;
+        }
+        final ProcessSnapshot process = anr.vmTraces.getProcess(anr.pid);
+        if (process == null) {
+            return null;
+        }
+        final ThreadSnapshot main = process.getThread("main");
+        if (main == null) {
+            return null;
+        }
+
+        final StringBuilder text = new StringBuilder();
+        text.append("process: ").append(anr.processName).append('\n');
+
+        // Top frames
+        int count = 0;
+        for (StackFrameSnapshot frame: main.frames) {
+            if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_JAVA) {
+                text.append("frame: ");
+                appendFrame(text, (JavaStackFrameSnapshot)frame);
+                text.append('\n');
+                count++;
+                if (count >= MAX_FRAMES) {
+                    break;
+                }
+            }
+        }
+
+        // Binder target
+        if (main.outboundBinderClass != null) {
+            text.append("binder: ");
+            appendClass(text, main.outboundBinderPackage, main.outboundBinderClass);
+            text.append('.').append(main.outboundBinderMethod).append('\n');
+        }
+
+        // Lock owner.  Sorted, because the locks are in a HashMap.
+        final ArrayList<String> lockLines = new ArrayList<String>();
+        for (LockSnapshot lock: main.locks.values()) {
+            if ((lock.type & LockSnapshot.BLOCKED) == 0) {
+                continue;
+            }
+            final StringBuilder line = new StringBuilder();
+            line.append("lock: ");
+            appendClass(line, lock.packageName, lock.className);
+            final ThreadSnapshot owner = process.getThread(lock.threadId);
+            if (owner != null) {
+                line.append(" held by ").append(normalizeName(owner.name));
+                for (StackFrameSnapshot frame: owner.frames) {
+                    if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_JAVA) {
+                        line.append(" at ");
+                        appendFrame(line, (JavaStackFrameSnapshot)frame);
+                        break;
+                    }
+                }
+            }
+            lockLines.add(line.toString());
+        }
+        Collections.sort(lockLines);
+        for (String line: lockLines) {
+            text.append(line).append('\n');
+        }
+
+        return new AnrSignature(text.toString());
+    }
+
+    /**
+     * Return the hash as 16 hex digits.
+     */
+    public String getHashString() {
+        return toHashString(hash);
+    }
+
+    /**
+     * Return a hash as 16 hex digits.
+     */
+    public static String toHashString(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * Append the frame's method, without the source file and line, which change
+     * from build to build.
+     */
+    private static void appendFrame(StringBuilder text, JavaStackFrameSnapshot frame) {
+        appendClass(text, frame.packageName,
+                LAMBDA_RE.matcher(frame.className).replaceAll("Lambda\\$#"));
+        text.append('.').append(frame.methodName);
+    }
+
+    /**
+     * Append the class name, with its package if it has one.
+     */
+    private static void appendClass(StringBuilder text, String packageName,
+            String className) {
+        if (packageName != null) {
+            text.append(packageName).append('.');
+        }
+        text.append(className);
+    }
+
+    /**
+     * Replace the numbers in a thread name, like "Binder:1234_5", with '#'.
+     */
+    private static String normalizeName(String name) {
+        if (name == null) {
+            return "?";
+        }
+        return DIGITS_RE.matcher(name).replaceAll("#");
+    }
+
+    private static long hash(String text) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        final byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+        long result = 0;
+        for (int i=0; i<8; i++) {
+            result = (result << 8) | (bytes[i] & 0xff);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.anr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An index of the AnrSignatures of all the bugreports that have been triaged, kept
+ * in a file across runs.  ANRs with the same signature are in the same cluster, and
+ * the index knows how many there have been of each without the old bugreports
+ * being parsed again.
+ *
+ * The file is only ever appended to.  It starts with the format and signature
+ * versions, followed by a record for each cluster, when it's first seen, and a
+ * record for each bugreport.  It's read into a HashMap by hash when opened, so
+ * looking up a signature doesn't depend on how many there are.  Each record is
+ * appended with one write.  A record that was cut off by a crash while it was being
+ * written is dropped when the file is opened for writing.
+ *
+ * Thread safe, so a batch can share one.  Two processes must not have the same
+ * file open for writing at once.  One opened with read() never changes the file,
+ * so it can look at one that is being written, and skips a record that isn't
+ * finished yet.
+ */
+public class SignatureIndex implements Closeable {
+    /**
+     * The first int of the file.
+     */
+    private static final int MAGIC = 0x41534931; // "ASI1"
+
+    /**
+     * Change this when the layout of the file changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int RECORD_CLUSTER = 1;
+    private static final int RECORD_REPORT = 2;
+
+    /**
+     * The ANRs with one signature.
+     */
+    public static class Cluster {
+        /**
+         * The signature hash.
+         */
+        public final long hash;
+
+        /**
+         * The signature text.
+         */
+        public final String text;
+
+        /**
+         * The number of bugreports that have been added with this signature.
+         */
+        public int count;
+
+        /**
+         * The first and last bugreports added, and when, in ms since the epoch.
+         */
+        public String firstReport;
+        public long firstTime;
+        public String lastReport;
+        public long lastTime;
+
+        public Cluster(long hash, String text) {
+            this.hash = hash;
+            this.text = text;
+        }
+    }
+
+    private final File mFile;
+    private final HashMap<Long,Cluster> mClusters = new HashMap<Long,Cluster>();
+
+    /**
+     * The file to append to, or null if this was opened with read() or closed.
+     */
+    private FileOutputStream mOut;
+
+    /**
+     * The length of the file up to the end of the last complete record.
+     */
+    private long mLength;
+
+    /**
+     * Open the index for adding to, creating the file if it doesn't exist yet.
+     */
+    public SignatureIndex(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * Open the index just to look at it.  The file must already exist, and it isn't
+     * changed, even if it ends with a partial record.  Calling add() on it throws.
+     */
+    public static SignatureIndex read(File file) throws IOException {
+        return new SignatureIndex(file, false);
+    }
+
+    private SignatureIndex(File file, boolean writable) throws IOException {
+        mFile = file;
+
+        if (!writable) {
+            if (!file.isFile()) {
+                throw new IOException("No signature index: " + file);
+            }
+            load();
+            return;
+        }
+
+        long goodLength = 0;
+        if (file.isFile()) {
+            goodLength = load();
+            if (goodLength < file.length()) {
+                System.err.println("Dropping partial record at end of signature index: "
+                        + file);
+            }
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Drop a record that was cut off, so the next one starts in the right place.
+            raf.setLength(goodLength);
+        } finally {
+            raf.close();
+        }
+
+        mOut = new FileOutputStream(file, true);
+        mLength = goodLength;
+        if (goodLength == 0) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.writeInt(AnrSignature.VERSION);
+            try {
+                append(bytes.toByteArray());
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Read the file into mClusters.  Returns the length of the complete records,
+     * or 0 if the file is empty.
+     */
+    private long load() throws IOException {
+        final byte[] bytes = Files.readAllBytes(mFile.toPath());
+        if (bytes.length == 0) {
+            return 0;
+        }
+        final ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+        final DataInputStream in = new DataInputStream(buffer);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a signature index: " + mFile);
+            }
+            if (in.readInt() != AnrSignature.VERSION) {
+                throw new IOException("Signature index is from another version: " + mFile);
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Not a signature index: " + mFile);
+        }
+
+        long goodLength = bytes.length - buffer.available();
+        try {
+            while (buffer.available() > 0) {
+                final int type = in.readByte();
+                final long hash = in.readLong();
+                if (type == RECORD_CLUSTER) {
+                    final String text = in.readUTF();
+                    mClusters.put(hash, new Cluster(hash, text));
+                } else if (type == RECORD_REPORT) {
+                    final long time = in.readLong();
+                    final String report = in.readUTF();
+                    final Cluster cluster = mClusters.get(hash);
+                    if (cluster == null) {
+                        throw new IOException("Report before its cluster in signature index: "
+                                + mFile);
+                    }
+                    addReport(cluster, report, time);
+                } else {
+                    throw new IOException("Bad record in signature index: " + mFile);
+                }
+                goodLength = bytes.length - buffer.available();
+            }
+        } catch (EOFException ex) {
+            // The rest is a record that was cut off, or that is still being written.
+        }
+        return goodLength;
+    }
+
+    /**
+     * Add a bugreport with the given signature, and return its cluster.  The
+     * cluster is made if this is the first one.
+     */
+    public synchronized Cluster add(AnrSignature signature, String report) throws IOException {
+        final long time = System.currentTimeMillis();
+        Cluster cluster = mClusters.get(signature.hash);
+
+        // Make the whole thing first, so if it can't be written (like if writeUTF
+        // finds it's too long), none of it is.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        if (cluster == null) {
+            record.writeByte(RECORD_CLUSTER);
+            record.writeLong(signature.hash);
+            record.writeUTF(signature.text);
+        }
+        record.writeByte(RECORD_REPORT);
+        record.writeLong(signature.hash);
+        record.writeLong(time);
+        record.writeUTF(report);
+        append(bytes.toByteArray());
+
+        // Only once it's in the file.
+        if (cluster == null) {
+            cluster = new Cluster(signature.hash, signature.text);
+            mClusters.put(signature.hash, cluster);
+        }
+        addReport(cluster, report, time);
+        return cluster;
+    }
+
+    /**
+     * Append the records to the file in one write, so they're there even if this
+     * process dies.  If the write fails, the file is cut back to where it was, so
+     * part of a record isn't left in front of the next one.
+     */
+    private void append(byte[] records) throws IOException {
+        if (mOut == null) {
+            throw new IOException("Signature index isn't open for writing: " + mFile);
+        }
+        try {
+            mOut.write(records);
+        } catch (IOException ex) {
+            try {
+                mOut.getChannel().truncate(mLength);
+            } catch (IOException e) {
+            }
+            throw ex;
+        }
+        mLength += records.length;
+    }
+
+    /**
+     * Return the cluster for the hash, or null if there isn't one.  The cluster
+     * must not be changed.
+     */
+    public synchronized Cluster get(long hash) {
+        return mClusters.get(hash);
+    }
+
+    /**
+     * Return all of the clusters, biggest first.
+     */
+    public synchronized ArrayList<Cluster> getClusters() {
+        final ArrayList<Cluster> result = new ArrayList<Cluster>(mClusters.values());
+        Collections.sort(result, new Comparator<Cluster>() {
+                @Override
+                public int compare(Cluster a, Cluster b) {
+                    if (a.count != b.count) {
+                        return a.count > b.count ? -1 : 1;
+                    }
+                    return Long.compare(a.firstTime, b.firstTime);
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Close the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private static void addReport(Cluster cluster, String report, long time) {
+        if (cluster.count == 0) {
+            cluster.firstReport = report;
+            cluster.firstTime = time;
+        }
+        cluster.lastReport = report;
+        cluster.lastTime = time;
+        cluster.count++;
+    }
+}
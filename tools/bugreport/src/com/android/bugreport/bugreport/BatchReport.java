@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.bugreport;
+
+import com.android.bugreport.anr.AnrSignature;
+
+import java.io.File;
+
+/**
+ * The result of processing one bugreport in a batch run.  One of these is an entry
+ * in the batch's index.html.
+ */
+public class BatchReport {
+    /**
+     * The bugreport file.
+     */
+    public File bugreport;
+
+    /**
+     * The html file that was written, or null if there wasn't one.
+     */
+    public File html;
+
+    /**
+     * Why there isn't an html file, or null if there is.
+     */
+    public String error;
+
+    /**
+     * The process and reason of the ANR, if one was found.
+     */
+    public String anrProcess;
+    public String anrReason;
+
+    /**
+     * The signature of the ANR, and how many bugreports in the signature index
+     * have it, if there is an index.
+     */
+    public AnrSignature signature;
+    public int clusterCount;
+
+    /**
+     * How long it took, and how much cpu its thread used.  With --parallel, the
+     * sections that were parsed on other threads aren't in cpuMs.
+     */
+    public long elapsedMs;
+    public long cpuMs;
+}
@@ -56,6 +56,11 @@ public class Bugreport {
      */
     public Anr monkeyAnr;
 
+    /**
+     * All of the ANRs found in a monkey report, in order.  The first one is monkeyAnr.
+     */
+    public ArrayList<Anr> monkeyAnrs = new ArrayList<Anr>();
+
     /**
      * The merged logcat section of a bugreport.
      */
@@ -71,6 +76,11 @@ public class Bugreport {
      */
     public Logcat eventLog;
 
+    /**
+     * The 'RADIO LOG' section of a bugreport.
+     */
+    public Logcat radioLog;
+
     /**
      * The stack traces from the VM TRACES JUST NOW section.
      */
@@ -90,5 +100,11 @@ public class Bugreport {
      * The set of all known processes.  This is scraped from lots of sources.
      */
     public HashMap<Integer,ProcessInfo> allKnownProcesses = new HashMap<Integer,ProcessInfo>();
+
+    /**
+     * Where the time went while processing this bugreport, or null if that isn't
+     * being recorded.
+     */
+    public Metrics metrics;
 }
 
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.bugreport;
+
+import com.android.bugreport.logcat.Logcat;
+import com.android.bugreport.stacks.JavaStackFrameSnapshot;
+import com.android.bugreport.stacks.KernelStackFrameSnapshot;
+import com.android.bugreport.stacks.LockSnapshot;
+import com.android.bugreport.stacks.NativeFrameTable;
+import com.android.bugreport.stacks.NativeStackFrameSnapshot;
+import com.android.bugreport.stacks.ProcessSnapshot;
+import com.android.bugreport.stacks.StackFrameSnapshot;
+import com.android.bugreport.stacks.StackTrie;
+import com.android.bugreport.stacks.ThreadSnapshot;
+import com.android.bugreport.stacks.VmTraces;
+import com.android.bugreport.util.BinaryReader;
+import com.android.bugreport.util.BinaryWriter;
+import com.android.bugreport.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Map;
+
+/**
+ * An on-disk cache of parsed bugreports.
+ *
+ * The cache file for a bugreport is named by the SHA-256 of its contents, and holds
+ * what BugreportParser made from it: the metadata, the logcat sections and the vm
+ * traces.  Loading it skips the text parsing.  The file starts with the format and
+ * parser versions, and is ignored (and later replaced) if either one has changed.
+ *
+ * Only the results of parsing are cached.  The Bugreport must be saved before it's
+ * inspected.
+ */
+public class BugreportCache {
+    /**
+     * The first int of every cache file.
+     */
+    private static final int MAGIC = 0x42524331; // "BRC1"
+
+    /**
+     * Change this when the layout of the cache file changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final File mDir;
+
+    /**
+     * Constructor.  The directory is created when the first file is saved.
+     */
+    public BugreportCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Return the cache file for the bugreport.  Reads the whole bugreport to hash it.
+     */
+    public File getCacheFile(File bugreport) throws IOException {
+        return new File(mDir, hash(bugreport) + ".cache");
+    }
+
+    /**
+     * Load the Bugreport from the cache file.  Returns null if there isn't one,
+     * or it is from another version.
+     */
+    public Bugreport load(File cacheFile) throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        final BinaryReader in = new BinaryReader(cacheFile);
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                || in.readInt() != BugreportParser.VERSION) {
+            return null;
+        }
+
+        final Bugreport result = new Bugreport();
+        result.buildId = in.readString();
+        result.startTime = readCalendar(in);
+        result.endTime = readCalendar(in);
+        result.systemLog = readLogcat(in);
+        result.eventLog = readLogcat(in);
+        result.radioLog = readLogcat(in);
+        result.vmTracesJustNow = readVmTraces(in);
+        result.vmTracesLastAnr = readVmTraces(in);
+
+        if (!in.isAtEnd()) {
+            throw new IOException("Extra data at end of cache file");
+        }
+        return result;
+    }
+
+    /**
+     * Save the freshly parsed Bugreport to the cache file.  It's written to a
+     * temporary file first, so a partly written one is never loaded.
+     */
+    public void save(File cacheFile, Bugreport bugreport) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create cache directory: " + mDir);
+        }
+        final File tmpFile = new File(mDir, cacheFile.getName() + ".tmp"
+                + Thread.currentThread().getId());
+        final BinaryWriter out = new BinaryWriter(tmpFile);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(BugreportParser.VERSION);
+
+            out.writeString(bugreport.buildId);
+            writeCalendar(out, bugreport.startTime);
+            writeCalendar(out, bugreport.endTime);
+            writeLogcat(out, bugreport.systemLog);
+            writeLogcat(out, bugreport.eventLog);
+            writeLogcat(out, bugreport.radioLog);
+            writeVmTraces(out, bugreport.vmTracesJustNow);
+            writeVmTraces(out, bugreport.vmTracesLastAnr);
+
+            out.close();
+        } catch (IOException ex) {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+            tmpFile.delete();
+            throw ex;
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            tmpFile.delete();
+            throw new IOException("Can't rename to " + cacheFile);
+        }
+    }
+
+    /**
+     * Return the SHA-256 of the contents of the file, in hex.
+     */
+    private static String hash(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            final long chunkSize = 1L << 30;
+            for (long offset=0; offset<length; offset+=chunkSize) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                            Math.min(chunkSize, length - offset)));
+            }
+        } finally {
+            raf.close();
+        }
+
+        final StringBuilder result = new StringBuilder();
+        for (byte b: digest.digest()) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    private static void writeCalendar(BinaryWriter out, GregorianCalendar calendar)
+            throws IOException {
+        out.writeBoolean(calendar != null);
+        if (calendar != null) {
+            out.writeLong(calendar.getTimeInMillis());
+        }
+    }
+
+    private static GregorianCalendar readCalendar(BinaryReader in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final GregorianCalendar result = new GregorianCalendar(Utils.UTC);
+        result.setTimeInMillis(in.readLong());
+        return result;
+    }
+
+    private static void writeLogcat(BinaryWriter out, Logcat logcat) throws IOException {
+        out.writeBoolean(logcat != null);
+        if (logcat != null) {
+            logcat.write(out);
+        }
+    }
+
+    private static Logcat readLogcat(BinaryReader in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return Logcat.read(in);
+    }
+
+    private static void writeVmTraces(BinaryWriter out, VmTraces vmTraces)
+            throws IOException {
+        out.writeBoolean(vmTraces != null);
+        if (vmTraces == null) {
+            return;
+        }
+        out.writeInt(vmTraces.processes.size());
+        for (ProcessSnapshot process: vmTraces.processes) {
+            out.writeInt(process.pid);
+            out.writeString(process.cmdLine);
+            out.writeString(process.date);
+            out.writeInt(process.threads.size());
+            for (ThreadSnapshot thread: process.threads) {
+                writeThread(out, thread);
+            }
+        }
+    }
+
+    private static VmTraces readVmTraces(BinaryReader in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final VmTraces result = new VmTraces();
+        final int processCount = in.readLength(1);
+        for (int i=0; i<processCount; i++) {
+            final ProcessSnapshot process = new ProcessSnapshot();
+            process.pid = in.readInt();
+            process.cmdLine = in.readString();
+            process.date = in.readString();
+            final int threadCount = in.readLength(1);
+            for (int j=0; j<threadCount; j++) {
+                process.threads.add(readThread(in, result.stacks));
+            }
+            result.processes.add(process);
+        }
+        return result;
+    }
+
+    private static void writeThread(BinaryWriter out, ThreadSnapshot thread)
+            throws IOException {
+        out.writeInt(thread.type);
+        out.writeString(thread.name);
+        out.writeString(thread.daemon);
+        out.writeInt(thread.priority);
+        out.writeInt(thread.tid);
+        out.writeInt(thread.sysTid);
+        out.writeString(thread.vmState);
+        out.writeInt(thread.attributeText.size());
+        for (String text: thread.attributeText) {
+            out.writeString(text);
+        }
+        out.writeString(thread.heldMutexes);
+        out.writeInt(thread.frames.size());
+        for (StackFrameSnapshot frame: thread.frames) {
+            writeFrame(out, frame);
+        }
+        out.writeBoolean(thread.runnable);
+        out.writeBoolean(thread.blocked);
+        out.writeString(thread.outboundBinderPackage);
+        out.writeString(thread.outboundBinderClass);
+        out.writeString(thread.outboundBinderMethod);
+        out.writeString(thread.inboundBinderPackage);
+        out.writeString(thread.inboundBinderClass);
+        out.writeString(thread.inboundBinderMethod);
+        out.writeBoolean(thread.interesting);
+        out.writeInt(thread.locks.size());
+        for (Map.Entry<String,LockSnapshot> entry: thread.locks.entrySet()) {
+            out.writeString(entry.getKey());
+            writeLock(out, entry.getValue());
+        }
+    }
+
+    private static ThreadSnapshot readThread(BinaryReader in, StackTrie stacks)
+            throws IOException {
+        final ThreadSnapshot result = new ThreadSnapshot();
+        result.type = in.readInt();
+        result.name = in.readString();
+        result.daemon = in.readString();
+        result.priority = in.readInt();
+        result.tid = in.readInt();
+        result.sysTid = in.readInt();
+        result.vmState = in.readString();
+        final int attributeCount = in.readLength(4);
+        for (int i=0; i<attributeCount; i++) {
+            result.attributeText.add(in.readString());
+        }
+        result.heldMutexes = in.readString();
+        final int frameCount = in.readLength(4);
+        for (int i=0; i<frameCount; i++) {
+            result.frames.add(readFrame(in, stacks.getNativeFrames()));
+        }
+        result.stack = stacks.add(result.frames);
+        result.frames = result.stack.getFrames();
+        result.runnable = in.readBoolean();
+        result.blocked = in.readBoolean();
+        result.outboundBinderPackage = in.readString();
+        result.outboundBinderClass = in.readString();
+        result.outboundBinderMethod = in.readString();
+        result.inboundBinderPackage = in.readString();
+        result.inboundBinderClass = in.readString();
+        result.inboundBinderMethod = in.readString();
+        result.interesting = in.readBoolean();
+        final int lockCount = in.readLength(4);
+        for (int i=0; i<lockCount; i++) {
+            final String key = in.readString();
+            result.locks.put(key, readLock(in));
+        }
+        return result;
+    }
+
+    private static void writeFrame(BinaryWriter out, StackFrameSnapshot frame)
+            throws IOException {
+        out.writeInt(frame.frameType);
+        out.writeString(frame.text);
+        if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_NATIVE) {
+            final NativeStackFrameSnapshot nativeFrame = (NativeStackFrameSnapshot)frame;
+            out.writeString(nativeFrame.library);
+            out.writeString(nativeFrame.symbol);
+            out.writeInt(nativeFrame.offset);
+        } else if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_KERNEL) {
+            final KernelStackFrameSnapshot kernelFrame = (KernelStackFrameSnapshot)frame;
+            out.writeString(kernelFrame.syscall);
+            out.writeInt(kernelFrame.offset0);
+            out.writeInt(kernelFrame.offset1);
+        } else if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_JAVA) {
+            final JavaStackFrameSnapshot javaFrame = (JavaStackFrameSnapshot)frame;
+            out.writeString(javaFrame.packageName);
+            out.writeString(javaFrame.className);
+            out.writeString(javaFrame.methodName);
+            out.writeString(javaFrame.sourceFile);
+            out.writeInt(javaFrame.sourceLine);
+            out.writeInt(javaFrame.language);
+            out.writeInt(javaFrame.locks.size());
+            for (LockSnapshot lock: javaFrame.locks) {
+                writeLock(out, lock);
+            }
+        }
+    }
+
+    private static StackFrameSnapshot readFrame(BinaryReader in, NativeFrameTable nativeFrames)
+            throws IOException {
+        final int frameType = in.readInt();
+        final String text = in.readString();
+        final StackFrameSnapshot result;
+        if (frameType == StackFrameSnapshot.FRAME_TYPE_NATIVE) {
+            final NativeStackFrameSnapshot nativeFrame = new NativeStackFrameSnapshot();
+            nativeFrame.library = in.readString();
+            nativeFrame.symbol = in.readString();
+            nativeFrame.offset = in.readInt();
+            nativeFrames.intern(nativeFrame);
+            result = nativeFrame;
+        } else if (frameType == StackFrameSnapshot.FRAME_TYPE_KERNEL) {
+            final KernelStackFrameSnapshot kernelFrame = new KernelStackFrameSnapshot();
+            kernelFrame.syscall = in.readString();
+            kernelFrame.offset0 = in.readInt();
+            kernelFrame.offset1 = in.readInt();
+            result = kernelFrame;
+        } else if (frameType == StackFrameSnapshot.FRAME_TYPE_JAVA) {
+            final JavaStackFrameSnapshot javaFrame = new JavaStackFrameSnapshot();
+            javaFrame.packageName = in.readString();
+            javaFrame.className = in.readString();
+            javaFrame.methodName = in.readString();
+            javaFrame.sourceFile = in.readString();
+            javaFrame.sourceLine = in.readInt();
+            javaFrame.language = in.readInt();
+            final int lockCount = in.readLength(4);
+            for (int i=0; i<lockCount; i++) {
+                javaFrame.locks.add(readLock(in));
+            }
+            result = javaFrame;
+        } else if (frameType == StackFrameSnapshot.FRAME_TYPE_UNKNOWN) {
+            result = new StackFrameSnapshot();
+        } else {
+            throw new IOException("Bad frame type " + frameType);
+        }
+        result.text = text;
+        return result;
+    }
+
+    private static void writeLock(BinaryWriter out, LockSnapshot lock) throws IOException {
+        out.writeInt(lock.type);
+        out.writeString(lock.address);
+        out.writeString(lock.packageName);
+        out.writeString(lock.className);
+        out.writeInt(lock.threadId);
+    }
+
+    private static LockSnapshot readLock(BinaryReader in) throws IOException {
+        final LockSnapshot result = new LockSnapshot();
+        result.type = in.readInt();
+        result.address = in.readString();
+        result.packageName = in.readString();
+        result.className = in.readString();
+        result.threadId = in.readInt();
+        return result;
+    }
+}
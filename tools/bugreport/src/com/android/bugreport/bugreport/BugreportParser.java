@@ -23,12 +23,17 @@ import com.android.bugreport.util.Line;
 import com.android.bugreport.util.Lines;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -37,6 +42,13 @@ import java.util.regex.Matcher;
  * one bugreport at a time (i.e. any single object is not thread-safe).
  */
 public class BugreportParser {
+    /**
+     * Change this whenever the parsers would make something different out of the
+     * same file, so that cached results are thrown away.
+     *
+     * @see BugreportCache
+     */
+    public static final int VERSION = 1;
 
     private static final Pattern SECTION_BEGIN = Pattern.compile(
             "------ (.*?)(?: \\((.*)\\)) ------");
@@ -45,6 +57,12 @@ public class BugreportParser {
     private static final Pattern SECTION_END = Pattern.compile(
             "------ (\\d+.\\d+)s was the duration of '(.*?)(?: \\(.*\\))?' ------");
 
+    /**
+     * All of the section markers start with this.  Lines that don't can be skipped
+     * without reading them.
+     */
+    private static final String SECTION_PREFIX = "------ ";
+
     private final Matcher mSectionBegin = SECTION_BEGIN.matcher("");
     private final Matcher mSectionBeginNoCmd = SECTION_BEGIN_NO_CMD.matcher("");
     private final Matcher mSectionEnd = SECTION_END.matcher("");
@@ -56,6 +74,36 @@ public class BugreportParser {
 
     private Bugreport mBugreport;
 
+    /**
+     * Where to record the time spent on each section, or null to not record it.
+     */
+    private Metrics mMetrics;
+
+    /**
+     * If this is set, parseSection() adds the sections here instead of parsing them.
+     */
+    private ArrayList<Section> mDeferredSections;
+
+    /**
+     * A section that has been found, but not parsed yet.
+     */
+    private static class Section {
+        public final String name;
+        public final String command;
+        public final Lines<? extends Line> lines;
+        public final int durationMs;
+        public final Metrics.Section metrics;
+
+        public Section(String name, String command, Lines<? extends Line> lines,
+                int durationMs, Metrics.Section metrics) {
+            this.name = name;
+            this.command = command;
+            this.lines = lines;
+            this.durationMs = durationMs;
+            this.metrics = metrics;
+        }
+    }
+
     /**
      * Base class for bugreport section parsers. They self-report which
      * sections they are interested in, and BugreportParser will call them
@@ -70,9 +118,10 @@ public class BugreportParser {
         public String[] getSectionNames();
 
         /**
-         * Parse the given lines.  Add any information found to mBugreport.
+         * Parse the given lines.  Add any information found to mBugreport.  Returns
+         * the number of lines that weren't understood and were skipped.
          */
-        public void parse(String section, String command, Lines<? extends Line> lines);
+        public int parse(String section, String command, Lines<? extends Line> lines);
     }
     
     /**
@@ -87,11 +136,20 @@ public class BugreportParser {
         }
     }
 
+    /**
+     * Record the time spent parsing each section in metrics, which is also set as the
+     * metrics of the Bugreports that are parsed.  If it's null, nothing is recorded.
+     */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * Parse the input into a Bugreport object.
      */
     public Bugreport parse(Lines<? extends Line> lines) {
         mBugreport = new Bugreport();
+        mBugreport.metrics = mMetrics;
         Matcher m;
         int pos;
 
@@ -100,6 +158,10 @@ public class BugreportParser {
         // Read and parse the preamble -- until the first section beginning
         pos = lines.pos;
         while (lines.hasNext()) {
+            if (!lines.peekStartsWith(SECTION_PREFIX)) {
+                lines.skip();
+                continue;
+            }
             final Line line = lines.next();
             if (Utils.matches(mSectionBegin, line.text)) {
                 lines.rewind();
@@ -112,13 +174,18 @@ public class BugreportParser {
         String section = null;
         String command = null;
         while (lines.hasNext()) {
+            if (!lines.peekStartsWith(SECTION_PREFIX)) {
+                lines.skip();
+                continue;
+            }
             final Line line = lines.next();
             if ((m = Utils.match(mSectionEnd, line.text)) != null) {
                 final int durationMs = (int)(Float.parseFloat(m.group(1)) * 1000);
                 final String endSection = m.group(2);
                 if (section != null && endSection.equals(section)) {
                     // End of the section
-                    parseSection(section, lines.copy(pos, lines.pos-1), command, durationMs);
+                    parseSection(section, lines.copy(pos, lines.pos-1), lines.pos-1-pos,
+                            command, durationMs);
                     pos = lines.pos; // for the footer
                     section = null;
                 } else {
@@ -141,7 +208,8 @@ public class BugreportParser {
                     if (false) {
                         System.out.println("missed end of section " + section);
                     }
-                    parseSection(section, lines.copy(pos, lines.pos-1), null, -1);
+                    parseSection(section, lines.copy(pos, lines.pos-1), lines.pos-1-pos,
+                            null, -1);
                 }
                 section = m.group(1);
                 command = (m.groupCount() > 1) ? command = m.group(2) : null;
@@ -153,16 +221,201 @@ public class BugreportParser {
     }
 
     /**
-     * Parse the stuff in the preamble.
+     * Parse the input into a Bugreport object, running the section parsers on pool.
+     *
+     * The section boundaries are found first, on the calling thread. Then each
+     * section that has a SectionParser is parsed as its own task, with its own
+     * BugreportParser, because the individual parsers are not thread-safe. The
+     * results are merged back in the order the sections appear in the file, so
+     * the Bugreport is the same as the one from parse(Lines).
+     */
+    public Bugreport parse(Lines<? extends Line> lines, ForkJoinPool pool) {
+        final ArrayList<Section> sections = new ArrayList<Section>();
+        mDeferredSections = sections;
+        try {
+            parse(lines);
+        } finally {
+            mDeferredSections = null;
+        }
+
+        final ArrayList<ForkJoinTask<Bugreport>> tasks = new ArrayList<ForkJoinTask<Bugreport>>();
+        for (final Section section: sections) {
+            tasks.add(pool.submit(new Callable<Bugreport>() {
+                @Override
+                public Bugreport call() {
+                    final BugreportParser parser = new BugreportParser();
+                    parser.mBugreport = new Bugreport();
+                    parser.runSectionParser(section.name, section.lines, section.command,
+                            section.metrics);
+                    return parser.mBugreport;
+                }
+            }));
+        }
+        for (ForkJoinTask<Bugreport> task: tasks) {
+            mergeSections(mBugreport, task.join());
+        }
+
+        return mBugreport;
+    }
+
+    /**
+     * Copy the fields that the section parsers fill in from one Bugreport to another.
+     */
+    private static void mergeSections(Bugreport result, Bugreport sections) {
+        if (sections.systemLog != null) {
+            result.systemLog = sections.systemLog;
+        }
+        if (sections.eventLog != null) {
+            result.eventLog = sections.eventLog;
+        }
+        if (sections.radioLog != null) {
+            result.radioLog = sections.radioLog;
+        }
+        if (sections.vmTracesJustNow != null) {
+            result.vmTracesJustNow = sections.vmTracesJustNow;
+        }
+        if (sections.vmTracesLastAnr != null) {
+            result.vmTracesLastAnr = sections.vmTracesLastAnr;
+        }
+    }
+
+    /**
+     * Parse the file into a Bugreport object, reading it one line at a time.
+     *
+     * @see #parse(BufferedReader)
      */
-    private void parseSection(String section, Lines<? extends Line> lines, String command,
-            int durationMs) {
+    public Bugreport parse(File file) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            return parse(reader);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Parse the input into a Bugreport object, reading it one line at a time.
+     *
+     * Unlike parse(Lines), the whole file is never held in memory. Only the lines
+     * of the preamble and of the sections that have a SectionParser registered for
+     * them are kept, and only until that section has been parsed. Everything else
+     * is dropped as soon as it has been checked for section markers.
+     */
+    public Bugreport parse(BufferedReader in) throws IOException {
+        mBugreport = new Bugreport();
+        mBugreport.metrics = mMetrics;
+        Matcher m;
+        String text;
+        int lineno = 0;
+
+        mMetadataParser.setBugreport(mBugreport);
+
+        // Read and parse the preamble -- until the first section beginning
+        final ArrayList<Line> header = new ArrayList<Line>();
+        while ((text = in.readLine()) != null) {
+            lineno++;
+            if (text.startsWith(SECTION_PREFIX) && Utils.matches(mSectionBegin, text)) {
+                mMetadataParser.parseHeader(new Lines<Line>(header));
+                break;
+            }
+            header.add(new Line(lineno, text));
+        }
+        header.clear();
+
+        // Read each section, and then parse it. The line that ended the preamble
+        // is still in text, and is the first one handled here.
+        String section = null;
+        String command = null;
+        ArrayList<Line> sectionLines = new ArrayList<Line>();
+        int sectionLineCount = 0;
+        boolean keepLines = false;
+        while (text != null) {
+            final boolean marker = text.startsWith(SECTION_PREFIX);
+            if (marker && (m = Utils.match(mSectionEnd, text)) != null) {
+                final int durationMs = (int)(Float.parseFloat(m.group(1)) * 1000);
+                final String endSection = m.group(2);
+                if (section != null && endSection.equals(section)) {
+                    // End of the section
+                    parseSection(section, new Lines<Line>(sectionLines), sectionLineCount,
+                            command, durationMs);
+                    sectionLines = new ArrayList<Line>();
+                    sectionLineCount = 0;
+                    keepLines = false;
+                    section = null;
+                } else {
+                    // We missed it. Same as parse(Lines), the line stays part of the
+                    // current section, if any.
+                    if ("DUMPSTATE".equals(endSection)) {
+                        mMetadataParser.parseFooter(new Lines<Line>(new ArrayList<Line>()),
+                                durationMs);
+                    }
+                    if (section != null) {
+                        sectionLineCount++;
+                    }
+                    if (keepLines) {
+                        sectionLines.add(new Line(lineno, text));
+                    }
+                }
+            } else if (marker && (((m = Utils.match(mSectionBegin, text)) != null)
+                    || ((m = Utils.match(mSectionBeginNoCmd, text)) != null))) {
+                // Beginning of the section
+                // Clean out any section that wasn't closed propertly (it happens)
+                if (section != null) {
+                    parseSection(section, new Lines<Line>(sectionLines), sectionLineCount,
+                            null, -1);
+                    sectionLines = new ArrayList<Line>();
+                    sectionLineCount = 0;
+                }
+                section = m.group(1);
+                command = (m.groupCount() > 1) ? m.group(2) : null;
+                keepLines = mSectionParsers.containsKey(section);
+            } else if (section != null) {
+                sectionLineCount++;
+                if (keepLines) {
+                    sectionLines.add(new Line(lineno, text));
+                }
+            }
+
+            text = in.readLine();
+            lineno++;
+        }
+
+        return mBugreport;
+    }
+
+    /**
+     * Parse one section, or defer it if mDeferredSections is set.  lineCount is the
+     * number of lines in the section, which is more than lines has if the lines of
+     * sections without a parser aren't kept.
+     */
+    private void parseSection(String section, Lines<? extends Line> lines, int lineCount,
+            String command, int durationMs) {
         final SectionParser parser = mSectionParsers.get(section);
+
+        Metrics.Section metrics = null;
+        if (mMetrics != null) {
+            metrics = new Metrics.Section();
+            metrics.name = section;
+            metrics.command = command;
+            metrics.dumpstateMs = durationMs;
+            metrics.lines = lineCount;
+            metrics.parsed = parser != null;
+            mMetrics.sections.add(metrics);
+        }
+
         if (parser != null) {
+            if (mDeferredSections != null) {
+                mDeferredSections.add(new Section(section, command, lines, durationMs,
+                            metrics));
+                return;
+            }
             if (false) {
                 System.out.println("Parsing section  '" + section + "' " + lines.size() + " lines");
             }
-            parser.parse(section, command, lines);
+            runSectionParser(section, lines, command, metrics);
         } else {
             if (false) {
                 System.out.println("Skipping section '" + section + "' " + lines.size() + " lines");
@@ -170,6 +423,29 @@ public class BugreportParser {
         }
     }
 
+    /**
+     * Run the SectionParser for the section, and fill in the parsing part of metrics
+     * if it isn't null.
+     */
+    private void runSectionParser(String section, Lines<? extends Line> lines, String command,
+            Metrics.Section metrics) {
+        final SectionParser parser = mSectionParsers.get(section);
+        if (metrics == null) {
+            parser.parse(section, command, lines);
+            return;
+        }
+
+        final long startNs = System.nanoTime();
+        final long startAllocated = Metrics.getAllocatedBytes();
+
+        metrics.droppedLines = parser.parse(section, command, lines);
+
+        metrics.parseNs = System.nanoTime() - startNs;
+        if (startAllocated >= 0) {
+            metrics.allocatedBytes = Metrics.getAllocatedBytes() - startAllocated;
+        }
+    }
+
     /**
      * The list of section parsers. Each one handles one or more sections, and adds that
      * stuff to the Bugreport.
@@ -183,16 +459,20 @@ public class BugreportParser {
                 return new String[] {
                     "SYSTEM LOG",
                     "EVENT LOG",
+                    "RADIO LOG",
                 };
             }
 
             @Override
-            public void parse(String section, String command, Lines<? extends Line> lines) {
+            public int parse(String section, String command, Lines<? extends Line> lines) {
                 if ("SYSTEM LOG".equals(section)) {
                     mBugreport.systemLog = mParser.parse(lines);
                 } else if ("EVENT LOG".equals(section)) {
                     mBugreport.eventLog = mParser.parse(lines);
+                } else if ("RADIO LOG".equals(section)) {
+                    mBugreport.radioLog = mParser.parse(lines);
                 }
+                return mParser.getDroppedLineCount();
             }
         },
 
@@ -208,12 +488,13 @@ public class BugreportParser {
             }
 
             @Override
-            public void parse(String section, String command, Lines<? extends Line> lines) {
+            public int parse(String section, String command, Lines<? extends Line> lines) {
                 if ("VM TRACES JUST NOW".equals(section)) {
                     mBugreport.vmTracesJustNow = mParser.parse(lines);
                 } else if ("VM TRACES AT LAST ANR".equals(section)) {
                     mBugreport.vmTracesLastAnr = mParser.parse(lines);
                 }
+                return mParser.getDroppedLineCount();
             }
         },
         
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.bugreport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the tool's own time goes while it processes one bugreport: each section
+ * of the bugreport, each pass of the Inspector, and the overall stages.
+ *
+ * Only recorded when asked for, and then written out as JSON.  The allocated
+ * bytes are for the thread that did the work, and are -1 if the JVM can't count
+ * them.
+ */
+public class Metrics {
+    /**
+     * One section of the bugreport.
+     */
+    public static class Section {
+        /**
+         * The section name, from the beginning of section marker.
+         */
+        public String name;
+
+        /**
+         * The command, or null if there wasn't one.
+         */
+        public String command;
+
+        /**
+         * How long dumpstate took to make the section, from the end of section
+         * marker, or -1 if there wasn't one.
+         */
+        public int dumpstateMs = -1;
+
+        /**
+         * The number of lines in the section, not counting the markers.
+         */
+        public int lines;
+
+        /**
+         * Whether there is a parser for the section.  If there isn't, the other
+         * fields below are left as they are.
+         */
+        public boolean parsed;
+
+        /**
+         * The number of lines that the parser skipped because it didn't understand
+         * them.
+         */
+        public int droppedLines;
+
+        /**
+         * How long parsing took, and how much it allocated.
+         */
+        public long parseNs;
+        public long allocatedBytes = -1;
+    }
+
+    /**
+     * One timed step.
+     */
+    public static class Timing {
+        public final String name;
+        public final long wallNs;
+        public final long allocatedBytes;
+
+        public Timing(String name, long wallNs, long allocatedBytes) {
+            this.name = name;
+            this.wallNs = wallNs;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * Times a series of steps on the current thread, each one from the end of the
+     * one before.  Does nothing if the list to add them to is null, so the code
+     * being timed doesn't have to check whether metrics are on.
+     */
+    public static class Stopwatch {
+        private final List<Timing> mTimings;
+        private long mStartNs;
+        private long mStartAllocated;
+
+        /**
+         * Construct a Stopwatch that adds its Timings to timings, and start it.
+         */
+        public Stopwatch(List<Timing> timings) {
+            mTimings = timings;
+            if (timings != null) {
+                mStartNs = System.nanoTime();
+                mStartAllocated = getAllocatedBytes();
+            }
+        }
+
+        /**
+         * Add a Timing for the step that just finished, and start the next one.
+         */
+        public void lap(String name) {
+            if (mTimings == null) {
+                return;
+            }
+            final long now = System.nanoTime();
+            final long allocated = getAllocatedBytes();
+            mTimings.add(new Timing(name, now - mStartNs,
+                        allocated >= 0 && mStartAllocated >= 0 ? allocated - mStartAllocated : -1));
+            mStartNs = now;
+            mStartAllocated = allocated;
+        }
+    }
+
+    /**
+     * The sections, in the order they are in the bugreport.
+     */
+    public final ArrayList<Section> sections = new ArrayList<Section>();
+
+    /**
+     * The passes of the Inspector.
+     */
+    public final ArrayList<Timing> passes = new ArrayList<Timing>();
+
+    /**
+     * The overall stages: parsing, inspecting and rendering.
+     */
+    public final ArrayList<Timing> stages = new ArrayList<Timing>();
+
+    /**
+     * Return the number of bytes that the current thread has allocated, or -1 if the
+     * JVM doesn't count them.
+     */
+    public static long getAllocatedBytes() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunBean
+                    = (com.sun.management.ThreadMXBean)threadBean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                    && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the file to write the metrics to for the given html file.  It's next to
+     * it, with .metrics.json instead of .html.
+     */
+    public static File getMetricsFile(File html) {
+        String name = html.getName();
+        if (name.endsWith(".html")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        return new File(html.getAbsoluteFile().getParentFile(), name + ".metrics.json");
+    }
+
+    /**
+     * Write the metrics as JSON.
+     */
+    public void write(File file) throws IOException {
+        final Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the metrics as JSON.
+     */
+    public void write(Writer out) throws IOException {
+        out.write("{\n  \"stages\": ");
+        writeTimings(out, stages);
+        out.write(",\n  \"passes\": ");
+        writeTimings(out, passes);
+        out.write(",\n  \"sections\": [");
+        final int N = sections.size();
+        for (int i=0; i<N; i++) {
+            final Section section = sections.get(i);
+            out.write(i == 0 ? "\n    {" : ",\n    {");
+            out.write("\"name\": ");
+            writeString(out, section.name);
+            out.write(", \"command\": ");
+            writeString(out, section.command);
+            out.write(", \"dumpstateMs\": " + section.dumpstateMs);
+            out.write(", \"lines\": " + section.lines);
+            out.write(", \"parsed\": " + section.parsed);
+            if (section.parsed) {
+                out.write(", \"matchedLines\": " + (section.lines - section.droppedLines));
+                out.write(", \"droppedLines\": " + section.droppedLines);
+                out.write(", \"parseMs\": " + formatMs(section.parseNs));
+                out.write(", \"allocatedBytes\": " + section.allocatedBytes);
+            }
+            out.write("}");
+        }
+        out.write(N == 0 ? "]\n}\n" : "\n  ]\n}\n");
+    }
+
+    /**
+     * Write a list of Timings as a JSON array.
+     */
+    private static void writeTimings(Writer out, List<Timing> timings) throws IOException {
+        out.write("[");
+        final int N = timings.size();
+        for (int i=0; i<N; i++) {
+            final Timing timing = timings.get(i);
+            out.write(i == 0 ? "\n    {" : ",\n    {");
+            out.write("\"name\": ");
+            writeString(out, timing.name);
+            out.write(", \"wallMs\": " + formatMs(timing.wallNs));
+            out.write(", \"allocatedBytes\": " + timing.allocatedBytes);
+            out.write("}");
+        }
+        out.write(N == 0 ? "]" : "\n  ]");
+    }
+
+    /**
+     * Write a JSON string, or null.
+     */
+    private static void writeString(Writer out, String text) throws IOException {
+        if (text == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        final int N = text.length();
+        for (int i=0; i<N; i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Format nanoseconds as milliseconds, to the microsecond.
+     */
+    private static String formatMs(long ns) {
+        return String.format("%d.%03d", ns / 1000000, (ns / 1000) % 1000);
+    }
+}
@@ -17,7 +17,10 @@
 package com.android.bugreport.html;
 
 import com.android.bugreport.anr.Anr;
+import com.android.bugreport.bugreport.BatchReport;
 import com.android.bugreport.bugreport.Bugreport;
+import com.android.bugreport.bugreport.ProcessInfo;
+import com.android.bugreport.bugreport.ThreadInfo;
 import com.android.bugreport.cpuinfo.CpuUsage;
 import com.android.bugreport.cpuinfo.CpuUsageSnapshot;
 import com.android.bugreport.logcat.Logcat;
@@ -37,10 +40,13 @@ import com.google.clearsilver.jsilver.autoescape.EscapeMode;
 import com.google.clearsilver.jsilver.data.Data;
 import com.google.clearsilver.jsilver.resourceloader.ClassResourceLoader;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -48,47 +54,159 @@ import java.util.List;
 
 /**
  * Formats a bugreport as html and writes the file.
+ *
+ * The template only has the chrome of the page.  The logcat and the stack traces
+ * would make an hdf tree bigger than the bugreport itself, so instead the hdf gets
+ * a marker for each of them, and they are written straight to the file as the
+ * rendered template is copied there.
  */
 public class Renderer {
+    /**
+     * A part of the page that's written straight to the file instead of being put
+     * in the hdf.
+     */
+    private interface Section {
+        void write(Writer out) throws IOException;
+    }
+
+    /**
+     * A process as it's shown in one place on the page: the threads of it that are
+     * shown there, in the order they're shown.  The snapshots are shared with the
+     * model, not copied, and the model isn't changed.
+     */
+    private static class ProcessView {
+        public final ProcessSnapshot process;
+        public ArrayList<ThreadSnapshot> threads;
+
+        public ProcessView(ProcessSnapshot process, ArrayList<ThreadSnapshot> threads) {
+            this.process = process;
+            this.threads = threads;
+        }
+    }
+
     /**
      * The next id of the panel to use.
      */
     private int mNextPanelId;
 
+    /**
+     * The sections of the page being rendered, and the text that marks where each
+     * one goes.  The marker is followed by the index of the section and a ';'.
+     */
+    private final ArrayList<Section> mSections = new ArrayList<Section>();
+    private String mSectionMarker;
+
+    /**
+     * The template engine.  It caches the templates once they're loaded, so it's
+     * worth reusing a Renderer for more than one file.
+     */
+    private final JSilver mJSilver;
+
     public Renderer() {
+        final JSilverOptions options = new JSilverOptions();
+        options.setEscapeMode(EscapeMode.ESCAPE_HTML);
+        mJSilver = new JSilver(new ClassResourceLoader(getClass()), options);
     }
 
     /**
      * Render the Bugreport into the html file.
      */
     public void render(File outFile, Bugreport bugreport) throws IOException {
-        // Load the template and renderer
-        final JSilverOptions options = new JSilverOptions();
-        options.setEscapeMode(EscapeMode.ESCAPE_HTML);
-        final JSilver jsilver = new JSilver(new ClassResourceLoader(getClass()), options);
-        final Data hdf = jsilver.createData(); 
+        final Data hdf = mJSilver.createData();
+        mNextPanelId = 0;
+        mSectionMarker = "@section" + Long.toHexString(System.nanoTime()) + "@";
+
+        try {
+            // Build the hierarchical data format data structure
+            makeHdf(hdf, bugreport);
 
-        // Build the hierarchical data format data structure
-        makeHdf(hdf, bugreport);
+            if (false) {
+                System.out.println(hdf);
+            }
+
+            // Render it
+            render(outFile, "anr-template.html", hdf);
+        } finally {
+            mSections.clear();
+            mSectionMarker = null;
+        }
+    }
 
-        if (false) {
-            System.out.println(hdf);
+    /**
+     * Render the index of a batch run into the html file.
+     */
+    public void renderIndex(File outFile, List<BatchReport> reports, long elapsedMs,
+            long cpuMs) throws IOException {
+        final Data hdf = mJSilver.createData();
+
+        hdf.setValue("elapsedMs", Long.toString(elapsedMs));
+        hdf.setValue("cpuMs", Long.toString(cpuMs));
+
+        final Data reportsHdf = hdf.createChild("reports");
+        final int N = reports.size();
+        for (int i=0; i<N; i++) {
+            final BatchReport report = reports.get(i);
+            final Data reportHdf = reportsHdf.createChild(Integer.toString(i));
+            reportHdf.setValue("bugreport", report.bugreport.getPath());
+            if (report.html != null) {
+                reportHdf.setValue("html", report.html.getName());
+            }
+            if (report.error != null) {
+                reportHdf.setValue("error", report.error);
+            }
+            if (report.anrProcess != null) {
+                reportHdf.setValue("anrProcess", report.anrProcess);
+            }
+            if (report.anrReason != null) {
+                reportHdf.setValue("anrReason", report.anrReason);
+            }
+            if (report.signature != null) {
+                reportHdf.setValue("signature", report.signature.getHashString());
+                reportHdf.setValue("clusterCount", Integer.toString(report.clusterCount));
+            }
+            reportHdf.setValue("elapsedMs", Long.toString(report.elapsedMs));
+            reportHdf.setValue("cpuMs", Long.toString(report.cpuMs));
         }
 
-        // Render it
-        final FileWriter writer = new FileWriter(outFile);
+        render(outFile, "index-template.html", hdf);
+    }
+
+    /**
+     * Render the hdf with the template into the html file, writing the sections
+     * where their markers are.
+     */
+    private void render(File outFile, String template, Data hdf) throws IOException {
+        final StringBuilder page = new StringBuilder();
+        mJSilver.render(template, hdf, page);
+
+        final Writer writer = new BufferedWriter(new FileWriter(outFile), 64 * 1024);
+        boolean success = false;
         try {
-            jsilver.render("anr-template.html", hdf, writer);
+            int start = 0;
+            if (mSectionMarker != null) {
+                final int markerLength = mSectionMarker.length();
+                int index;
+                while ((index = page.indexOf(mSectionMarker, start)) >= 0) {
+                    writer.append(page, start, index);
+                    final int end = page.indexOf(";", index + markerLength);
+                    mSections.get(Integer.parseInt(page.substring(index + markerLength, end)))
+                            .write(writer);
+                    start = end + 1;
+                }
+            }
+            writer.append(page, start, page.length());
             writer.close();
-        } catch (IOException ex) {
-            // Delete the file so we don't leave half-written files laying around.
-            try {
-                writer.close();
-            } catch (IOException e) {
+            success = true;
+        } finally {
+            if (!success) {
+                // Delete the file so we don't leave half-written files laying
+                // around, whatever went wrong.  The exception keeps going.
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                }
+                outFile.delete();
             }
-            outFile.delete();
-            // And rethrow the exception.
-            throw ex;
         }
     }
 
@@ -136,11 +254,12 @@ public class Renderer {
     private void makeVmTracesHdf(Data hdf, Anr anr, VmTraces vmTraces) {
         // Process List
         final Data processesHdf = hdf.createChild("processes");
-        sortProcesses(anr, vmTraces.processes);
-        final int N = vmTraces.processes.size();
+        final ArrayList<ProcessView> processes = makeViews(null, vmTraces.processes);
+        sortProcesses(anr, processes);
+        final int N = processes.size();
         for (int i=0; i<N; i++) {
             makeProcessSnapshotHdf(processesHdf.createChild(Integer.toString(i)),
-                    vmTraces.processes.get(i));
+                    processes.get(i));
         }
     }
 
@@ -167,8 +286,8 @@ public class Renderer {
         final ProcessSnapshot offendingProcess = anr.vmTraces.getProcess(anr.pid);
         final ThreadSnapshot offendingThread = anr.vmTraces.getThread(anr.pid, "main");
         if (offendingThread != null) {
-            makeThreadSnapshotHdf(hdf.createChild("triage.mainThread"), offendingProcess,
-                    offendingThread);
+            hdf.setValue("triage.mainThread", addThreadSection(offendingProcess,
+                    offendingThread));
 
             HashSet<Integer> visitedThreads = new HashSet<Integer>();
             visitedThreads.add(offendingThread.tid);
@@ -176,7 +295,7 @@ public class Renderer {
         }
 
         // Deadlocked Processes
-        final ArrayList<ProcessSnapshot> deadlockedProcesses = cloneAndFilter(visited,
+        final ArrayList<ProcessView> deadlockedProcesses = makeViews(visited,
                 anr.vmTraces.deadlockedProcesses);
         sortProcesses(anr, deadlockedProcesses);
         N = deadlockedProcesses.size();
@@ -185,8 +304,26 @@ public class Renderer {
                     deadlockedProcesses.get(i));
         }
 
+        // Deadlock Cycles
+        N = anr.vmTraces.deadlockCycles.size();
+        int cycleCount = 0;
+        for (int i=0; i<N; i++) {
+            final ArrayList<ProcessView> cycle = makeViews(visited,
+                    anr.vmTraces.deadlockCycles.get(i));
+            if (cycle.size() == 0) {
+                continue;
+            }
+            final Data cycleHdf = hdf.createChild("triage.deadlockCycles." + cycleCount);
+            cycleCount++;
+            cycleHdf.setValue("number", Integer.toString(cycleCount));
+            final int M = cycle.size();
+            for (int j=0; j<M; j++) {
+                makeProcessSnapshotHdf(cycleHdf.createChild("processes." + j), cycle.get(j));
+            }
+        }
+
         // Interesting Processes
-        final ArrayList<ProcessSnapshot> interestingProcesses = cloneAndFilter(visited,
+        final ArrayList<ProcessView> interestingProcesses = makeViews(visited,
                 anr.vmTraces.interestingProcesses);
         sortProcesses(anr, interestingProcesses);
         N = interestingProcesses.size();
@@ -197,31 +334,41 @@ public class Renderer {
     }
 
     /**
-     * Makes a copy of the process and threads, removing ones that have accumulated in the
-     * visited list (probably from previous sections on the current page).
+     * Makes views of the processes.  If visited isn't null, the threads that have
+     * accumulated in it (probably from previous sections on the current page) are
+     * left out, the rest are added to it, and processes with no threads left are
+     * left out.
      *
      * @see #makeTriageHdf
      */
-    private ArrayList<ProcessSnapshot> cloneAndFilter(HashMap<Integer,HashSet<Integer>> visited,
+    private ArrayList<ProcessView> makeViews(HashMap<Integer,HashSet<Integer>> visited,
             Collection<ProcessSnapshot> list) {
-        final ArrayList<ProcessSnapshot> result = new ArrayList<ProcessSnapshot>();
+        final ArrayList<ProcessView> result = new ArrayList<ProcessView>();
         for (ProcessSnapshot process: list) {
-            final ProcessSnapshot cloneProcess = process.clone();
+            if (visited == null) {
+                result.add(new ProcessView(process,
+                            new ArrayList<ThreadSnapshot>(process.threads)));
+                continue;
+            }
             HashSet<Integer> visitedThreads = visited.get(process.pid);
             if (visitedThreads == null) {
                 visitedThreads = new HashSet<Integer>();
                 visited.put(process.pid, visitedThreads);
             }
-            final int N = cloneProcess.threads.size();
+            // Backwards, so if there are two with the same tid, the last one is kept.
+            final int N = process.threads.size();
+            final ThreadSnapshot[] shown = new ThreadSnapshot[N];
+            int count = 0;
             for (int i=N-1; i>=0; i--) {
-                final ThreadSnapshot cloneThread = cloneProcess.threads.get(i);
-                if (visitedThreads.contains(cloneThread.tid)) {
-                    cloneProcess.threads.remove(i);
+                final ThreadSnapshot thread = process.threads.get(i);
+                if (visitedThreads.add(thread.tid)) {
+                    shown[N - 1 - count] = thread;
+                    count++;
                 }
-                visitedThreads.add(cloneThread.tid);
             }
-            if (cloneProcess.threads.size() > 0) {
-                result.add(cloneProcess);
+            if (count > 0) {
+                result.add(new ProcessView(process, new ArrayList<ThreadSnapshot>(
+                                Arrays.asList(shown).subList(N - count, N))));
             }
         }
         return result;
@@ -246,10 +393,10 @@ public class Renderer {
     }
 
     /**
-     * Build the hdf for a ProcessSnapshot.
+     * Build the hdf for a ProcessView.  The process itself is a section.
      */
-    private void makeProcessSnapshotHdf(Data hdf, ProcessSnapshot process) {
-        int N;
+    private void makeProcessSnapshotHdf(Data hdf, final ProcessView view) {
+        final ProcessSnapshot process = view.process;
 
         hdf.setValue("panelId", Integer.toString(mNextPanelId++));
 
@@ -257,44 +404,136 @@ public class Renderer {
         hdf.setValue("cmdLine", process.cmdLine);
         hdf.setValue("date", process.date);
 
-        N = process.threads.size();
+        hdf.setValue("html", addSection(new Section() {
+                    @Override
+                    public void write(Writer out) throws IOException {
+                        writeProcessSnapshot(out, process, view.threads);
+                    }
+                }));
+    }
+
+    /**
+     * Add a section for a ThreadSnapshot, and return its marker.
+     */
+    private String addThreadSection(final ProcessSnapshot process,
+            final ThreadSnapshot thread) {
+        return addSection(new Section() {
+                    @Override
+                    public void write(Writer out) throws IOException {
+                        writeThreadSnapshot(out, process, thread);
+                    }
+                });
+    }
+
+    /**
+     * Add a section to the page, and return the marker for where it goes.
+     */
+    private String addSection(Section section) {
+        mSections.add(section);
+        return mSectionMarker + (mSections.size() - 1) + ";";
+    }
+
+    /**
+     * Write the html for a ProcessSnapshot.
+     */
+    private void writeProcessSnapshot(Writer out, ProcessSnapshot process,
+            ArrayList<ThreadSnapshot> threads) throws IOException {
+        out.write("<div class=\"Process\">\n<div class=\"ProcessCmdLine\"><b>Process:</b> ");
+        writeEscaped(out, process.cmdLine);
+        out.write("</div>\n<div class=\"ProcessInfo\">\n<b>PID:</b> ");
+        out.write(Integer.toString(process.pid));
+        out.write("<br>\n<div class=\"Extra\">\n<b>Timestamp:</b> ");
+        writeEscaped(out, process.date);
+        out.write("<br>\n</div>\n</div>\n");
+
+        final int N = threads.size();
         for (int i=0; i<N; i++) {
-            makeThreadSnapshotHdf(hdf.createChild("threads." + i), process, process.threads.get(i));
+            writeThreadSnapshot(out, process, threads.get(i));
         }
+        out.write("</div>\n");
     }
 
     /**
-     * Build the hdf for a ThreadSnapshot.
+     * Write the html for a ThreadSnapshot.
      */
-    private void makeThreadSnapshotHdf(Data hdf, ProcessSnapshot process, ThreadSnapshot thread) {
-        int N, M;
-
-        hdf.setValue("name", thread.name);
-        hdf.setValue("daemon", thread.daemon);
-        hdf.setValue("priority", Integer.toString(thread.priority));
-        hdf.setValue("tid", Integer.toString(thread.tid));
-        hdf.setValue("sysTid", Integer.toString(thread.sysTid));
-        hdf.setValue("vmState", thread.vmState);
-        hdf.setValue("runnable", thread.runnable ? "1" : "0");
-        hdf.setValue("blocked", thread.blocked ? "1" : "0");
-        hdf.setValue("interesting", thread.interesting ? "1" : "0");
-        hdf.setValue("binder", thread.isBinder() ? "1" : "0");
-        hdf.setValue("outboundBinderCall", buildFunctionName(thread.outboundBinderPackage,
-                    thread.outboundBinderClass, thread.outboundBinderMethod));
-        hdf.setValue("inboundBinderCall", buildFunctionName(thread.inboundBinderPackage,
-                    thread.inboundBinderClass, thread.inboundBinderMethod));
+    private void writeThreadSnapshot(Writer out, ProcessSnapshot process, ThreadSnapshot thread)
+            throws IOException {
+        int N;
 
+        out.write("<div class=\"Thread ");
+        if (thread.blocked) {
+            out.write("ThreadBlocked");
+        } else if (thread.isBinder()) {
+            out.write("ThreadBinder");
+        } else if (thread.interesting) {
+            out.write("ThreadInteresting");
+        }
+        out.write("\">\n<!-- binder=");
+        out.write(thread.isBinder() ? "1" : "0");
+        out.write(" -->\n<div class=\"ThreadName\">");
+        writeEscaped(out, thread.name);
+        out.write(" <span class=\"ThreadTid\">(");
+        writeTids(out, thread.tid, thread.sysTid);
+        out.write(")</span></div>\n<div class=\"ThreadInfo\">\n");
+        if (thread.runnable) {
+            out.write("<div>Runnable</div>\n");
+        }
+        final String outboundBinderCall = buildFunctionName(thread.outboundBinderPackage,
+                    thread.outboundBinderClass, thread.outboundBinderMethod);
+        if (isTrue(outboundBinderCall)) {
+            out.write("<div>Outbound binder call: ");
+            writeEscaped(out, outboundBinderCall);
+            out.write("</div>\n");
+        }
+        final String inboundBinderCall = buildFunctionName(thread.inboundBinderPackage,
+                    thread.inboundBinderClass, thread.inboundBinderMethod);
+        if (isTrue(inboundBinderCall)) {
+            out.write("<div>Inbound binder call: ");
+            writeEscaped(out, inboundBinderCall);
+            out.write("</div>\n");
+        }
+        if (isTrue(thread.heldMutexes)) {
+            out.write("<div class=\"ThreadHeldMutexes\">Held mutexes: ");
+            writeEscaped(out, thread.heldMutexes);
+            out.write("</div>\n");
+        }
+        out.write("<div class=\"ThreadExtras Extra\">\nVM State: ");
+        writeEscaped(out, thread.vmState);
+        out.write("<br>\nPriority: ");
+        out.write(Integer.toString(thread.priority));
+        out.write("<br>\n");
+        if (isTrue(thread.daemon)) {
+            writeEscaped(out, thread.daemon);
+            out.write("<br>\n");
+        }
         N = thread.attributeText.size();
         for (int i=0; i<N; i++) {
-            hdf.setValue("attributes." + i, thread.attributeText.get(i));
+            writeEscaped(out, thread.attributeText.get(i));
+            out.write("<br>\n");
         }
-
-        hdf.setValue("heldMutexes", thread.heldMutexes);
+        out.write("</div>\n</div>\n<table class=\"ThreadStack\">\n");
 
         N = thread.frames.size();
         for (int i=0; i<N; i++) {
-            makeStackFrameSnapshotHdf(hdf.createChild("frames." + i), process,
-                    thread.frames.get(i));
+            writeStackFrameSnapshot(out, process, thread.frames.get(i));
+        }
+        out.write("</table>\n</div>\n");
+    }
+
+    /**
+     * Write the tid and sysTid of a thread, leaving out the ones that are negative.
+     */
+    private static void writeTids(Writer out, int tid, int sysTid) throws IOException {
+        if (tid >= 0) {
+            out.write("tid=");
+            out.write(Integer.toString(tid));
+        }
+        if (sysTid >= 0) {
+            if (tid >= 0) {
+                out.write(' ');
+            }
+            out.write("sysTid=");
+            out.write(Integer.toString(sysTid));
         }
     }
 
@@ -318,74 +557,129 @@ public class Renderer {
     }
 
     /**
-     * Build the hdf for a StackFrameSnapshot.
+     * Write the html for a StackFrameSnapshot, as a row of the stack table.
      */
-    private void makeStackFrameSnapshotHdf(Data hdf, ProcessSnapshot process,
-            StackFrameSnapshot frame) {
-        hdf.setValue("text", frame.text);
-
+    private void writeStackFrameSnapshot(Writer out, ProcessSnapshot process,
+            StackFrameSnapshot frame) throws IOException {
         if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_NATIVE) {
             final NativeStackFrameSnapshot f = (NativeStackFrameSnapshot)frame;
-            hdf.setValue("frameType", "native");
-            hdf.setValue("symbol", f.symbol);
-            hdf.setValue("library", f.library);
-            hdf.setValue("offset", Integer.toString(f.offset));
+            out.write("<tr class=\"NativeFrame\">\n<td class=\"FrameType\">"
+                    + "<span class=\"FrameUnimportant\">native</span></td>\n"
+                    + "<td><span class=\"FrameImportant\">");
+            writeEscaped(out, f.symbol);
+            out.write("</span><span class=\"FrameUnimportant\">");
+            if (f.offset >= 0) {
+                out.write('+');
+                out.write(Integer.toString(f.offset));
+            }
+            out.write(' ');
+            writeEscaped(out, f.library);
+            out.write("</span></td>\n");
 
         } else if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_KERNEL) {
             final KernelStackFrameSnapshot f = (KernelStackFrameSnapshot)frame;
-            hdf.setValue("frameType", "kernel");
-            hdf.setValue("syscall", f.syscall);
-            hdf.setValue("offset0", Integer.toString(f.offset0));
-            hdf.setValue("offset1", Integer.toString(f.offset1));
+            out.write("<tr class=\"NativeFrame\">\n<td class=\"FrameType\">"
+                    + "<span class=\"FrameUnimportant\">kernel</span></td>\n"
+                    + "<td><span class=\"FrameImportant\">");
+            writeEscaped(out, f.syscall);
+            out.write("</span><span class=\"FrameUnimportant\">+");
+            out.write(Integer.toString(f.offset0));
+            out.write(" / ");
+            out.write(Integer.toString(f.offset1));
+            out.write("</span></td>\n");
 
         } else if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_JAVA) {
             final JavaStackFrameSnapshot f = (JavaStackFrameSnapshot)frame;
-            hdf.setValue("frameType", "java");
-            hdf.setValue("packageName", f.packageName);
-            hdf.setValue("className", f.className);
-            hdf.setValue("methodName", f.methodName);
-            hdf.setValue("sourceFile", f.sourceFile);
-            hdf.setValue("sourceLine", Integer.toString(f.sourceLine));
-            hdf.setValue("language",
-                    (f.language == JavaStackFrameSnapshot.LANGUAGE_JAVA ? "java" : "jni"));
+            out.write("<tr class=\"\">\n<td class=\"FrameType\">"
+                    + "<span class=\"FrameUnimportant\">");
+            out.write(f.language == JavaStackFrameSnapshot.LANGUAGE_JAVA ? "java" : "jni");
+            out.write("</span></td>\n<td><span class=\"FrameImportant\">");
+            if (isTrue(f.packageName)) {
+                writeEscaped(out, f.packageName);
+                out.write('.');
+            }
+            writeEscaped(out, f.className);
+            out.write('.');
+            writeEscaped(out, f.methodName);
+            out.write("</span>\n");
+            if (isTrue(f.sourceFile)) {
+                out.write("<span class=\"FrameUnimportant\">");
+                writeEscaped(out, f.sourceFile);
+                if (f.sourceLine != 0) {
+                    out.write(':');
+                    out.write(Integer.toString(f.sourceLine));
+                }
+                out.write("</span>\n");
+            }
             final int N = f.locks.size();
             for (int i=0; i<N; i++) {
-                final LockSnapshot lock = f.locks.get(i);
-                final Data lockHdf = hdf.createChild("locks." + i);
-                if (lock.type == LockSnapshot.LOCKED) {
-                    lockHdf.setValue("type", "locked");
-                } else if (lock.type == LockSnapshot.WAITING) {
-                    lockHdf.setValue("type", "waiting");
-                } else if (lock.type == LockSnapshot.BLOCKED) {
-                    lockHdf.setValue("type", "blocked");
-                }
-                lockHdf.setValue("address", lock.address);
-                lockHdf.setValue("packageName", lock.packageName);
-                lockHdf.setValue("className", lock.className);
-                lockHdf.setValue("threadId", Integer.toString(lock.threadId));
-                if (lock.threadId >= 0) {
-                    final ThreadSnapshot referenced = process.getThread(lock.threadId);
-                    if (referenced != null) {
-                        lockHdf.setValue("threadName", referenced.name);
-                    }
+                writeLockSnapshot(out, process, f.locks.get(i));
+            }
+            out.write("</td>\n");
+
+        } else {
+            out.write("<tr class=\"\">\n<td class=\"FrameType\"></td>\n"
+                    + "<td><span class=\"FrameUnimportant\">");
+            writeEscaped(out, frame.text);
+            out.write("</span></td>\n");
+        }
+        out.write("</tr>\n");
+    }
+
+    /**
+     * Write the html for a lock in a java stack frame.
+     */
+    private void writeLockSnapshot(Writer out, ProcessSnapshot process, LockSnapshot lock)
+            throws IOException {
+        out.write("<div class=\"FrameLock\"><span class=\"FrameUnimportant\">");
+        if (lock.type == LockSnapshot.LOCKED) {
+            out.write("locked");
+        } else if (lock.type == LockSnapshot.WAITING) {
+            out.write("waiting");
+        } else if (lock.type == LockSnapshot.BLOCKED) {
+            out.write("blocked");
+        }
+        if (isTrue(lock.className)) {
+            out.write(" on a ");
+            if (isTrue(lock.packageName)) {
+                writeEscaped(out, lock.packageName);
+                out.write('.');
+            }
+            writeEscaped(out, lock.className);
+            out.write(" (0x");
+            writeEscaped(out, lock.address);
+            out.write(')');
+            if (lock.threadId >= 0) {
+                out.write(" held by thread ");
+                final ThreadSnapshot referenced = process.getThread(lock.threadId);
+                if (referenced != null && isTrue(referenced.name)) {
+                    out.write('"');
+                    writeEscaped(out, referenced.name);
+                    out.write("\" (");
+                    writeTids(out, lock.threadId, referenced.sysTid);
+                    out.write(')');
+                } else {
+                    out.write("tid ");
+                    out.write(Integer.toString(lock.threadId));
                 }
             }
         } else {
-            hdf.setValue("frameType", "other");
+            out.write(" on an unknown object");
         }
+        out.write("</span></div>\n");
     }
 
     /**
      * Sort processes so the more interesting ones are at the top.
      */
-    private void sortProcesses(Anr anr, List<ProcessSnapshot> processes) {
+    private void sortProcesses(Anr anr, List<ProcessView> processes) {
         final int N = processes.size();
 
         // Last is alphabetical
-        processes.sort(new java.util.Comparator<ProcessSnapshot>() {
+        processes.sort(new java.util.Comparator<ProcessView>() {
                 @Override
-                public int compare(ProcessSnapshot a, ProcessSnapshot b) {
-                    return a.cmdLine.compareTo(b.cmdLine);
+                public int compare(ProcessView a, ProcessView b) {
+                    return a.process.cmdLine.compareTo(b.process.cmdLine);
                 }
 
                 @Override
@@ -396,10 +690,10 @@ public class Renderer {
 
         // Move the ones that start with / to the end. They're typically not interesting
         for (int i=0, j=0; i<N; i++) {
-            final ProcessSnapshot process = processes.get(j);
-            if (process.cmdLine.length() > 0 && process.cmdLine.charAt(0) == '/') {
+            final ProcessView view = processes.get(j);
+            if (view.process.cmdLine.length() > 0 && view.process.cmdLine.charAt(0) == '/') {
                 processes.remove(j);
-                processes.add(process);
+                processes.add(view);
             } else {
                 j++;
             }
@@ -409,20 +703,20 @@ public class Renderer {
 
         // The system process always goes second
         for (int i=0; i<N; i++) {
-            final ProcessSnapshot process = processes.get(i);
-            if ("system_server".equals(process.cmdLine)) {
+            final ProcessView view = processes.get(i);
+            if ("system_server".equals(view.process.cmdLine)) {
                 processes.remove(i);
-                processes.add(0, process);
+                processes.add(0, view);
                 break;
             }
         }
 
         // The blamed process always goes first
         for (int i=0; i<N; i++) {
-            final ProcessSnapshot process = processes.get(i);
-            if (process.pid == anr.pid) {
+            final ProcessView view = processes.get(i);
+            if (view.process.pid == anr.pid) {
                 processes.remove(i);
-                processes.add(0, process);
+                processes.add(0, view);
                 break;
             }
         }
@@ -434,9 +728,9 @@ public class Renderer {
     /**
      * Sort threads so the more interesting ones are at the top.
      */
-    private void sortThreads(List<ProcessSnapshot> processes) {
-        for (ProcessSnapshot process: processes) {
-            final int N = process.threads.size();
+    private void sortThreads(List<ProcessView> processes) {
+        for (ProcessView view: processes) {
+            final int N = view.threads.size();
 
             final ArrayList<ThreadSnapshot> mainThreads = new ArrayList<ThreadSnapshot>();
             final ArrayList<ThreadSnapshot> blockedThreads = new ArrayList<ThreadSnapshot>();
@@ -446,7 +740,7 @@ public class Renderer {
 
             int insertAt = 0; // in case there are more than one called "main"
             for (int i=0; i<N; i++) {
-                final ThreadSnapshot thread = process.threads.get(i);
+                final ThreadSnapshot thread = view.threads.get(i);
                 if ("main".equals(thread.name)) {
                     mainThreads.add(thread);
                 } else if (thread.blocked) {
@@ -479,64 +773,217 @@ public class Renderer {
             interestingThreads.sort(cmp);
             otherThreads.sort(cmp);
 
-            process.threads = mainThreads;
-            process.threads.addAll(blockedThreads);
-            process.threads.addAll(binderThreads);
-            process.threads.addAll(interestingThreads);
-            process.threads.addAll(otherThreads);
+            view.threads = mainThreads;
+            view.threads.addAll(blockedThreads);
+            view.threads.addAll(binderThreads);
+            view.threads.addAll(interestingThreads);
+            view.threads.addAll(otherThreads);
         }
     }
     
     /**
-     * Make the hdf for the logcat panel.
+     * Make the hdf for the logcat panel.  The interesting lines and the logcat
+     * itself are sections.
      */
-    private void makeLogcatHdf(Data hdf, Bugreport bugreport) {
-        int N;
+    private void makeLogcatHdf(Data hdf, final Bugreport bugreport) {
+        hdf.setValue("interesting", addSection(new Section() {
+                    @Override
+                    public void write(Writer out) throws IOException {
+                        writeInterestingLogLines(out, bugreport);
+                    }
+                }));
+        hdf.setValue("lines", addSection(new Section() {
+                    @Override
+                    public void write(Writer out) throws IOException {
+                        writeLogcat(out, bugreport);
+                    }
+                }));
+    }
 
-        final Data interestingHdf = hdf.createChild("interesting");
-        N = bugreport.interestingLogLines.size();
+    /**
+     * Write the html for the interesting log lines, if there are any.
+     */
+    private void writeInterestingLogLines(Writer out, Bugreport bugreport) throws IOException {
+        final int N = bugreport.interestingLogLines.size();
+        if (N == 0) {
+            return;
+        }
+        out.write("<div class=\"InterestingLogcatLines\">\n");
         for (int i=0; i<N; i++) {
             final LogLine line = bugreport.interestingLogLines.get(i);
-            makeLogcatLineHdf(interestingHdf.createChild(Integer.toString(i)), line);
+            out.write("<div class=\"InterestingLogcatLine\">\n"
+                    + "<a href=\"javascript:scroll_to_log_line(");
+            out.write(Integer.toString(line.lineno));
+            out.write(")\">\n<div class=\"LogcatLine\">\n");
+            if (line.bufferBegin != null) {
+                out.write("<div class=\"LogcatBufferBegin\">");
+                writeEscaped(out, line.rawText);
+                out.write("</div>\n");
+            } else {
+                out.write("<div class=\"LogcatHeader\">");
+                writeEscaped(out, line.header);
+                out.write("</div>\n<div class=\"LogcatData\">");
+                writeEscaped(out, line.tag);
+                out.write(": ");
+                writeEscaped(out, line.text);
+                out.write("</div>\n");
+            }
+            out.write("</div>\n</a>\n</div>\n");
         }
+        out.write("</div>\n");
+    }
 
+    /**
+     * Write the html for every line of the logcat.  The raw text of each row is
+     * copied into one reused buffer and its pieces are escaped from there, so no
+     * Strings are made for the rows.
+     */
+    private void writeLogcat(Writer out, Bugreport bugreport) throws IOException {
         final Logcat logcat = bugreport.logcat;
-        final Data linesHdf = hdf.createChild("lines");
-        N = logcat.lines.size();
+        char[] text = new char[256];
+        final int N = logcat.size();
         for (int i=0; i<N; i++) {
-            final LogLine line = logcat.lines.get(i);
-            makeLogcatLineHdf(linesHdf.createChild(Integer.toString(i)), line);
+            final int length = logcat.getRawTextLength(i);
+            if (length > text.length) {
+                text = new char[Math.max(length, text.length * 2)];
+            }
+            logcat.getRawChars(i, text);
+            writeLogLine(out, logcat, i, text, length, bugreport);
         }
     }
 
     /**
-     * Make hdf for a line of logcat.
+     * Write the html for a row of logcat, whose raw text is text[0,length).
      */
-    private void makeLogcatLineHdf(Data hdf, LogLine line) {
-        hdf.setValue("lineno", Integer.toString(line.lineno));
-        if (line.bufferBegin != null) {
-            hdf.setValue("bufferBegin", line.bufferBegin);
-            hdf.setValue("rawText", line.rawText);
+    private void writeLogLine(Writer out, Logcat logcat, int row, char[] text, int length,
+            Bugreport bugreport) throws IOException {
+        final boolean bufferBegin = logcat.getBufferBegin(row) != null;
+        out.write("<div class=\"LogcatLine LogLevel");
+        if (!bufferBegin) {
+            out.write(logcat.getLevel(row));
+        }
+        out.write("\" id=\"logcat_line_");
+        out.write(Integer.toString(logcat.getLineno(row)));
+        out.write("\">\n");
+        if (bufferBegin) {
+            out.write("<div class=\"LogcatMarkerSpacer\"></div>\n"
+                    + "<div class=\"LogcatMarkerSpacer\"></div>\n"
+                    + "<div class=\"LogcatBufferBegin\">");
+            writeEscaped(out, text, 0, length);
+            out.write("</div>\n");
         } else {
-            hdf.setValue("header", line.header);
-            hdf.setValue("level", Character.toString(line.level));
-            hdf.setValue("tag", line.tag);
-            hdf.setValue("text", line.text);
-            if (line.regionAnr) {
-                hdf.setValue("regionAnr", "1");
+            out.write(logcat.isRegionAnr(row) ? "<div class=\"LogcatMarkerAnr\"></div>\n"
+                    : "<div class=\"LogcatMarkerSpacer\"></div>\n");
+            out.write(logcat.isRegionBugreport(row)
+                    ? "<div class=\"LogcatMarkerBugreport\"></div>\n"
+                    : "<div class=\"LogcatMarkerSpacer\"></div>\n");
+
+            out.write("<div class=\"LogcatHeader\" title=\"Process: ");
+            final ProcessInfo process = bugreport.allKnownProcesses.get(logcat.getPid(row));
+            if (process != null) {
+                writeEscaped(out, process.cmdLine);
+                final ThreadInfo thread = process.threads.get(logcat.getTid(row));
+                if (thread != null) {
+                    out.write("\nThread: ");
+                    writeEscaped(out, thread.name);
+                }
+            } else {
+                out.write("??");
             }
-            if (line.regionBugreport) {
-                hdf.setValue("regionBugreport", "1");
+            out.write("\">");
+            writeEscaped(out, text, 0, logcat.getTagOffset(row));
+            out.write("</div>\n<div class=\"LogcatData\"><span class=\"LogcatTag\">");
+            writeEscaped(out, logcat.getTag(row));
+            out.write("</span><span class=\"LogcatText\">: ");
+            writeEscaped(out, text, logcat.getMessageOffset(row), length);
+            out.write("</span></div>\n");
+        }
+        out.write("</div>\n");
+    }
+
+    /**
+     * Whether the template would take the string as true in an if: it's not empty,
+     * and it's not a number that's zero.
+     */
+    private static boolean isTrue(String value) {
+        if (value == null || value.length() == 0) {
+            return false;
+        }
+        try {
+            return Long.parseLong(value) != 0;
+        } catch (NumberFormatException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Write the text, escaped for html the same way as the template's vars.
+     */
+    private static void writeEscaped(Writer out, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        final int N = text.length();
+        int start = 0;
+        for (int i=0; i<N; i++) {
+            final String replacement;
+            switch (text.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&#39;";
+                    break;
+                default:
+                    continue;
             }
+            out.write(text, start, i - start);
+            out.write(replacement);
+            start = i + 1;
+        }
+        out.write(text, start, N - start);
+    }
 
-            String title = "Process: ??";
-            if (line.process != null) {
-                title = "Process: " + line.process.cmdLine;
-                if (line.thread != null) {
-                    title += "\nThread: " + line.thread.name;
-                }
+    /**
+     * Write text[start,end), escaped the same way.
+     */
+    private static void writeEscaped(Writer out, char[] text, int start, int end)
+            throws IOException {
+        int from = start;
+        for (int i=start; i<end; i++) {
+            final String replacement;
+            switch (text[i]) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&#39;";
+                    break;
+                default:
+                    continue;
             }
-            hdf.setValue("title", title);
+            out.write(text, from, i - from);
+            out.write(replacement);
+            from = i + 1;
         }
+        out.write(text, from, end - from);
     }
 }
@@ -24,7 +24,7 @@ import com.android.bugreport.stacks.StackFrameSnapshot;
 import com.android.bugreport.stacks.ThreadSnapshot;
 import com.android.bugreport.stacks.VmTraces;
 
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.HashMap;
@@ -126,6 +126,10 @@ public class DeadlockDetector {
         final TreeSet<LockRecord> locksToVisit = new TreeSet<LockRecord>();
         final TreeSet<LockRecord> locksVisited = new TreeSet<LockRecord>();
 
+        // The threads that have each lock, for each process that has been visited.
+        final HashMap<ProcessSnapshot,HashMap<String,ArrayList<ThreadSnapshot>>> lockHolders
+                = new HashMap<ProcessSnapshot,HashMap<String,ArrayList<ThreadSnapshot>>>();
+
         // Seed the traversal with the locks held by the main thread.
         final ProcessSnapshot offendingProcess = vmTraces.getProcess(pid);
         if (offendingProcess == null) {
@@ -174,18 +178,20 @@ public class DeadlockDetector {
             locksVisited.add(lr);
 
             // Find all the threads holding this lock.
-            for (ThreadSnapshot thread: lr.process.threads) {
-                final Map<String,LockSnapshot> locks = thread.locks;
-                if (locks.containsKey(lr.lock.address)) {
-                    if (dump) {
-                        System.out.println("Thread " + thread.tid
-                                + " contains lock " + lr.lock.address);
-                    }
-                    // This thread is holding the lock (or trying to).
-                    // Enqeue its other locks that we haven't already done.
-                    addLockRecordsForThread(locksToVisit, locksVisited, lr.process, thread);
-                    involvedThreads.add(new ThreadRecord(lr.process, thread));
+            final ArrayList<ThreadSnapshot> holders
+                    = getLockHolders(lockHolders, lr.process).get(lr.lock.address);
+            if (holders == null) {
+                continue;
+            }
+            for (ThreadSnapshot thread: holders) {
+                if (dump) {
+                    System.out.println("Thread " + thread.tid
+                            + " contains lock " + lr.lock.address);
                 }
+                // This thread is holding the lock (or trying to).
+                // Enqeue its other locks that we haven't already done.
+                addLockRecordsForThread(locksToVisit, locksVisited, lr.process, thread);
+                involvedThreads.add(new ThreadRecord(lr.process, thread));
             }
         }
 
@@ -227,6 +233,32 @@ public class DeadlockDetector {
         return new TreeSet<ProcessSnapshot>(results.values());
     }
 
+    /**
+     * Return the threads of the process that have each lock, by lock address.  It's
+     * made the first time it's needed for each process, so finding the threads for
+     * a lock doesn't mean looking at all of them.
+     */
+    private static HashMap<String,ArrayList<ThreadSnapshot>> getLockHolders(
+            HashMap<ProcessSnapshot,HashMap<String,ArrayList<ThreadSnapshot>>> lockHolders,
+            ProcessSnapshot process) {
+        HashMap<String,ArrayList<ThreadSnapshot>> result = lockHolders.get(process);
+        if (result == null) {
+            result = new HashMap<String,ArrayList<ThreadSnapshot>>();
+            for (ThreadSnapshot thread: process.threads) {
+                for (String address: thread.locks.keySet()) {
+                    ArrayList<ThreadSnapshot> threads = result.get(address);
+                    if (threads == null) {
+                        threads = new ArrayList<ThreadSnapshot>();
+                        result.put(address, threads);
+                    }
+                    threads.add(thread);
+                }
+            }
+            lockHolders.put(process, result);
+        }
+        return result;
+    }
+
     /**
      * Add the LockRecords for the locks held by the thread to toVisit, unless
      * they're already in alreadyVisited.
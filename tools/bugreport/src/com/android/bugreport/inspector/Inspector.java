@@ -19,27 +19,27 @@ package com.android.bugreport.inspector;
 import com.android.bugreport.anr.Anr;
 import com.android.bugreport.anr.AnrParser;
 import com.android.bugreport.bugreport.Bugreport;
+import com.android.bugreport.bugreport.Metrics;
 import com.android.bugreport.bugreport.ProcessInfo;
 import com.android.bugreport.bugreport.ThreadInfo;
 import com.android.bugreport.logcat.Logcat;
-import com.android.bugreport.logcat.LogcatParser;
 import com.android.bugreport.logcat.LogLine;
+import com.android.bugreport.logcat.LogcatMerger;
 import com.android.bugreport.stacks.ProcessSnapshot;
 import com.android.bugreport.stacks.JavaStackFrameSnapshot;
 import com.android.bugreport.stacks.LockSnapshot;
+import com.android.bugreport.stacks.NativeStackFrameSnapshot;
 import com.android.bugreport.stacks.StackFrameSnapshot;
 import com.android.bugreport.stacks.ThreadSnapshot;
 import com.android.bugreport.stacks.VmTraces;
-import com.android.bugreport.util.Utils;
 import com.android.bugreport.util.Lines;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 /**
  * Inspects a raw parsed bugreport.  Makes connections between the different sections,
@@ -51,10 +51,19 @@ public class Inspector {
     private static final String[] NO_JAVA_METHODS = new String[0];
     private static final String[] HANDWRITTEN_BINDER_SUFFIXES = new String[] { "Native", "Proxy" };
 
-    private final Matcher mBufferBeginRe = LogcatParser.BUFFER_BEGIN_RE.matcher("");
-
     private final Bugreport mBugreport;
 
+    /**
+     * The VmTraces that inspectProcesses has already done.  The anr's traces are
+     * usually the same object as vmTracesLastAnr.
+     */
+    private final HashSet<VmTraces> mInspectedTraces = new HashSet<VmTraces>();
+
+    /**
+     * Times each pass into the bugreport's metrics, if it has them.
+     */
+    private final Metrics.Stopwatch mStopwatch;
+
     /**
      * Inspect a bugreport.
      */
@@ -67,6 +76,8 @@ public class Inspector {
      */
     private Inspector(Bugreport bugreport) {
         mBugreport = bugreport;
+        mStopwatch = new Metrics.Stopwatch(
+                bugreport.metrics != null ? bugreport.metrics.passes : null);
     }
 
     /**
@@ -74,27 +85,43 @@ public class Inspector {
      */
     private void inspect() {
         makeProcessInfo();
+        mStopwatch.lap("makeProcessInfo");
 
         findAnr();
+        mStopwatch.lap("findAnr");
 
+        // These lap each of their passes.
         inspectProcesses(mBugreport.vmTracesJustNow);
         inspectProcesses(mBugreport.vmTracesLastAnr);
 
         if (mBugreport.anr != null) {
             inspectProcesses(mBugreport.anr.vmTraces);
             markDeadlocks(mBugreport.anr.vmTraces, mBugreport.anr.pid);
+            mStopwatch.lap("markDeadlocks");
+        }
+
+        // The monkey's other ANRs, so their signatures see the same things.
+        if (mBugreport.monkeyAnrs.size() > 1) {
+            for (Anr anr: mBugreport.monkeyAnrs) {
+                if (anr != mBugreport.anr && anr.vmTraces != null) {
+                    inspectProcesses(anr.vmTraces);
+                }
+            }
         }
 
         inventLogcatTimes();
+        mStopwatch.lap("inventLogcatTimes");
         mergeLogcat();
+        mStopwatch.lap("mergeLogcat");
+        markLogcatRegions();
+        mStopwatch.lap("markLogcatRegions");
         makeInterestingLogcat();
-        markLogcatProcessesAndThreads();
-        markAnrLogcatRegions();
-        markBugreportRegions();
+        mStopwatch.lap("makeInterestingLogcat");
         //trimLogcat();
 
         if (mBugreport.anr != null) {
             makeInterestingProcesses(mBugreport.anr.vmTraces);
+            mStopwatch.lap("makeInterestingProcesses");
         }
     }
 
@@ -172,7 +199,7 @@ public class Inspector {
         if (mBugreport.anr != null) {
             return;
         }
-        final ArrayList<LogLine> logLines = mBugreport.systemLog.filter("ActivityManager", "E");
+        final List<LogLine> logLines = mBugreport.systemLog.filter("ActivityManager", "E");
         final AnrParser parser = new AnrParser();
         final ArrayList<Anr> anrs = parser.parse(new Lines<LogLine>(logLines), false);
         if (anrs.size() > 0) {
@@ -187,10 +214,21 @@ public class Inspector {
      * Do all the process inspection.  Works on any list of processes, not just ANRs.
      */
     private void inspectProcesses(VmTraces vmTraces) {
+        if (!mInspectedTraces.add(vmTraces)) {
+            return;
+        }
         combineLocks(vmTraces.processes);
+        mStopwatch.lap("combineLocks");
         markBinderThreads(vmTraces.processes);
+        mStopwatch.lap("markBinderThreads");
         markBlockedThreads(vmTraces.processes);
+        mStopwatch.lap("markBlockedThreads");
+        markNativeStates(vmTraces.processes);
+        mStopwatch.lap("markNativeStates");
         markInterestingThreads(vmTraces.processes);
+        mStopwatch.lap("markInterestingThreads");
+        markDeadlockCycles(vmTraces);
+        mStopwatch.lap("markDeadlockCycles");
     }
 
     /**
@@ -410,6 +448,40 @@ public class Inspector {
         return false;
     }
 
+    /**
+     * Set what each thread is doing in native code.  The kernel frames are skipped,
+     * and a java frame before any native ones means it isn't in native code.
+     *
+     * The innermost libc frame is often one that doesn't say much, like syscall or a
+     * futex wait, so all of the libc frames at the top of the stack are looked at,
+     * and the outermost one that is classified wins: pthread_cond_wait over the
+     * futex wait under it.  If none of them are, it's the first frame after them.
+     */
+    private void markNativeStates(ArrayList<ProcessSnapshot> processes) {
+        for (ProcessSnapshot process: processes) {
+            for (ThreadSnapshot thread: process.threads) {
+                thread.nativeState = NativeStackFrameSnapshot.CLASS_UNKNOWN;
+                for (StackFrameSnapshot frame: thread.frames) {
+                    if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_KERNEL) {
+                        continue;
+                    } else if (frame.frameType != StackFrameSnapshot.FRAME_TYPE_NATIVE) {
+                        break;
+                    }
+                    final NativeStackFrameSnapshot nf = (NativeStackFrameSnapshot)frame;
+                    if (!nf.bySymbol) {
+                        if (thread.nativeState == NativeStackFrameSnapshot.CLASS_UNKNOWN) {
+                            thread.nativeState = nf.classification;
+                        }
+                        break;
+                    }
+                    if (nf.classification != NativeStackFrameSnapshot.CLASS_UNKNOWN) {
+                        thread.nativeState = nf.classification;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Mark threads to be flagged in the bugreport view.
      */
@@ -476,8 +548,13 @@ public class Inspector {
             return false;
         }
 
-        // The thread is marked runnable
-        if (thread.runnable) {
+        // The thread is marked runnable, and isn't just waiting for events in native
+        if (thread.runnable && thread.nativeState != NativeStackFrameSnapshot.CLASS_IDLE) {
+            return true;
+        }
+
+        // It's waiting for a native lock, which doesn't show up in the java locks
+        if (thread.nativeState == NativeStackFrameSnapshot.CLASS_LOCK) {
             return true;
         }
 
@@ -545,10 +622,9 @@ public class Inspector {
     }
 
     /**
-     * Traverse the threads looking for cyclical dependencies of blocked threads.
-     *
-     * TODO: If pid isn't provided, we should run it for all main threads.  And show all of
-     * the deadlock cycles, with the one from the anr at the top if possible.
+     * Traverse the threads looking for cyclical dependencies of blocked threads,
+     * starting from the main thread of pid.  The cycles that don't involve it are
+     * found by markDeadlockCycles.
      *
      * @see DeadlockDetector
      */
@@ -557,15 +633,26 @@ public class Inspector {
         vmTraces.deadlockedProcesses.addAll(deadlock);
     }
 
+    /**
+     * Find every cycle of threads that are waiting on each other, in all of the
+     * processes.
+     *
+     * @see WaitForGraph
+     */
+    private void markDeadlockCycles(VmTraces vmTraces) {
+        vmTraces.deadlockCycles.addAll(new WaitForGraph(vmTraces).findCycles());
+    }
+
     /**
      * Fill in times for the logcat section log lines that don't have one (like
      * the beginning of buffer lines).
      */
     private void inventLogcatTimes() {
-        inventLogcatTimes(mBugreport.systemLog.lines);
-        inventLogcatTimes(mBugreport.eventLog.lines);
+        inventLogcatTimes(mBugreport.systemLog);
+        inventLogcatTimes(mBugreport.eventLog);
+        inventLogcatTimes(mBugreport.radioLog);
         if (mBugreport.logcat != null) {
-            inventLogcatTimes(mBugreport.logcat.lines);
+            inventLogcatTimes(mBugreport.logcat);
         }
     }
 
@@ -573,259 +660,150 @@ public class Inspector {
      * Fill in times for a logcat section by taking the time from an adjacent line.
      * Prefers to get the time from a line after the log line.
      */
-    private void inventLogcatTimes(ArrayList<LogLine> lines) {
-        GregorianCalendar time = null;
-        final int N = lines.size();
-        int i;
-        // Going backwards first makes most missing ones get the next time
-        // which will pair it with the next log line in the merge, which is
-        // what we want.
-        for (i=N-1; i>=0; i--) {
-            final LogLine line = lines.get(i);
-            if (line.time == null) {
-                line.time = time;
-            } else {
-                time = line.time;
-            }
+    private void inventLogcatTimes(Logcat logcat) {
+        if (logcat == null) {
+            return;
         }
-
-        // Then go find the last one that's null, and get it a time.
-        // If none have times, then... oh well.
-        for (i=N-1; i>=0; i--) {
-            final LogLine line = lines.get(i);
-            if (line.time != null) {
-                time = line.time;
-                break;
+        long time = LogLine.NO_TIME;
+        final int N = logcat.size();
+
+        // Going backwards makes most missing ones get the next time which will
+        // pair it with the next log line in the merge, which is what we want.
+        // The ones after the last line with a time get that time, so fill them
+        // in when we get to it.  If none have times, then... oh well.
+        boolean seenTime = false;
+        for (int i=N-1; i>=0; i--) {
+            if (logcat.getTime(i) == LogLine.NO_TIME) {
+                logcat.setTime(i, time);
+            } else {
+                time = logcat.getTime(i);
+                if (!seenTime) {
+                    for (int j=i+1; j<N; j++) {
+                        logcat.setTime(j, time);
+                    }
+                    seenTime = true;
+                }
             }
         }
-        for (; i<N && i>=0; i++) {
-            final LogLine line = lines.get(i);
-            line.time = time;
-        }
     }
 
     /**
-     * Merge the system and event logs by timestamp.
+     * Merge the logs from the bugreport by timestamp.  Each line is scanned as it
+     * is added, so this is the only pass over the merged logcat before the
+     * regions are marked.
      */
     private void mergeLogcat() {
         // Only do this if they haven't already supplied a logcat.
         if (mBugreport.logcat != null) {
+            final Logcat logcat = mBugreport.logcat;
+            final int N = logcat.size();
+            for (int i=0; i<N; i++) {
+                scanLogcatLine(logcat, i);
+            }
             return;
         }
 
-        // Renumber the logcat lines.  We mess up the other lists, but that
-        // saves the work of making copies of the logcat lines.  If this
-        // really becomes a problem, then it's not too much work to add
-        // LogLine.clone().
-        int lineno = 1;
-        final Logcat result = mBugreport.logcat =  new Logcat();
-        final ArrayList<LogLine> system = mBugreport.systemLog.lines;
-        final ArrayList<LogLine> event = mBugreport.eventLog.lines;
-
-        final int systemSize = system != null ? system.size() : 0;
-        final int eventSize = event != null ? event.size() : 0;
-
-        int systemIndex = 0;
-        int eventIndex = 0;
-
-        // The event log doesn't have a beginning of marker.  Make up one
-        // when we see the first event line.
-        boolean seenEvent = false;
-
-        while (systemIndex < systemSize && eventIndex < eventSize) {
-            final LogLine systemLine = system.get(systemIndex);
-            final LogLine eventLine = event.get(eventIndex);
-
-            if (systemLine.time == null) {
-                systemLine.lineno = lineno++;
-                result.lines.add(systemLine);
-                systemIndex++;
-                continue;
-            }
-
-            if (eventLine.time == null) {
-                eventLine.lineno = lineno++;
-                result.lines.add(eventLine);
-                eventIndex++;
-                seenEvent = true;
-                continue;
-            }
-
-            if (systemLine.time.compareTo(eventLine.time) <= 0) {
-                systemLine.lineno = lineno++;
-                result.lines.add(systemLine);
-                systemIndex++;
-            } else {
-                if (!seenEvent) {
-                    final LogLine synthetic = new LogLine();
-                    synthetic.lineno = lineno++;
-                    synthetic.rawText = synthetic.text = "--------- beginning of event";
-                    synthetic.bufferBegin = "event";
-                    synthetic.time = eventLine.time;
-                    result.lines.add(synthetic);
-                    seenEvent = true;
+        // The rows are copied into the new Logcat, renumbered, so the sources
+        // keep their own line numbers.  The event log doesn't have a beginning
+        // of marker, so the merger makes one up.
+        final LogcatMerger merger = new LogcatMerger();
+        merger.add(mBugreport.systemLog, null);
+        merger.add(mBugreport.eventLog, "event");
+        merger.add(mBugreport.radioLog, "radio");
+        mBugreport.logcat = merger.merge(1, new LogcatMerger.LineListener() {
+                @Override
+                public void onLine(Logcat logcat, int row) {
+                    scanLogcatLine(logcat, row);
                 }
-                eventLine.lineno = lineno++;
-                result.lines.add(eventLine);
-                eventIndex++;
-            }
-        }
-
-        for (; systemIndex < systemSize; systemIndex++) {
-            final LogLine systemLine = system.get(systemIndex);
-            systemLine.lineno = lineno++;
-            result.lines.add(systemLine);
-        }
-
-        for (; eventIndex < eventSize; eventIndex++) {
-            final LogLine eventLine = event.get(eventIndex);
-            if (!seenEvent) {
-                final LogLine synthetic = new LogLine();
-                synthetic.lineno = lineno++;
-                synthetic.rawText = synthetic.text = "--------- beginning of event";
-                synthetic.bufferBegin = "event";
-                synthetic.time = eventLine.time;
-                result.lines.add(synthetic);
-                seenEvent = true;
-            }
-            eventLine.lineno = lineno++;
-            result.lines.add(eventLine);
-        }
+            });
     }
 
     /**
-     * Utility class to match log lines that are "interesting" and will
-     * be called out with links at the top of the log and triage sections.
+     * Finds the interesting rows and anr regions of the merged logcat.
      */
-    private class InterestingLineMatcher {
-        private String mTag;
-        protected Matcher mMatcher;
-
-        /**
-         * Construct the helper object with the log tag that must be an
-         * exact match and a message which is a regex pattern.
-         */
-        public InterestingLineMatcher(String tag, String regex) {
-            mTag = tag;
-            mMatcher = Pattern.compile(regex).matcher("");
-        }
-
-        /**
-         * Return whether the LogLine text matches the patterns supplied in the
-         * constructor.
-         */
-        public boolean match(LogLine line) {
-            return mTag.equals(line.tag)
-                    && Utils.matches(mMatcher, line.text);
-        }
-    }
+    private final LogcatScanner mScanner = new LogcatScanner();
 
     /**
-     * The matchers to use to detect interesting log lines.
+     * Look at one row of the merged logcat.  Remembers whether it is interesting
+     * and the anr region it ends, if any, for markLogcatRegions.
      */
-    private final InterestingLineMatcher[] mInterestingLineMatchers
-            = new InterestingLineMatcher[] {
-                // ANR logcat
-                new InterestingLineMatcher("ActivityManager",
-                        "ANR in \\S+.*"),
-            };
+    private void scanLogcatLine(Logcat logcat, int row) {
+        mScanner.scan(logcat, row, row);
+    }
 
     /**
-     * Mark the log lines to be called out with links at the top of the
-     * log and triage sections.
+     * Mark the log lines that happened during any of the anr regions, and the ones
+     * that were captured while this bugreport was being taken.  The anr regions are
+     * sorted and combined first, so each line only needs a binary search.
      */
-    private void makeInterestingLogcat() {
-        final Logcat logcat = mBugreport.logcat;
-        Matcher m;
-
-        for (LogLine line: logcat.lines) {
-            // Beginning of buffer
-            if ((m = Utils.match(mBufferBeginRe, line.rawText)) != null) {
-                mBugreport.interestingLogLines.add(line);
+    private void markLogcatRegions() {
+        // Sort the anr regions and combine the overlapping ones.
+        final ArrayList<long[]> anrRegions = mScanner.anrRegions;
+        anrRegions.sort(new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
             }
-
-            
-            // Regular log lines
-            for (InterestingLineMatcher ilm: mInterestingLineMatchers) {
-                if (ilm.match(line)) {
-                    mBugreport.interestingLogLines.add(line);
-                }
+        });
+        final long[] anrBegins = new long[anrRegions.size()];
+        final long[] anrEnds = new long[anrRegions.size()];
+        int anrCount = 0;
+        for (long[] region: anrRegions) {
+            if (region[0] >= region[1]) {
+                // Empty
+                continue;
+            }
+            if (anrCount > 0 && region[0] <= anrEnds[anrCount - 1]) {
+                anrEnds[anrCount - 1] = Math.max(anrEnds[anrCount - 1], region[1]);
+            } else {
+                anrBegins[anrCount] = region[0];
+                anrEnds[anrCount] = region[1];
+                anrCount++;
             }
         }
-    }
 
-    /**
-     * For each of the log lines, attach a process and a thread.
-     */
-    private void markLogcatProcessesAndThreads() {
-        final Logcat logcat = mBugreport.logcat;
+        // Bugreport region.  Those tend to be less reliable, and are also an indicator of
+        // when the user saw the bug that caused them to take a bugreport.
+        final boolean hasBugreportRegion = mBugreport.startTime != null
+                && mBugreport.endTime != null;
+        final long bugreportBegin = hasBugreportRegion
+                ? mBugreport.startTime.getTimeInMillis() : 0;
+        final long bugreportEnd = hasBugreportRegion
+                ? mBugreport.endTime.getTimeInMillis() : 0;
 
-        final Matcher inputDispatcherRe = Pattern.compile(
-                "Application is not responding: .* It has been (\\d+\\.?\\d*)ms since event,"
-                + " (\\d+\\.?\\d*)ms since wait started.*").matcher("");
-
-        for (LogLine line: logcat.lines) {
-            line.process = mBugreport.allKnownProcesses.get(line.pid);
-            if (line.process != null) {
-                line.thread = line.process.threads.get(line.tid);
-            }
+        if (anrCount == 0 && !hasBugreportRegion) {
+            return;
         }
-    }
 
-    /**
-     * For each of the log lines that indicate a time range between the beginning
-     * of an anr timer and when it went off, mark that range.
-     */
-    private void markAnrLogcatRegions() {
         final Logcat logcat = mBugreport.logcat;
-
-        final Matcher inputDispatcherRe = Pattern.compile(
-                "Application is not responding: .* It has been (\\d+\\.?\\d*)ms since event,"
-                + " (\\d+\\.?\\d*)ms since wait started.*").matcher("");
-
-        for (LogLine line: logcat.lines) {
-            if ("InputDispatcher".equals(line.tag)
-                    && Utils.matches(inputDispatcherRe, line.text)) {
-                float f = Float.parseFloat(inputDispatcherRe.group(2));
-                int seconds = (int)(f / 1000);
-                int milliseconds = Math.round(f % 1000);
-                final Calendar begin = (Calendar)line.time.clone();
-                begin.add(Calendar.SECOND, -seconds);
-                begin.add(Calendar.MILLISECOND, -milliseconds);
-                markAnrRegion(begin, line.time);
+        final int N = logcat.size();
+        for (int i=0; i<N; i++) {
+            final long time = logcat.getTime(i);
+            if (anrCount > 0) {
+                int index = Arrays.binarySearch(anrBegins, 0, anrCount, time);
+                if (index < 0) {
+                    // The region that begins before this line, if there is one.
+                    index = -index - 2;
+                }
+                if (index >= 0 && time < anrEnds[index]) {
+                    logcat.setRegionAnr(i);
+                }
             }
-        }
-    }
-
-    /**
-     * Mark the log lines that happened between the begin and end timestamps
-     * as during the period between when an ANR timer is set and when it goes
-     * off.
-     */
-    private void markAnrRegion(Calendar begin, Calendar end) {
-        for (LogLine line: mBugreport.logcat.lines) {
-            if (line.time.compareTo(begin) >= 0
-                    && line.time.compareTo(end) < 0) {
-                line.regionAnr = true;
+            if (hasBugreportRegion && time != LogLine.NO_TIME
+                    && time >= bugreportBegin && time < bugreportEnd) {
+                logcat.setRegionBugreport(i);
             }
         }
     }
 
     /**
-     * Mark the log lines that were captured while this bugreport was being
-     * taken. Those tend to be less reliable, and are also an indicator of
-     * when the user saw the bug that caused them to take a bugreport.
+     * Copy out the interesting log lines found by scanLogcatLine.  The LogLines
+     * are copies, so this has to happen after the regions have been marked.
      */
-    private void markBugreportRegions() {
-        final Calendar begin = mBugreport.startTime;
-        final Calendar end = mBugreport.endTime;
-        for (LogLine line: mBugreport.logcat.lines) {
-            if (line.time != null) {
-                if (line.time.compareTo(begin) >= 0
-                        && line.time.compareTo(end) < 0) {
-                    line.regionBugreport = true;
-                }
-            }
+    private void makeInterestingLogcat() {
+        final Logcat logcat = mBugreport.logcat;
+        for (int row: mScanner.interestingRows) {
+            mBugreport.interestingLogLines.add(logcat.get(row));
         }
     }
 
@@ -834,19 +812,18 @@ public class Inspector {
      * the bugreport, and no more than 5000 lines before the beginning of the bugreport.
      */
     private void trimLogcat() {
-        final Calendar end = (Calendar)mBugreport.startTime.clone();
-        end.add(Calendar.SECOND, 3);
+        final long end = mBugreport.startTime.getTimeInMillis() + 3000;
 
-        final ArrayList<LogLine> lines = mBugreport.logcat.lines;
+        final Logcat logcat = mBugreport.logcat;
         int i;
 
         // Trim the ones at the end
-        int endIndex = lines.size() - 1;
-        for (i=lines.size()-1; i>=0; i--) {
-            final LogLine line = lines.get(i);
-            if (line.time != null) {
+        int endIndex = logcat.size() - 1;
+        for (i=logcat.size()-1; i>=0; i--) {
+            final long time = logcat.getTime(i);
+            if (time != LogLine.NO_TIME) {
                 // If we've gotten to 3s after when the bugreport started getting taken, stop.
-                if (line.time.compareTo(end) > 0) {
+                if (time > end) {
                     endIndex = i;
                     break;
                 }
@@ -857,7 +834,6 @@ public class Inspector {
         int startIndex = 0;
         int count = 0;
         for (; i>=0; i--) {
-            final LogLine line = lines.get(i);
             count++;
             if (count >= 5000) {
                 startIndex = i;
@@ -865,6 +841,6 @@ public class Inspector {
             }
         }
 
-        mBugreport.logcat.lines = new ArrayList<LogLine>(lines.subList(startIndex, endIndex));
+        mBugreport.logcat = logcat.copy(startIndex, endIndex);
     }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.inspector;
+
+import com.android.bugreport.anr.Anr;
+import com.android.bugreport.anr.AnrParser;
+import com.android.bugreport.logcat.Logcat;
+import com.android.bugreport.logcat.LogcatParser;
+import com.android.bugreport.logcat.LogLine;
+import com.android.bugreport.util.Line;
+import com.android.bugreport.util.Lines;
+import com.android.bugreport.util.RingBuffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inspects a logcat as it is being written, and reports each ANR soon after it
+ * shows up, instead of after the whole log has been captured.
+ *
+ * Only the most recent lines are kept, in a RingBuffer, so memory doesn't grow
+ * with the length of the run.  The lines are scanned for interesting lines and
+ * anr regions the same way the Inspector does for a whole bugreport, except that
+ * lines without a time get the time of the line before them, since the ones after
+ * them haven't been read yet.
+ *
+ * The lines of an ANR from ActivityManager can be split between two calls to
+ * addLines(), so an ANR is reported at the end of the call after the one that it
+ * started in.  If addLines() is called once per poll, even with no lines, that's
+ * at most one poll later.
+ *
+ * Not thread safe.
+ */
+public class LiveInspector {
+    /**
+     * What is known about one ANR when it's reported.
+     */
+    public static class Triage {
+        /**
+         * The ANR, as parsed from the ActivityManager lines.  It has no VM traces.
+         */
+        public Anr anr;
+
+        /**
+         * The ActivityManager lines that the ANR was parsed from.
+         */
+        public final ArrayList<LogLine> anrLines = new ArrayList<LogLine>();
+
+        /**
+         * The interesting lines that are still in the recent lines, in order.
+         */
+        public final ArrayList<LogLine> interestingLines = new ArrayList<LogLine>();
+
+        /**
+         * The recent lines that are in an anr region, in order.
+         */
+        public final ArrayList<LogLine> regionLines = new ArrayList<LogLine>();
+    }
+
+    /**
+     * Gets told about ANRs.
+     */
+    public interface Listener {
+        /**
+         * Called from addLines() for each ANR, in the order they happened.
+         */
+        public void onAnr(Triage triage);
+    }
+
+    private final Listener mListener;
+    private final LogcatParser mParser = new LogcatParser();
+    private final LogcatScanner mScanner = new LogcatScanner();
+    private final AnrParser mAnrParser = new AnrParser();
+
+    /**
+     * The recent lines.
+     */
+    private final RingBuffer<LogLine> mRecent;
+
+    /**
+     * The sequence numbers in mRecent of the interesting lines, oldest first.  The
+     * ones that have been dropped from mRecent are removed as they go.
+     */
+    private final ArrayDeque<Long> mInteresting = new ArrayDeque<Long>();
+
+    /**
+     * The time of the last line that had one.
+     */
+    private long mLastTime = LogLine.NO_TIME;
+
+    /**
+     * The ActivityManager lines of the ANR that hasn't been reported yet, or null.
+     */
+    private ArrayList<LogLine> mPendingAnr;
+
+    /**
+     * The pid that logged the pending ANR, and how many calls to addLines() have
+     * finished since it started.
+     */
+    private int mPendingPid;
+    private int mPendingAge;
+
+    /**
+     * Construct a LiveInspector that keeps the given number of recent lines.
+     */
+    public LiveInspector(int capacity, Listener listener) {
+        mRecent = new RingBuffer<LogLine>(capacity);
+        mListener = listener;
+    }
+
+    /**
+     * Return the recent lines, oldest first.  They must not be changed.
+     */
+    public List<LogLine> getRecentLines() {
+        return mRecent;
+    }
+
+    /**
+     * Parse and inspect the next lines of the logcat, and report any ANRs that are
+     * done.  Call this once per poll, even if there aren't any new lines.
+     */
+    public void addLines(List<? extends Line> lines) {
+        final Logcat logcat = mParser.parse(new Lines<Line>(lines));
+        final long first = mRecent.getNextSequence();
+        final int N = logcat.size();
+        for (int row=0; row<N; row++) {
+            if (logcat.getTime(row) == LogLine.NO_TIME) {
+                logcat.setTime(row, mLastTime);
+            } else {
+                mLastTime = logcat.getTime(row);
+            }
+
+            final LogLine line = logcat.get(row);
+            mRecent.add(line);
+
+            mScanner.scan(logcat, row, row);
+            for (int index: mScanner.interestingRows) {
+                mInteresting.add(first + index);
+            }
+            // A new anr region ends at this line, so all of it has been read.
+            for (long[] region: mScanner.anrRegions) {
+                markAnrRegion(region);
+            }
+            mScanner.interestingRows.clear();
+            mScanner.anrRegions.clear();
+
+            // ANR lines
+            if (line.bufferBegin == null && line.level == 'E'
+                    && "ActivityManager".equals(line.tag)) {
+                if (line.text.startsWith("ANR in ")) {
+                    if (mPendingAnr != null) {
+                        reportAnr();
+                    }
+                    mPendingAnr = new ArrayList<LogLine>();
+                    mPendingPid = line.pid;
+                    mPendingAge = 0;
+                    mPendingAnr.add(line);
+                } else if (mPendingAnr != null && line.pid == mPendingPid) {
+                    mPendingAnr.add(line);
+                }
+            }
+        }
+
+        while (!mInteresting.isEmpty() && mInteresting.peekFirst() < mRecent.getFirstSequence()) {
+            mInteresting.removeFirst();
+        }
+
+        if (mPendingAnr != null) {
+            if (mPendingAge > 0) {
+                reportAnr();
+            } else {
+                mPendingAge++;
+            }
+        }
+    }
+
+    /**
+     * Report the pending ANR now, without waiting for the rest of its lines.  For
+     * when there won't be any more lines.
+     */
+    public void flush() {
+        if (mPendingAnr != null) {
+            reportAnr();
+        }
+    }
+
+    /**
+     * Set the anr region flag on the recent lines in [region[0],region[1]).
+     */
+    private void markAnrRegion(long[] region) {
+        for (int i=mRecent.size()-1; i>=0; i--) {
+            final LogLine line = mRecent.get(i);
+            if (line.time == LogLine.NO_TIME || line.time < region[0]) {
+                break;
+            }
+            if (line.time < region[1]) {
+                line.regionAnr = true;
+            }
+        }
+    }
+
+    /**
+     * Parse the pending ANR and tell the listener about it.
+     */
+    private void reportAnr() {
+        final ArrayList<LogLine> anrLines = mPendingAnr;
+        mPendingAnr = null;
+
+        final ArrayList<Anr> anrs = mAnrParser.parse(new Lines<LogLine>(anrLines), false);
+        if (anrs.size() == 0) {
+            return;
+        }
+
+        final Triage triage = new Triage();
+        triage.anr = anrs.get(0);
+        triage.anrLines.addAll(anrLines);
+        for (long sequence: mInteresting) {
+            final LogLine line = mRecent.getBySequence(sequence);
+            if (line != null) {
+                triage.interestingLines.add(line);
+            }
+        }
+        for (LogLine line: mRecent) {
+            if (line.regionAnr) {
+                triage.regionLines.add(line);
+            }
+        }
+        mListener.onAnr(triage);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.inspector;
+
+import com.android.bugreport.logcat.Logcat;
+import com.android.bugreport.util.Utils;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+
+/**
+ * Looks at log lines one at a time for the ones that are interesting and the anr
+ * regions that they end.  Used by the Inspector on the merged logcat, and by the
+ * LiveInspector on lines as they arrive.
+ *
+ * Not thread safe.
+ */
+class LogcatScanner {
+    /**
+     * Utility class to match log lines that are "interesting" and will
+     * be called out with links at the top of the log and triage sections.
+     */
+    private static class InterestingLineMatcher {
+        private String mTag;
+        private String mPrefix;
+        protected Matcher mMatcher;
+
+        /**
+         * Construct the helper object with the log tag that must be an
+         * exact match, the literal text that the message starts with, and a
+         * message which is a regex pattern.
+         */
+        public InterestingLineMatcher(String tag, String prefix, String regex) {
+            mTag = tag;
+            mPrefix = prefix;
+            mMatcher = Pattern.compile(regex).matcher("");
+        }
+
+        /**
+         * Return whether the text of the row matches the patterns supplied in the
+         * constructor.  The text is only made into a String if the tag and the
+         * prefix match.
+         */
+        public boolean match(Logcat logcat, int row) {
+            return mTag.equals(logcat.getTag(row))
+                    && logcat.messageStartsWith(row, mPrefix)
+                    && Utils.matches(mMatcher, logcat.getText(row));
+        }
+    }
+
+    /**
+     * The matchers to use to detect interesting log lines.
+     */
+    private final InterestingLineMatcher[] mInterestingLineMatchers
+            = new InterestingLineMatcher[] {
+                // ANR logcat
+                new InterestingLineMatcher("ActivityManager", "ANR in ",
+                        "ANR in \\S+.*"),
+            };
+
+    /**
+     * What the InputDispatcher line below starts with, to check before the regex.
+     */
+    private static final String INPUT_DISPATCHER_PREFIX = "Application is not responding: ";
+
+    /**
+     * The InputDispatcher line that says how long ago an ANR timer was started.
+     */
+    private final Matcher mInputDispatcherRe = Pattern.compile(
+            "Application is not responding: .* It has been (\\d+\\.?\\d*)ms since event,"
+            + " (\\d+\\.?\\d*)ms since wait started.*").matcher("");
+
+    /**
+     * The indexes given to scan() for the interesting lines, in order.  A line can
+     * be in here twice.
+     */
+    public final ArrayList<Integer> interestingRows = new ArrayList<Integer>();
+
+    /**
+     * The [begin,end) time ranges between the beginning of an anr timer and
+     * when it went off, in the order they were found.
+     */
+    public final ArrayList<long[]> anrRegions = new ArrayList<long[]>();
+
+    /**
+     * Look at one row of a logcat.  If it is interesting, index is added to
+     * interestingRows, and if it ends an anr region, the region is added to
+     * anrRegions.
+     */
+    public void scan(Logcat logcat, int row, int index) {
+        // Beginning of buffer
+        if (logcat.getBufferBegin(row) != null) {
+            interestingRows.add(index);
+            return;
+        }
+
+        // Regular log lines
+        for (InterestingLineMatcher ilm: mInterestingLineMatchers) {
+            if (ilm.match(logcat, row)) {
+                interestingRows.add(index);
+            }
+        }
+
+        // Anr regions
+        if ("InputDispatcher".equals(logcat.getTag(row))
+                && logcat.messageStartsWith(row, INPUT_DISPATCHER_PREFIX)
+                && Utils.matches(mInputDispatcherRe, logcat.getText(row))) {
+            float f = Float.parseFloat(mInputDispatcherRe.group(2));
+            int seconds = (int)(f / 1000);
+            int milliseconds = Math.round(f % 1000);
+            final long end = logcat.getTime(row);
+            final long begin = end - (seconds * 1000L) - milliseconds;
+            anrRegions.add(new long[] { begin, end });
+        }
+    }
+}
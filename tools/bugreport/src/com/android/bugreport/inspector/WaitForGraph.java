@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.inspector;
+
+import com.android.bugreport.stacks.LockSnapshot;
+import com.android.bugreport.stacks.ProcessSnapshot;
+import com.android.bugreport.stacks.ThreadSnapshot;
+import com.android.bugreport.stacks.VmTraces;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The threads of every process in a VmTraces, with an edge from each thread to
+ * the threads that it is waiting for.
+ *
+ * A thread waits for another thread in the same process if it is blocked on a
+ * java lock that the other thread has locked.  A thread waits for another thread
+ * in a different process if it is making an outbound binder call to the interface
+ * (and method, if both are known) that the other thread is serving.  The binder
+ * call itself isn't in the traces, so every thread serving that interface counts.
+ *
+ * The cycles are the strongly connected components of the graph, which are found
+ * with Tarjan's algorithm in one pass, no matter which thread is stuck.
+ */
+public class WaitForGraph {
+    private final ArrayList<ProcessSnapshot> mNodeProcesses = new ArrayList<ProcessSnapshot>();
+    private final ArrayList<ThreadSnapshot> mNodeThreads = new ArrayList<ThreadSnapshot>();
+
+    /**
+     * The edges, with the ones from node i in mEdges[mEdgeStart[i]] up to but not
+     * including mEdges[mEdgeStart[i+1]].
+     */
+    private int[] mEdgeStart;
+    private int[] mEdges;
+
+    /**
+     * Build the graph for the processes in vmTraces.  Combining the locks and marking
+     * the binder threads must be done first.
+     */
+    public WaitForGraph(VmTraces vmTraces) {
+        // The servers of each binder interface, by package and class.
+        final HashMap<String,ArrayList<Integer>> binderServers
+                = new HashMap<String,ArrayList<Integer>>();
+
+        // The nodes.
+        for (ProcessSnapshot process: vmTraces.processes) {
+            for (ThreadSnapshot thread: process.threads) {
+                final int node = mNodeThreads.size();
+                mNodeProcesses.add(process);
+                mNodeThreads.add(thread);
+                if (thread.inboundBinderClass != null) {
+                    addToList(binderServers, thread.inboundBinderPackage + "."
+                            + thread.inboundBinderClass, node);
+                }
+            }
+        }
+
+        // The edges, as pairs of (from, to).
+        final int N = mNodeThreads.size();
+        int[] edges = new int[16];
+        int edgeCount = 0;
+        int node = 0;
+        for (ProcessSnapshot process: vmTraces.processes) {
+            final int first = node;
+            final int end = first + process.threads.size();
+
+            // The threads in this process that have each lock locked.
+            final HashMap<String,ArrayList<Integer>> lockHolders
+                    = new HashMap<String,ArrayList<Integer>>();
+            for (int i=first; i<end; i++) {
+                for (LockSnapshot lock: mNodeThreads.get(i).locks.values()) {
+                    if ((lock.type & LockSnapshot.LOCKED) != 0) {
+                        addToList(lockHolders, lock.address, i);
+                    }
+                }
+            }
+
+            for (; node<end; node++) {
+                final ThreadSnapshot thread = mNodeThreads.get(node);
+
+                // Locks
+                for (LockSnapshot lock: thread.locks.values()) {
+                    if ((lock.type & LockSnapshot.BLOCKED) == 0) {
+                        continue;
+                    }
+                    final ArrayList<Integer> holders = lockHolders.get(lock.address);
+                    if (holders == null) {
+                        continue;
+                    }
+                    for (int holder: holders) {
+                        if (holder != node) {
+                            if (edgeCount + 2 > edges.length) {
+                                edges = Arrays.copyOf(edges, edges.length * 2);
+                            }
+                            edges[edgeCount++] = node;
+                            edges[edgeCount++] = holder;
+                        }
+                    }
+                }
+
+                // Binder
+                if (thread.outboundBinderClass != null) {
+                    final ArrayList<Integer> servers = binderServers.get(
+                            thread.outboundBinderPackage + "." + thread.outboundBinderClass);
+                    if (servers == null) {
+                        continue;
+                    }
+                    for (int server: servers) {
+                        if (server >= first && server < end) {
+                            // Binder calls to the same process don't block on another thread.
+                            continue;
+                        }
+                        final String method = mNodeThreads.get(server).inboundBinderMethod;
+                        if (method != null && thread.outboundBinderMethod != null
+                                && !method.equals(thread.outboundBinderMethod)) {
+                            continue;
+                        }
+                        if (edgeCount + 2 > edges.length) {
+                            edges = Arrays.copyOf(edges, edges.length * 2);
+                        }
+                        edges[edgeCount++] = node;
+                        edges[edgeCount++] = server;
+                    }
+                }
+            }
+        }
+
+        // Group them by the node they come from.
+        mEdgeStart = new int[N + 1];
+        for (int i=0; i<edgeCount; i+=2) {
+            mEdgeStart[edges[i] + 1]++;
+        }
+        for (int i=0; i<N; i++) {
+            mEdgeStart[i + 1] += mEdgeStart[i];
+        }
+        mEdges = new int[edgeCount / 2];
+        final int[] next = Arrays.copyOf(mEdgeStart, N);
+        for (int i=0; i<edgeCount; i+=2) {
+            mEdges[next[edges[i]]++] = edges[i + 1];
+        }
+    }
+
+    /**
+     * Return the number of threads in the graph.
+     */
+    public int size() {
+        return mNodeThreads.size();
+    }
+
+    /**
+     * Return the number of edges in the graph.
+     */
+    public int getEdgeCount() {
+        return mEdges.length;
+    }
+
+    /**
+     * Return each cycle of threads that are waiting on each other.  Each cycle is a
+     * list of copies of the processes, with only the threads in the cycle.  The
+     * processes and threads are in the order that they are in the VmTraces, and so
+     * are the cycles, by their first thread.
+     */
+    public ArrayList<ArrayList<ProcessSnapshot>> findCycles() {
+        final int N = mNodeThreads.size();
+
+        // The order each node was found in, starting at 1, or 0 if it hasn't been.
+        final int[] index = new int[N];
+        final int[] lowLink = new int[N];
+        final boolean[] onStack = new boolean[N];
+
+        // The nodes that have been found but aren't in a component yet.
+        final int[] stack = new int[N];
+        int stackSize = 0;
+
+        // Instead of recursing, the nodes being visited and the next edge of each.
+        final int[] callNodes = new int[N];
+        final int[] callEdges = new int[N];
+        int callSize = 0;
+
+        final ArrayList<int[]> cycles = new ArrayList<int[]>();
+
+        int nextIndex = 1;
+        for (int root=0; root<N; root++) {
+            if (index[root] != 0) {
+                continue;
+            }
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            callNodes[callSize] = root;
+            callEdges[callSize] = mEdgeStart[root];
+            callSize++;
+
+            while (callSize > 0) {
+                final int node = callNodes[callSize - 1];
+                final int edge = callEdges[callSize - 1];
+                if (edge < mEdgeStart[node + 1]) {
+                    callEdges[callSize - 1] = edge + 1;
+                    final int to = mEdges[edge];
+                    if (index[to] == 0) {
+                        index[to] = lowLink[to] = nextIndex++;
+                        stack[stackSize++] = to;
+                        onStack[to] = true;
+                        callNodes[callSize] = to;
+                        callEdges[callSize] = mEdgeStart[to];
+                        callSize++;
+                    } else if (onStack[to] && index[to] < lowLink[node]) {
+                        lowLink[node] = index[to];
+                    }
+                    continue;
+                }
+
+                // Done with node's edges.
+                callSize--;
+                if (callSize > 0) {
+                    final int parent = callNodes[callSize - 1];
+                    if (lowLink[node] < lowLink[parent]) {
+                        lowLink[parent] = lowLink[node];
+                    }
+                }
+                if (lowLink[node] != index[node]) {
+                    continue;
+                }
+
+                // It's the root of a component.  There are no edges to the node
+                // itself, so it's only a cycle if there's more than one.
+                int start = stackSize - 1;
+                while (stack[start] != node) {
+                    start--;
+                }
+                final int count = stackSize - start;
+                for (int i=start; i<stackSize; i++) {
+                    onStack[stack[i]] = false;
+                }
+                if (count > 1) {
+                    final int[] members = Arrays.copyOfRange(stack, start, stackSize);
+                    Arrays.sort(members);
+                    cycles.add(members);
+                }
+                stackSize = start;
+            }
+        }
+
+        // Tarjan finds them in reverse topological order.  Put them in the same order
+        // as the threads instead.
+        final int[][] sorted = cycles.toArray(new int[cycles.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+
+        final ArrayList<ArrayList<ProcessSnapshot>> result
+                = new ArrayList<ArrayList<ProcessSnapshot>>();
+        for (int[] members: sorted) {
+            final ArrayList<ProcessSnapshot> processes = new ArrayList<ProcessSnapshot>();
+            ProcessSnapshot original = null;
+            ProcessSnapshot cycleProcess = null;
+            for (int member: members) {
+                if (mNodeProcesses.get(member) != original) {
+                    // Only the threads in the cycle, which aren't copied.
+                    original = mNodeProcesses.get(member);
+                    cycleProcess = new ProcessSnapshot();
+                    cycleProcess.pid = original.pid;
+                    cycleProcess.cmdLine = original.cmdLine;
+                    cycleProcess.date = original.date;
+                    processes.add(cycleProcess);
+                }
+                cycleProcess.threads.add(mNodeThreads.get(member));
+            }
+            result.add(processes);
+        }
+        return result;
+    }
+
+    /**
+     * Add value to the list for key in map, making the list if there isn't one.
+     */
+    private static void addToList(HashMap<String,ArrayList<Integer>> map, String key,
+            int value) {
+        ArrayList<Integer> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Integer>();
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+}
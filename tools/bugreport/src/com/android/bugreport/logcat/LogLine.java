@@ -16,15 +16,17 @@
 
 package com.android.bugreport.logcat;
 
-import com.android.bugreport.bugreport.ProcessInfo;
-import com.android.bugreport.bugreport.ThreadInfo;
 import com.android.bugreport.util.Line;
+import com.android.bugreport.util.Utils;
 
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 
 /**
  * A log line.
+ *
+ * Logcat doesn't keep these around.  They are made by Logcat.get, and one can be
+ * reused as a view of each row in turn.
  */
 public class LogLine extends Line {
 
@@ -45,9 +47,15 @@ public class LogLine extends Line {
     public String header;
 
     /**
-     * The timestamp of the event. In UTC even though the device might not have been.
+     * Value of time when the line doesn't have a timestamp.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * The timestamp of the event, in milliseconds since the epoch. In UTC even though
+     * the device might not have been. NO_TIME if there isn't one.
      */
-    public GregorianCalendar time;
+    public long time = NO_TIME;
 
     /**
      * The process that emitted the log.
@@ -81,17 +89,15 @@ public class LogLine extends Line {
     public boolean regionBugreport;
 
     /**
-     * The process associated with this log line.
-     *
-     * TODO: Use the full list of processes from all sources, not just the one from the ANR.
-     */
-    public ProcessInfo process;
-
-    /**
-     * The thread associated with this log line.
-     *
-     * TODO: Use the full list of processes from all sources, not just the one from the ANR.
+     * Returns a new Calendar set to the time, or null if there is no time.
      */
-    public ThreadInfo thread;
+    public GregorianCalendar getCalendar() {
+        if (time == NO_TIME) {
+            return null;
+        }
+        final GregorianCalendar result = new GregorianCalendar(Utils.UTC);
+        result.setTimeInMillis(time);
+        return result;
+    }
 }
 
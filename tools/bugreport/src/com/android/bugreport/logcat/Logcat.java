@@ -16,42 +16,551 @@
 
 package com.android.bugreport.logcat;
 
+import com.android.bugreport.util.BinaryReader;
+import com.android.bugreport.util.BinaryWriter;
+
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Class to represent an android log.
+ *
+ * The lines are stored by column rather than as one LogLine object each: parallel
+ * arrays of the primitive fields, tags interned to ids, and the raw text of every
+ * line appended to one shared buffer, with the header, tag and message found by
+ * offsets into it.  Use the per-row getters to look at single fields without making
+ * any objects, or get(int, LogLine) to fill in a reusable LogLine for a whole row.
  */
 public class Logcat {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int mSize;
+    private int[] mLineno = new int[INITIAL_CAPACITY];
+    private long[] mTime = new long[INITIAL_CAPACITY];
+    private int[] mPid = new int[INITIAL_CAPACITY];
+    private int[] mTid = new int[INITIAL_CAPACITY];
+    private char[] mLevel = new char[INITIAL_CAPACITY];
+
     /**
-     * The lines contained in this logcat.
+     * Index into mTags.  For the beginning of buffer lines, it's the buffer name.
      */
-    public ArrayList<LogLine> lines = new ArrayList<LogLine>();
+    private int[] mTag = new int[INITIAL_CAPACITY];
 
     /**
-     * Return the lines that match the given log tags and optional log level.
+     * Where the raw text of the row starts in mText.  It ends where the next one
+     * starts, or at the end of mText.
+     */
+    private int[] mTextStart = new int[INITIAL_CAPACITY];
+
+    /**
+     * Where the tag starts, relative to the start of the row.  Everything before
+     * it is the header.
+     */
+    private int[] mTagOffset = new int[INITIAL_CAPACITY];
+
+    /**
+     * Where the message starts, relative to the start of the row.
+     */
+    private int[] mMessageOffset = new int[INITIAL_CAPACITY];
+
+    private final StringBuilder mText = new StringBuilder();
+    private final ArrayList<String> mTags = new ArrayList<String>();
+    private final HashMap<String,Integer> mTagIds = new HashMap<String,Integer>();
+
+    /**
+     * The rows for each tag id, in order, and the rows for each level.  Built when
+     * they're first needed, and thrown away when a row is added.
+     */
+    private int[][] mTagRows;
+    private HashMap<Character,BitSet> mLevelRows;
+
+    private final BitSet mBufferBegin = new BitSet();
+    private final BitSet mRegionAnr = new BitSet();
+    private final BitSet mRegionBugreport = new BitSet();
+
+    /**
+     * Return the number of lines.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Add a regular log line.  The header, tag and message are the pieces of
+     * rawText starting at tagStart and messageStart, with the tag ending at tagEnd.
+     */
+    public void add(int lineno, String rawText, int tagStart, int tagEnd, int messageStart,
+            long time, int pid, int tid, char level) {
+        final int row = newRow(lineno, rawText, time);
+        mPid[row] = pid;
+        mTid[row] = tid;
+        mLevel[row] = level;
+        mTag[row] = getTagId(rawText.substring(tagStart, tagEnd));
+        mTagOffset[row] = tagStart;
+        mMessageOffset[row] = messageStart;
+    }
+
+    /**
+     * Add a beginning of buffer line.
+     */
+    public void addBufferBegin(int lineno, String rawText, String bufferBegin, long time) {
+        final int row = newRow(lineno, rawText, time);
+        mPid[row] = -1;
+        mTid[row] = -1;
+        mTag[row] = getTagId(bufferBegin);
+        mBufferBegin.set(row);
+    }
+
+    /**
+     * Add a copy of a row of another Logcat, with a new lineno.
+     */
+    public void add(Logcat that, int row, int lineno) {
+        if (that.mBufferBegin.get(row)) {
+            addBufferBegin(lineno, that.getRawText(row), that.getBufferBegin(row),
+                    that.mTime[row]);
+        } else {
+            final int tagStart = that.mTagOffset[row];
+            add(lineno, that.getRawText(row), tagStart,
+                    tagStart + that.mTags.get(that.mTag[row]).length(),
+                    that.mMessageOffset[row], that.mTime[row], that.mPid[row], that.mTid[row],
+                    that.mLevel[row]);
+        }
+        final int newRow = mSize - 1;
+        mRegionAnr.set(newRow, that.mRegionAnr.get(row));
+        mRegionBugreport.set(newRow, that.mRegionBugreport.get(row));
+    }
+
+    /**
+     * Fill in line with the contents of the row, and return it.  The same LogLine
+     * can be reused for every row.  Changing it doesn't change the Logcat.
      */
-    public ArrayList<LogLine> filter(Set<String> tags, String levels) {
-        final ArrayList<LogLine> result = new ArrayList<LogLine>();
-        for (LogLine line: lines) {
-            if (tags.contains(line.tag) && (levels == null || levels.indexOf(line.level) >= 0)) {
-                result.add(line);
+    public LogLine get(int row, LogLine line) {
+        line.lineno = mLineno[row];
+        line.rawText = getRawText(row);
+        line.time = mTime[row];
+        line.regionAnr = mRegionAnr.get(row);
+        line.regionBugreport = mRegionBugreport.get(row);
+        if (mBufferBegin.get(row)) {
+            line.bufferBegin = mTags.get(mTag[row]);
+            line.header = null;
+            line.pid = -1;
+            line.tid = -1;
+            line.level = 0;
+            line.tag = null;
+            line.text = null;
+        } else {
+            line.bufferBegin = null;
+            line.header = line.rawText.substring(0, mTagOffset[row]);
+            line.pid = mPid[row];
+            line.tid = mTid[row];
+            line.level = mLevel[row];
+            line.tag = mTags.get(mTag[row]);
+            line.text = line.rawText.substring(mMessageOffset[row]);
+        }
+        return line;
+    }
+
+    /**
+     * Return a new LogLine with the contents of the row.
+     */
+    public LogLine get(int row) {
+        return get(row, new LogLine());
+    }
+
+    public int getLineno(int row) {
+        return mLineno[row];
+    }
+
+    public long getTime(int row) {
+        return mTime[row];
+    }
+
+    public void setTime(int row, long time) {
+        mTime[row] = time;
+    }
+
+    public int getPid(int row) {
+        return mPid[row];
+    }
+
+    public int getTid(int row) {
+        return mTid[row];
+    }
+
+    public char getLevel(int row) {
+        return mLevel[row];
+    }
+
+    /**
+     * Return the tag, or null for the beginning of buffer lines.  The tags are
+     * interned, so this doesn't make a new String.
+     */
+    public String getTag(int row) {
+        return mBufferBegin.get(row) ? null : mTags.get(mTag[row]);
+    }
+
+    /**
+     * Return the name of the buffer if this is a beginning of buffer line, otherwise null.
+     */
+    public String getBufferBegin(int row) {
+        return mBufferBegin.get(row) ? mTags.get(mTag[row]) : null;
+    }
+
+    /**
+     * Return the message, or null for the beginning of buffer lines.
+     */
+    public String getText(int row) {
+        if (mBufferBegin.get(row)) {
+            return null;
+        }
+        return mText.substring(mTextStart[row] + mMessageOffset[row], getTextEnd(row));
+    }
+
+    /**
+     * Return whether the message of the row starts with prefix, without making a
+     * String for it.  False for the beginning of buffer lines.
+     */
+    public boolean messageStartsWith(int row, String prefix) {
+        if (mBufferBegin.get(row)) {
+            return false;
+        }
+        final int start = mTextStart[row] + mMessageOffset[row];
+        final int N = prefix.length();
+        if (getTextEnd(row) - start < N) {
+            return false;
+        }
+        for (int i=0; i<N; i++) {
+            if (mText.charAt(start + i) != prefix.charAt(i)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    public String getRawText(int row) {
+        return mText.substring(mTextStart[row], getTextEnd(row));
+    }
+
+    public int getRawTextLength(int row) {
+        return getTextEnd(row) - mTextStart[row];
+    }
+
+    /**
+     * Copy the raw text of the row into the beginning of dst, which must be at
+     * least getRawTextLength(row) long.  For looking at the pieces of a lot of
+     * rows without making Strings for them.
+     */
+    public void getRawChars(int row, char[] dst) {
+        mText.getChars(mTextStart[row], getTextEnd(row), dst, 0);
+    }
+
+    /**
+     * Return where the tag starts in the raw text of the row.  Everything before
+     * it is the header.  Zero for the beginning of buffer lines.
+     */
+    public int getTagOffset(int row) {
+        return mTagOffset[row];
+    }
+
+    /**
+     * Return where the message starts in the raw text of the row.  Zero for the
+     * beginning of buffer lines.
+     */
+    public int getMessageOffset(int row) {
+        return mMessageOffset[row];
+    }
+
+    public boolean isRegionAnr(int row) {
+        return mRegionAnr.get(row);
+    }
+
+    public void setRegionAnr(int row) {
+        mRegionAnr.set(row);
+    }
+
+    public boolean isRegionBugreport(int row) {
+        return mRegionBugreport.get(row);
+    }
+
+    public void setRegionBugreport(int row) {
+        mRegionBugreport.set(row);
+    }
+
+    /**
+     * Return a new Logcat with a copy of the rows in [from,to).
+     */
+    public Logcat copy(int from, int to) {
+        final Logcat result = new Logcat();
+        for (int row=from; row<to; row++) {
+            result.add(this, row, mLineno[row]);
+        }
         return result;
     }
 
+    /**
+     * Return the lines that match the given log tags and optional log level.
+     * The LogLines are only made when the list is read.
+     */
+    public List<LogLine> filter(Set<String> tags, String levels) {
+        buildIndex();
+
+        // Union of the rows for each of the tags, kept in order.
+        final BitSet rows = new BitSet();
+        for (String tag: tags) {
+            final Integer id = mTagIds.get(tag);
+            if (id != null) {
+                for (int row: mTagRows[id]) {
+                    rows.set(row);
+                }
+            }
+        }
+        final int[] result = new int[rows.cardinality()];
+        int count = 0;
+        for (int row=rows.nextSetBit(0); row>=0; row=rows.nextSetBit(row+1)) {
+            result[count++] = row;
+        }
+        return filterLevels(result, count, levels);
+    }
+
     /**
      * Return the lines that match the given log tag and optional log level.
+     * The LogLines are only made when the list is read.
+     */
+    public List<LogLine> filter(String tag, String levels) {
+        buildIndex();
+
+        final Integer id = mTagIds.get(tag);
+        if (id == null) {
+            return new RowList(new int[0], 0);
+        }
+        final int[] rows = mTagRows[id];
+        return filterLevels(rows, rows.length, levels);
+    }
+
+    /**
+     * Return a RowList of the first count rows that have one of the levels.  If
+     * levels is null, all of them.
+     */
+    private RowList filterLevels(int[] rows, int count, String levels) {
+        if (levels == null) {
+            return new RowList(rows, count);
+        }
+        final int levelCount = levels.length();
+        final BitSet[] levelRows = new BitSet[levelCount];
+        for (int i=0; i<levelCount; i++) {
+            levelRows[i] = mLevelRows.get(levels.charAt(i));
+        }
+        final int[] result = new int[count];
+        int resultCount = 0;
+        for (int i=0; i<count; i++) {
+            final int row = rows[i];
+            for (BitSet bits: levelRows) {
+                if (bits != null && bits.get(row)) {
+                    result[resultCount++] = row;
+                    break;
+                }
+            }
+        }
+        return new RowList(result, resultCount);
+    }
+
+    /**
+     * Build the index of the rows for each tag and level, if it isn't up to date.
+     * The beginning of buffer lines aren't in it.
      */
-    public ArrayList<LogLine> filter(String tag, String levels) {
-        final ArrayList<LogLine> result = new ArrayList<LogLine>();
-        for (LogLine line: lines) {
-            if (tag.equals(line.tag) && (levels == null || levels.indexOf(line.level) >= 0)) {
-                result.add(line);
+    private void buildIndex() {
+        if (mTagRows != null) {
+            return;
+        }
+
+        // Count them first, so each tag gets an exactly sized array.
+        final int tagCount = mTags.size();
+        final int[] counts = new int[tagCount];
+        for (int row=0; row<mSize; row++) {
+            if (!mBufferBegin.get(row)) {
+                counts[mTag[row]]++;
+            }
+        }
+        final int[][] tagRows = new int[tagCount][];
+        for (int i=0; i<tagCount; i++) {
+            tagRows[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+
+        final HashMap<Character,BitSet> levelRows = new HashMap<Character,BitSet>();
+        for (int row=0; row<mSize; row++) {
+            if (mBufferBegin.get(row)) {
+                continue;
+            }
+            final int tag = mTag[row];
+            tagRows[tag][counts[tag]++] = row;
+
+            BitSet bits = levelRows.get(mLevel[row]);
+            if (bits == null) {
+                bits = new BitSet();
+                levelRows.put(mLevel[row], bits);
+            }
+            bits.set(row);
+        }
+
+        mTagRows = tagRows;
+        mLevelRows = levelRows;
+    }
+
+    /**
+     * A read-only list of LogLines for some of the rows.  The LogLine for a row
+     * is made each time it's asked for.
+     */
+    private class RowList extends AbstractList<LogLine> {
+        private final int[] mRows;
+        private final int mCount;
+
+        public RowList(int[] rows, int count) {
+            mRows = rows;
+            mCount = count;
+        }
+
+        @Override
+        public LogLine get(int index) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException("index=" + index + " size=" + mCount);
+            }
+            return Logcat.this.get(mRows[index]);
+        }
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Write the whole Logcat, to be read back by read().
+     */
+    public void write(BinaryWriter out) throws IOException {
+        out.writeInt(mSize);
+        out.writeInts(mLineno, mSize);
+        out.writeLongs(mTime, mSize);
+        out.writeInts(mPid, mSize);
+        out.writeInts(mTid, mSize);
+        out.writeChars(mLevel, mSize);
+        out.writeInts(mTag, mSize);
+        out.writeInts(mTextStart, mSize);
+        out.writeInts(mTagOffset, mSize);
+        out.writeInts(mMessageOffset, mSize);
+        out.writeText(mText);
+        final int tagCount = mTags.size();
+        out.writeInt(tagCount);
+        for (int i=0; i<tagCount; i++) {
+            out.writeString(mTags.get(i));
+        }
+        out.writeBits(mBufferBegin, mSize);
+        out.writeBits(mRegionAnr, mSize);
+        out.writeBits(mRegionBugreport, mSize);
+    }
+
+    /**
+     * Read a Logcat written by write().
+     */
+    public static Logcat read(BinaryReader in) throws IOException {
+        final Logcat result = new Logcat();
+        final int size = in.readLength(4);
+        result.mLineno = in.readInts(size);
+        result.mTime = in.readLongs(size);
+        result.mPid = in.readInts(size);
+        result.mTid = in.readInts(size);
+        result.mLevel = in.readChars(size);
+        result.mTag = in.readInts(size);
+        result.mTextStart = in.readInts(size);
+        result.mTagOffset = in.readInts(size);
+        result.mMessageOffset = in.readInts(size);
+        result.mText.append(in.readText());
+        final int tagCount = in.readLength(4);
+        for (int i=0; i<tagCount; i++) {
+            result.getTagId(in.readString());
+        }
+        result.mBufferBegin.or(in.readBits());
+        result.mRegionAnr.or(in.readBits());
+        result.mRegionBugreport.or(in.readBits());
+        result.mSize = size;
+
+        // Check the things that would otherwise blow up later.
+        int textStart = 0;
+        for (int i=0; i<size; i++) {
+            if (result.mTag[i] < 0 || result.mTag[i] >= tagCount
+                    || result.mTextStart[i] < textStart) {
+                throw new IOException("Bad logcat row " + i);
+            }
+            textStart = result.mTextStart[i];
+        }
+        if (textStart > result.mText.length()) {
+            throw new IOException("Bad logcat text");
+        }
+        for (int i=0; i<size; i++) {
+            // The tag is in the header, before the message, and they're all in
+            // the row's text.
+            final int length = result.getRawTextLength(i);
+            final int tagOffset = result.mTagOffset[i];
+            final int messageOffset = result.mMessageOffset[i];
+            if (tagOffset < 0 || messageOffset < tagOffset || messageOffset > length
+                    || (!result.mBufferBegin.get(i) && tagOffset
+                            + result.mTags.get(result.mTag[i]).length() > messageOffset)) {
+                throw new IOException("Bad logcat offsets in row " + i);
             }
         }
         return result;
     }
+
+    /**
+     * Start a new row with the fields that every line has, and return its index.
+     */
+    private int newRow(int lineno, String rawText, long time) {
+        if (mSize == mLineno.length) {
+            final int capacity = Math.max(INITIAL_CAPACITY, mSize * 2);
+            mLineno = Arrays.copyOf(mLineno, capacity);
+            mTime = Arrays.copyOf(mTime, capacity);
+            mPid = Arrays.copyOf(mPid, capacity);
+            mTid = Arrays.copyOf(mTid, capacity);
+            mLevel = Arrays.copyOf(mLevel, capacity);
+            mTag = Arrays.copyOf(mTag, capacity);
+            mTextStart = Arrays.copyOf(mTextStart, capacity);
+            mTagOffset = Arrays.copyOf(mTagOffset, capacity);
+            mMessageOffset = Arrays.copyOf(mMessageOffset, capacity);
+        }
+        final int row = mSize++;
+        mTagRows = null;
+        mLevelRows = null;
+        mLineno[row] = lineno;
+        mTime[row] = time;
+        mTextStart[row] = mText.length();
+        mText.append(rawText);
+        return row;
+    }
+
+    /**
+     * Return the end of the raw text of the row in mText.
+     */
+    private int getTextEnd(int row) {
+        return row + 1 < mSize ? mTextStart[row + 1] : mText.length();
+    }
+
+    /**
+     * Return the id for the tag, adding it to the table if it's new.
+     */
+    private int getTagId(String tag) {
+        final Integer id = mTagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        final int newId = mTags.size();
+        mTags.add(tag);
+        mTagIds.put(tag, newId);
+        return newId;
+    }
 }
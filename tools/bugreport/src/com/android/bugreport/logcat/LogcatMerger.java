@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.logcat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Merges any number of logcats into one, ordered by timestamp.
+ *
+ * Each source is expected to be in order already (or nearly), so its lines are
+ * always taken in order.  A heap holds the next line of each source, and the one
+ * with the earliest time goes next.  Ties go to the source that was added first.
+ * Lines without a time go as soon as they come up.
+ */
+public class LogcatMerger {
+    /**
+     * Called for each line as it's added to the result.
+     */
+    public interface LineListener {
+        void onLine(Logcat logcat, int row);
+    }
+
+    /**
+     * The position in one of the sources.
+     */
+    private static class Cursor {
+        public final Logcat logcat;
+        public final int order;
+        public final String bufferName;
+        public int row;
+
+        public Cursor(Logcat logcat, int order, String bufferName) {
+            this.logcat = logcat;
+            this.order = order;
+            this.bufferName = bufferName;
+        }
+    }
+
+    private final ArrayList<Cursor> mSources = new ArrayList<Cursor>();
+
+    /**
+     * Constructor
+     */
+    public LogcatMerger() {
+    }
+
+    /**
+     * Add a source.  Null or empty ones are ignored.
+     *
+     * @param bufferName If the source doesn't start with its own beginning of buffer
+     *      line, one is made up for this buffer name before its first line.  If null,
+     *      no line is made up.
+     */
+    public void add(Logcat logcat, String bufferName) {
+        if (logcat != null && logcat.size() > 0) {
+            mSources.add(new Cursor(logcat, mSources.size(), bufferName));
+        }
+    }
+
+    /**
+     * Merge all of the sources into a new Logcat, numbering the lines from
+     * firstLineno.  If listener is not null, it's called for each line in order.
+     */
+    public Logcat merge(int firstLineno, LineListener listener) {
+        final Logcat result = new Logcat();
+        int lineno = firstLineno;
+
+        final PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(
+                Math.max(1, mSources.size()), new Comparator<Cursor>() {
+                    @Override
+                    public int compare(Cursor a, Cursor b) {
+                        final int cmp = Long.compare(a.logcat.getTime(a.row),
+                                b.logcat.getTime(b.row));
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                        return Integer.compare(a.order, b.order);
+                    }
+                });
+        for (Cursor cursor: mSources) {
+            cursor.row = 0;
+            heap.add(cursor);
+        }
+
+        Cursor cursor;
+        while ((cursor = heap.poll()) != null) {
+            final Logcat logcat = cursor.logcat;
+            if (cursor.row == 0 && cursor.bufferName != null
+                    && logcat.getBufferBegin(0) == null) {
+                result.addBufferBegin(lineno++, "--------- beginning of " + cursor.bufferName,
+                        cursor.bufferName, logcat.getTime(0));
+                if (listener != null) {
+                    listener.onLine(result, result.size() - 1);
+                }
+            }
+
+            result.add(logcat, cursor.row, lineno++);
+            if (listener != null) {
+                listener.onLine(result, result.size() - 1);
+            }
+
+            cursor.row++;
+            if (cursor.row < logcat.size()) {
+                heap.add(cursor);
+            }
+        }
+
+        return result;
+    }
+}
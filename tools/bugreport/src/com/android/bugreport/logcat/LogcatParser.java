@@ -34,9 +34,24 @@ public class LogcatParser {
             "(" + Utils.DATE_TIME_MS_PATTERN
                 + "\\s+(\\d+)\\s+(\\d+)\\s+(.)\\s+)(.*?):\\s(.*)");
 
+    private static final String BUFFER_BEGIN_PREFIX = "--------- beginning of ";
+
     private final Matcher mBufferBeginRe = BUFFER_BEGIN_RE.matcher("");
     private final Matcher mLogLineRe = LOG_LINE_RE.matcher("");
 
+    /**
+     * Where parseThreadtime found the pieces of the line.
+     */
+    private int mTagStart;
+    private int mTagEnd;
+    private int mMessageStart;
+    private long mTime;
+    private int mPid;
+    private int mTid;
+    private char mLevel;
+
+    private int mDroppedLines;
+
     /**
      * Constructor
      */
@@ -48,45 +63,44 @@ public class LogcatParser {
      */
     public Logcat parse(Lines<? extends Line> lines) {
         final Logcat result = new Logcat();
+        mDroppedLines = 0;
 
         Matcher m;
         int lineno = 0;
+        final int currentYear = Utils.currentYear();
 
         while (lines.hasNext()) {
             final Line line = lines.next();
             final String text = line.text;
+            m = null;
 
-            if ((m = Utils.match(mBufferBeginRe, text)) != null) {
+            if (text.startsWith(BUFFER_BEGIN_PREFIX)
+                    && (m = Utils.match(mBufferBeginRe, text)) != null) {
                 // Beginning of buffer marker
-                final LogLine ll = new LogLine();
-
-                ll.lineno = lineno++;
-                ll.rawText = text;
-                ll.bufferBegin = m.group(1);
-
-                result.lines.add(ll);
-            } else if ((m = Utils.match(mLogLineRe, text)) != null) {
+                result.addBufferBegin(lineno++, text, m.group(1), LogLine.NO_TIME);
+            } else if (parseThreadtime(text, currentYear)
+                    || (m = Utils.match(mLogLineRe, text)) != null) {
                 // Matched line
-                final LogLine ll = new LogLine();
-
-                ll.lineno = lineno++;
-                ll.rawText = text;
-                ll.header = m.group(1);
-                ll.time = Utils.parseCalendar(m, 2, true);
-                ll.pid = Integer.parseInt(m.group(9));
-                ll.tid = Integer.parseInt(m.group(10));
-                ll.level = m.group(11).charAt(0);
-                ll.tag = m.group(12);
-                ll.text = m.group(13);
-
-                result.lines.add(ll);
+                if (m != null) {
+                    mTagStart = m.start(12);
+                    mTagEnd = m.end(12);
+                    mMessageStart = m.start(13);
+                    mTime = Utils.parseTime(m, 2, currentYear);
+                    mPid = Integer.parseInt(m.group(9));
+                    mTid = Integer.parseInt(m.group(10));
+                    mLevel = m.group(11).charAt(0);
+                }
+                result.add(lineno++, text, mTagStart, mTagEnd, mMessageStart, mTime, mPid, mTid,
+                        mLevel);
 
                 if (false) {
-                    System.out.println("LogLine: time=" + ll.time + " pid=" + ll.pid
-                            + " tid=" + ll.tid + " level=" + ll.level + " tag=" + ll.tag
-                            + " text=" + ll.text);
+                    System.out.println("LogLine: time=" + mTime + " pid=" + mPid
+                            + " tid=" + mTid + " level=" + mLevel
+                            + " tag=" + text.substring(mTagStart, mTagEnd)
+                            + " text=" + text.substring(mMessageStart));
                 }
             } else {
+                mDroppedLines++;
                 if (false) {
                     System.out.println("\nUNMATCHED: [" + text + "]");
                 }
@@ -96,4 +110,177 @@ public class LogcatParser {
         return result;
     }
 
+    /**
+     * Return the number of lines that the last parse() skipped because they weren't
+     * logcat lines in a format it knows.
+     */
+    public int getDroppedLineCount() {
+        return mDroppedLines;
+    }
+
+    /**
+     * Parse a line in the threadtime format without using LOG_LINE_RE, and fill in
+     * mTagStart, mTime and the rest.  Only the common layout is handled here:
+     *
+     *     [YYYY-]MM-DD HH:MM:SS.mmm  PID  TID L TAG: TEXT
+     *
+     * Returns false for anything else, including lines that LOG_LINE_RE would still
+     * accept by backtracking (e.g. a blank level).  The caller must then fall back to
+     * the regex.  When this returns true, the fields are exactly what the regex would
+     * have produced.  If the year is missing, currentYear is used.
+     */
+    private boolean parseThreadtime(String text, int currentYear) {
+        final int length = text.length();
+        int i = 0;
+
+        // Date, with optional year
+        int year = currentYear;
+        if (length > 4 && text.charAt(4) == '-') {
+            year = parseDigits(text, 0, 4);
+            if (year < 0) {
+                return false;
+            }
+            i = 5;
+        }
+        if (i + 18 > length) {
+            return false;
+        }
+        final int month = parseDigits(text, i, 2);
+        final int day = parseDigits(text, i + 3, 2);
+        if (month < 0 || text.charAt(i + 2) != '-' || day < 0) {
+            return false;
+        }
+        i = skipWhitespace(text, i + 5, length);
+        if (i < 0 || i + 12 > length) {
+            return false;
+        }
+
+        // Time
+        final int hour = parseDigits(text, i, 2);
+        final int minute = parseDigits(text, i + 3, 2);
+        final int second = parseDigits(text, i + 6, 2);
+        final int millis = parseDigits(text, i + 9, 3);
+        if (hour < 0 || text.charAt(i + 2) != ':' || minute < 0 || text.charAt(i + 5) != ':'
+                || second < 0 || text.charAt(i + 8) != '.' || millis < 0) {
+            return false;
+        }
+        i = skipWhitespace(text, i + 12, length);
+
+        // Pid and tid
+        int start = i;
+        i = skipDigits(text, i, length);
+        if (i < 0) {
+            return false;
+        }
+        final int pid = parseDigits(text, start, i - start);
+        i = skipWhitespace(text, i, length);
+        start = i;
+        i = skipDigits(text, i, length);
+        if (pid < 0 || i < 0) {
+            return false;
+        }
+        final int tid = parseDigits(text, start, i - start);
+        i = skipWhitespace(text, i, length);
+        if (tid < 0 || i < 0 || i >= length) {
+            return false;
+        }
+
+        // Level
+        final char level = text.charAt(i);
+        if (isLineTerminator(level)) {
+            return false;
+        }
+        i = skipWhitespace(text, i + 1, length);
+        if (i < 0) {
+            return false;
+        }
+
+        // Tag, up to the first colon followed by whitespace, then the message.
+        final int tagStart = i;
+        int colon = -1;
+        for (; i < length; i++) {
+            final char c = text.charAt(i);
+            if (isLineTerminator(c)) {
+                return false;
+            }
+            if (colon < 0 && c == ':' && i + 1 < length && isWhitespace(text.charAt(i + 1))) {
+                colon = i;
+            }
+        }
+        if (colon < 0) {
+            return false;
+        }
+
+        mTagStart = tagStart;
+        mTagEnd = colon;
+        mMessageStart = colon + 2;
+        mTime = Utils.makeTime(year, month, day, hour, minute, second, millis);
+        mPid = pid;
+        mTid = tid;
+        mLevel = level;
+        return true;
+    }
+
+    /**
+     * Parse count ASCII digits starting at offset.  Returns -1 if any of them isn't
+     * a digit, or if there are too many to fit in an int.
+     */
+    private static int parseDigits(String text, int offset, int count) {
+        if (count <= 0 || count > 9) {
+            return -1;
+        }
+        int result = 0;
+        for (int i=offset; i<offset+count; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = (result * 10) + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Skip one or more ASCII digits.  Returns the index after them, or -1 if there
+     * wasn't one at offset.
+     */
+    private static int skipDigits(String text, int offset, int length) {
+        if (offset < 0) {
+            return -1;
+        }
+        int i = offset;
+        while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i > offset ? i : -1;
+    }
+
+    /**
+     * Skip one or more whitespace characters, the same ones as \s in a regex.
+     * Returns the index after them, or -1 if there wasn't one at offset.
+     */
+    private static int skipWhitespace(String text, int offset, int length) {
+        if (offset < 0) {
+            return -1;
+        }
+        int i = offset;
+        while (i < length && isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i > offset ? i : -1;
+    }
+
+    /**
+     * The same characters as \s in a regex.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * The characters that . in a regex doesn't match.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.logcat;
+
+import com.android.bugreport.util.Line;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+
+/**
+ * Reads the lines that have been added to the end of a file that is still being
+ * written, like "logcat -f" or "adb logcat > file" makes.
+ *
+ * Each poll() returns the lines that have been finished since the last one.  A
+ * line without its newline yet is kept until the rest of it arrives.
+ *
+ * The path is checked on each poll.  If it has become a different file, like after
+ * "logcat -f -r" rotates it, the rest of the old file is read and then the new one
+ * is read from the beginning.  If it has gotten shorter, it's taken to have been
+ * truncated and is read again from the beginning.  If the file doesn't exist yet,
+ * there just aren't any lines.
+ *
+ * Not thread safe.
+ */
+public class LogcatTailer implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final int mMaxBytesPerPoll;
+
+    private FileChannel mChannel;
+    private Object mFileKey;
+    private long mPosition;
+    private int mLineno;
+
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * The start of a line that hasn't been finished yet.
+     */
+    private final StringBuilder mPartial = new StringBuilder();
+
+    /**
+     * Construct a LogcatTailer that starts at the beginning of file, and reads at
+     * most maxBytesPerPoll bytes each poll, so catching up on a big file is done a
+     * piece at a time.
+     */
+    public LogcatTailer(File file, int maxBytesPerPoll) {
+        mFile = file;
+        mMaxBytesPerPoll = maxBytesPerPoll;
+    }
+
+    /**
+     * Return the lines that have been finished since the last poll, numbered from 1
+     * at the beginning of the file.
+     */
+    public ArrayList<Line> poll() throws IOException {
+        final ArrayList<Line> result = new ArrayList<Line>();
+
+        BasicFileAttributes attrs = null;
+        try {
+            attrs = Files.readAttributes(mFile.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            // Not there yet, or between being rotated away and made again.
+        }
+
+        int total = 0;
+        if (mChannel != null && attrs != null) {
+            final Object fileKey = attrs.fileKey();
+            if (fileKey != null && !fileKey.equals(mFileKey)) {
+                // Rotated.  Finish the old file, and then start on the new one.
+                // If there's more of the old file than one poll reads, this
+                // happens again next time.
+                total = read(result, mMaxBytesPerPoll);
+                if (total >= mMaxBytesPerPoll) {
+                    return result;
+                }
+                if (mPartial.length() > 0) {
+                    mLineno++;
+                    result.add(new Line(mLineno, mPartial.toString()));
+                }
+                close();
+                reset();
+            } else if (attrs.size() < mPosition) {
+                // Truncated.  Start again.
+                reset();
+            }
+        }
+
+        if (mChannel == null) {
+            if (attrs == null) {
+                return result;
+            }
+            try {
+                mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                return result;
+            }
+            mFileKey = attrs.fileKey();
+        }
+
+        read(result, mMaxBytesPerPoll - total);
+        return result;
+    }
+
+    /**
+     * Read up to maxBytes from the channel, and add the lines that are finished to
+     * lines.  Returns the number of bytes read.
+     */
+    private int read(ArrayList<Line> lines, int maxBytes) throws IOException {
+        int total = 0;
+        int count;
+        while (total < maxBytes && (count = mChannel.read(mBytes, mPosition)) > 0) {
+            mPosition += count;
+            total += count;
+
+            // Any bytes of a character that was cut off stay in mBytes for next time.
+            mBytes.flip();
+            CoderResult coderResult;
+            do {
+                coderResult = mDecoder.decode(mBytes, mChars, false);
+                mChars.flip();
+                addLines(lines);
+                mChars.clear();
+            } while (coderResult.isOverflow());
+            mBytes.compact();
+        }
+        return total;
+    }
+
+    /**
+     * Go back to the beginning of the file.
+     */
+    private void reset() {
+        mPosition = 0;
+        mLineno = 0;
+        mBytes.clear();
+        mDecoder.reset();
+        mPartial.setLength(0);
+    }
+
+    /**
+     * Move the finished lines in mChars to lines.
+     */
+    private void addLines(ArrayList<Line> lines) {
+        final int N = mChars.limit();
+        for (int i=0; i<N; i++) {
+            final char c = mChars.get(i);
+            if (c == '\n') {
+                int length = mPartial.length();
+                if (length > 0 && mPartial.charAt(length - 1) == '\r') {
+                    length--;
+                }
+                mLineno++;
+                lines.add(new Line(mLineno, mPartial.substring(0, length)));
+                mPartial.setLength(0);
+            } else {
+                mPartial.append(c);
+            }
+        }
+    }
+
+    /**
+     * Close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+
 package com.android.bugreport.monkey;
 
 import com.android.bugreport.anr.Anr;
@@ -23,21 +24,73 @@ import com.android.bugreport.util.Line;
 import com.android.bugreport.util.Lines;
 import com.android.bugreport.util.Utils;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 /**
  * Parser for a monkey log file.
+ *
+ * A monkey log from a long run is gigabytes of events being sent, with an ANR
+ * report here and there, so the file is read as a stream of bytes instead of
+ * lines.  Only the first few bytes of each line are looked at, until a
+ * "// NOT RESPONDING" line starts a window.  The lines of the window are decoded
+ * and kept, except for the monkey's own event and comment lines, until the next
+ * ANR or the monkey aborts.  Then they are given to the AnrParser and dropped, so
+ * only one window is held at a time.
+ *
+ * The parser can be reused, but is not thread safe.
  */
 public class MonkeyLogParser {
     private static final Pattern NOT_RESPONDING_RE
             = Pattern.compile("// NOT RESPONDING: \\S+ \\(pid \\d+\\)");
-    private static final Pattern ABORTED_RE
-            = Pattern.compile("\\*\\* Monkey aborted due to error\\.");
-    
+
+    /**
+     * The beginning of the lines that NOT_RESPONDING_RE can match.
+     */
+    private static final byte[] NOT_RESPONDING_PREFIX = getBytes("// NOT RESPONDING: ");
+
+    /**
+     * The line the monkey prints when it gives up.
+     */
+    private static final byte[] ABORTED_LINE = getBytes("** Monkey aborted due to error.");
+
+    /**
+     * The beginnings of the lines the monkey prints about the events it sends and
+     * what it sees, which aren't part of an ANR report.
+     */
+    private static final byte[][] MONKEY_PREFIXES = new byte[][] {
+        getBytes("//"),
+        getBytes("    //"),
+        getBytes(":"),
+    };
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The most lines to keep for one ANR.  The rest are dropped.
+     */
+    private static final int MAX_WINDOW_LINES = 200000;
+
+    private final Charset mCharset = Charset.defaultCharset();
+    private final Matcher mAnrStart = NOT_RESPONDING_RE.matcher("");
+    private final AnrParser mAnrParser = new AnrParser();
+
+    private ArrayList<Anr> mAnrs;
+    private ArrayList<Line> mWindow;
+    private int mWindowLineno;
+    private int mWindowDropped;
+    private int mLineno;
+    private boolean mDone;
+
     public MonkeyLogParser() {
     }
 
@@ -45,67 +98,160 @@ public class MonkeyLogParser {
      * Parses the monkey file, adding in what's there into an already
      * created bugreport.
      */
-    public void parse(Bugreport bugreport, Lines<? extends Line> in) throws IOException {
-        // Get the lines
-        final Lines<Line> lines = extractAnrLines(in);
-        if (!lines.hasNext()) {
+    public void parse(Bugreport bugreport, File file) throws IOException {
+        final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            parse(bugreport, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses the monkey log, adding in what's there into an already
+     * created bugreport.
+     */
+    public void parse(Bugreport bugreport, ReadableByteChannel in) throws IOException {
+        final ArrayList<Anr> anrs = parseAnrs(in);
+        bugreport.monkeyAnrs.addAll(anrs);
+        if (anrs.size() >= 1) {
+            // Pick the first one.
+            bugreport.anr = bugreport.monkeyAnr = anrs.get(0);
+        }
+    }
+
+    /**
+     * Return all of the ANRs in the monkey log, in order.
+     */
+    public ArrayList<Anr> parseAnrs(ReadableByteChannel in) throws IOException {
+        mAnrs = new ArrayList<Anr>();
+        mWindow = null;
+        mLineno = 0;
+        mDone = false;
+
+        // Lines end with "\n", "\r" or "\r\n", the same as BufferedReader.readLine.
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean afterCr = false;
+        while (!mDone) {
+            final boolean eof = in.read(buffer) < 0;
+            final byte[] bytes = buffer.array();
+            final int N = buffer.position();
+            int lineStart = 0;
+            for (int i=0; i<N && !mDone; i++) {
+                final byte b = bytes[i];
+                if (b != '\n' && b != '\r') {
+                    continue;
+                }
+                if (b == '\n' && afterCr && i == lineStart) {
+                    // Second half of a "\r\n".  The line was already ended by the '\r'.
+                    lineStart = i + 1;
+                    afterCr = false;
+                    continue;
+                }
+                onLine(bytes, lineStart, i);
+                lineStart = i + 1;
+                afterCr = b == '\r';
+            }
+
+            if (eof) {
+                if (lineStart < N && !mDone) {
+                    // Last line without a terminator.
+                    onLine(bytes, lineStart, N);
+                }
+                break;
+            }
+
+            // Keep the start of the unfinished line for next time.
+            if (lineStart == 0 && N == buffer.capacity()) {
+                final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.flip();
+                buffer.position(lineStart);
+                buffer.compact();
+            }
+        }
+        finishWindow();
+
+        final ArrayList<Anr> result = mAnrs;
+        mAnrs = null;
+        return result;
+    }
+
+    /**
+     * Look at one line of the file, which is bytes[start,end) without its terminator.
+     */
+    private void onLine(byte[] bytes, int start, int end) {
+        mLineno++;
+
+        if (startsWith(bytes, start, end, NOT_RESPONDING_PREFIX)
+                && Utils.matches(mAnrStart, decode(bytes, start, end))) {
+            finishWindow();
+            mWindow = new ArrayList<Line>();
+            mWindowLineno = mLineno;
+            mWindowDropped = 0;
             return;
         }
 
-        final Line line = lines.next();
-        final String text = line.text;
-
-        // ANRs
-        final Matcher anrStart = NOT_RESPONDING_RE.matcher(text);
-        if (Utils.matches(anrStart, text)) {
-            final AnrParser anrParser = new AnrParser();
-            final ArrayList<Anr> anrs = anrParser.parse(lines, true);
-            if (anrs.size() >= 1) {
-                // Pick the first one.
-                bugreport.anr = bugreport.monkeyAnr = anrs.get(0);
+        if (mWindow == null) {
+            return;
+        }
+
+        if (end - start == ABORTED_LINE.length
+                && startsWith(bytes, start, end, ABORTED_LINE)) {
+            finishWindow();
+            mDone = true;
+            return;
+        }
+
+        for (byte[] prefix: MONKEY_PREFIXES) {
+            if (startsWith(bytes, start, end, prefix)) {
+                return;
             }
         }
+
+        if (mWindow.size() < MAX_WINDOW_LINES) {
+            mWindow.add(new Line(mLineno, decode(bytes, start, end)));
+        } else {
+            mWindowDropped++;
+        }
     }
 
     /**
-     * Pull out the ANR lines from a monkey log.
+     * Parse the ANRs in the current window, if there is one, and drop its lines.
      */
-    private static Lines<Line> extractAnrLines(Lines<? extends Line> lines) throws IOException {
-        final int STATE_INITIAL = 0;
-        final int STATE_ANR = 1;
-        final int STATE_DONE = 2;
-
-        ArrayList<Line> list = new ArrayList<Line>();
-
-        final Matcher anrStart = NOT_RESPONDING_RE.matcher("");
-        final Matcher monkeyEnd = ABORTED_RE.matcher("");
-
-        int state = STATE_INITIAL;
-        int lineno = 0;
-        while (state != STATE_DONE && lines.hasNext()) {
-            final Line line = lines.next();
-            lineno++;
-            switch (state) {
-                case STATE_INITIAL:
-                    anrStart.reset(line.text);
-                    if (anrStart.matches()) {
-                        state = STATE_ANR;
-                        list.add(new Line(lineno, line.text));
-                    }
-                    break;
-                case STATE_ANR:
-                    monkeyEnd.reset(line.text);
-                    if (monkeyEnd.matches()) {
-                        state = STATE_DONE;
-                    } else {
-                        list.add(new Line(lineno, line.text));
-                    }
-                    break;
-                default:
-                    break;
+    private void finishWindow() {
+        if (mWindow != null) {
+            if (mWindowDropped > 0) {
+                System.err.println("Dropping the last " + mWindowDropped + " lines of the ANR"
+                        + " at line " + mWindowLineno + " of the monkey log, after the first "
+                        + MAX_WINDOW_LINES);
+            }
+            mAnrs.addAll(mAnrParser.parse(new Lines<Line>(mWindow), true));
+            mWindow = null;
+        }
+    }
+
+    private String decode(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, mCharset);
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        final int N = prefix.length;
+        if (end - start < N) {
+            return false;
+        }
+        for (int i=0; i<N; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
             }
         }
+        return true;
+    }
 
-        return new Lines<Line>(list);
+    private static byte[] getBytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.stacks;
+
+import java.util.HashMap;
+
+/**
+ * The library and symbol strings of the native frames in a StackTrie, and what
+ * each library is for.
+ *
+ * Every process has the same few libraries, so each library and symbol string is
+ * only kept once.  The classification of a library is worked out the first time
+ * it's seen, and after that it's one hash lookup per frame.  Most libraries get
+ * one classification for all of their frames.  For libc, which has both the calls
+ * that idle and the ones that block, it depends on the symbol, without the
+ * parameter list that demangled C++ names have.
+ *
+ * Not thread safe.
+ */
+public class NativeFrameTable {
+    /**
+     * The libraries that classify their frames by symbol.
+     */
+    private static final int BY_SYMBOL = -1;
+
+    /**
+     * The classifications of the libraries, by the file name without the directory.
+     */
+    private static final HashMap<String,Integer> LIBRARY_CLASSES = new HashMap<String,Integer>();
+
+    /**
+     * The classifications of the symbols in the BY_SYMBOL libraries.
+     */
+    private static final HashMap<String,Integer> SYMBOL_CLASSES = new HashMap<String,Integer>();
+
+    static {
+        LIBRARY_CLASSES.put("libc.so", BY_SYMBOL);
+        LIBRARY_CLASSES.put("libbinder.so", NativeStackFrameSnapshot.CLASS_BINDER);
+        LIBRARY_CLASSES.put("libhwbinder.so", NativeStackFrameSnapshot.CLASS_BINDER);
+        LIBRARY_CLASSES.put("libbinder_ndk.so", NativeStackFrameSnapshot.CLASS_BINDER);
+
+        // Waiting for something to do.  Idle worker threads park in the condition
+        // variable and semaphore waits.
+        for (String symbol: new String[] {
+                    "__epoll_pwait", "epoll_pwait", "epoll_wait", "__ppoll", "ppoll", "poll",
+                    "__pselect6", "select", "nanosleep", "clock_nanosleep", "__rt_sigtimedwait",
+                    "sigtimedwait", "__sigsuspend", "pause", "pthread_cond_wait",
+                    "pthread_cond_timedwait", "__pthread_cond_timedwait", "sem_wait",
+                    "sem_timedwait",
+                }) {
+            SYMBOL_CLASSES.put(symbol, NativeStackFrameSnapshot.CLASS_IDLE);
+        }
+
+        // Waiting for a lock.  The futex waits are under the condition variable waits
+        // too, but the Inspector uses the outermost libc frame that it knows.
+        for (String symbol: new String[] {
+                    "__futex_wait_ex", "__futex_wait", "pthread_mutex_lock",
+                    "pthread_mutex_timedlock", "pthread_rwlock_rdlock", "pthread_rwlock_wrlock",
+                }) {
+            SYMBOL_CLASSES.put(symbol, NativeStackFrameSnapshot.CLASS_LOCK);
+        }
+
+        // Talking to the binder driver.
+        SYMBOL_CLASSES.put("__ioctl", NativeStackFrameSnapshot.CLASS_BINDER);
+        SYMBOL_CLASSES.put("ioctl", NativeStackFrameSnapshot.CLASS_BINDER);
+
+        // Reading and writing files and sockets.
+        for (String symbol: new String[] {
+                    "read", "__read_chk", "write", "pread64", "pwrite64", "readv", "writev",
+                    "__openat", "open", "fsync", "fdatasync", "__recvfrom", "recvfrom",
+                    "recvmsg", "__sendto", "sendto", "sendmsg", "__connect", "__accept4",
+                }) {
+            SYMBOL_CLASSES.put(symbol, NativeStackFrameSnapshot.CLASS_IO);
+        }
+    }
+
+    private final HashMap<String,String> mStrings = new HashMap<String,String>();
+    private final HashMap<String,Integer> mLibraryClasses = new HashMap<String,Integer>();
+
+    /**
+     * Construct an empty NativeFrameTable.
+     */
+    public NativeFrameTable() {
+    }
+
+    /**
+     * Replace the library and symbol of the frame with the ones already in the
+     * table, and set its classification and whether that's by symbol.
+     */
+    public void intern(NativeStackFrameSnapshot frame) {
+        frame.library = intern(frame.library);
+        frame.symbol = intern(frame.symbol);
+        final int libraryClass = getCachedLibraryClass(frame.library);
+        frame.bySymbol = libraryClass == BY_SYMBOL;
+        frame.classification = frame.bySymbol ? getSymbolClass(frame.symbol) : libraryClass;
+    }
+
+    /**
+     * Return what the frame in the given library and symbol is doing, as one of
+     * the NativeStackFrameSnapshot.CLASS_ constants.
+     */
+    public int classify(String library, String symbol) {
+        final int libraryClass = getCachedLibraryClass(library);
+        return libraryClass == BY_SYMBOL ? getSymbolClass(symbol) : libraryClass;
+    }
+
+    /**
+     * Return the classification of the library, or BY_SYMBOL, working it out the
+     * first time the library is seen.
+     */
+    private int getCachedLibraryClass(String library) {
+        if (library == null) {
+            return NativeStackFrameSnapshot.CLASS_UNKNOWN;
+        }
+        Integer libraryClass = mLibraryClasses.get(library);
+        if (libraryClass == null) {
+            libraryClass = getLibraryClass(library);
+            mLibraryClasses.put(library, libraryClass);
+        }
+        return libraryClass;
+    }
+
+    /**
+     * Return the classification of a symbol in one of the BY_SYMBOL libraries.
+     */
+    private static int getSymbolClass(String symbol) {
+        final Integer symbolClass = symbol != null
+                ? SYMBOL_CLASSES.get(stripParameters(symbol)) : null;
+        return symbolClass != null ? symbolClass : NativeStackFrameSnapshot.CLASS_UNKNOWN;
+    }
+
+    /**
+     * Return the classification of the library, or BY_SYMBOL.
+     */
+    private static int getLibraryClass(String library) {
+        final String trimmed = library.trim();
+        final Integer libraryClass = LIBRARY_CLASSES.get(
+                trimmed.substring(trimmed.lastIndexOf('/') + 1));
+        return libraryClass != null ? libraryClass : NativeStackFrameSnapshot.CLASS_UNKNOWN;
+    }
+
+    /**
+     * Remove the parameter list from a demangled C++ name, like
+     * "__futex_wait_ex(void volatile*, bool, int, bool, timespec const*)".
+     */
+    private static String stripParameters(String symbol) {
+        final int N = symbol.length();
+        if (N == 0 || symbol.charAt(N - 1) != ')') {
+            return symbol;
+        }
+        // Find the matching '(', in case a parameter has parentheses in it.
+        int depth = 0;
+        for (int i=N-1; i>0; i--) {
+            final char c = symbol.charAt(i);
+            if (c == ')') {
+                depth++;
+            } else if (c == '(') {
+                depth--;
+                if (depth == 0) {
+                    return symbol.substring(0, i);
+                }
+            }
+        }
+        return symbol;
+    }
+
+    /**
+     * Return the number of distinct library and symbol strings.
+     */
+    public int getStringCount() {
+        return mStrings.size();
+    }
+
+    private String intern(String str) {
+        if (str == null) {
+            return null;
+        }
+        final String existing = mStrings.get(str);
+        if (existing != null) {
+            return existing;
+        }
+        mStrings.put(str, str);
+        return str;
+    }
+}
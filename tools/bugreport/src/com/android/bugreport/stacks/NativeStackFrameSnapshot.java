@@ -20,11 +20,30 @@ package com.android.bugreport.stacks;
  * A native (C/C++) stack frame inside a thread.
  */
 public class NativeStackFrameSnapshot extends StackFrameSnapshot {
+    /**
+     * What the frame is doing, for the classification field.
+     */
+    public static final int CLASS_UNKNOWN = 0;
+    public static final int CLASS_IDLE = 1;
+    public static final int CLASS_LOCK = 2;
+    public static final int CLASS_BINDER = 3;
+    public static final int CLASS_IO = 4;
 
     public String library;
     public String symbol;
     public int offset;
-    
+
+    /**
+     * One of the CLASS_ constants, set by NativeFrameTable.
+     */
+    public int classification;
+
+    /**
+     * Whether the classification came from the symbol, because the library has
+     * frames that do different things, like libc.  Set by NativeFrameTable.
+     */
+    public boolean bySymbol;
+
     public NativeStackFrameSnapshot() {
         super(FRAME_TYPE_NATIVE);
     }
@@ -35,6 +54,8 @@ public class NativeStackFrameSnapshot extends StackFrameSnapshot {
         that.library = this.library;
         that.symbol = this.symbol;
         that.offset = this.offset;
+        that.classification = this.classification;
+        that.bySymbol = this.bySymbol;
         return that;
     }
 }
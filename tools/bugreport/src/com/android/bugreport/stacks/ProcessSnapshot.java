@@ -16,7 +16,10 @@
 
 package com.android.bugreport.stacks;
 
+import com.android.bugreport.util.IntMap;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * A vm traces process snapshot.
@@ -27,6 +30,17 @@ public class ProcessSnapshot implements Comparable<ProcessSnapshot> {
     public String date;
     public ArrayList<ThreadSnapshot> threads = new ArrayList<ThreadSnapshot>();
 
+    /**
+     * Indexes of threads, for the getThread functions.  They are rebuilt when
+     * threads is replaced or changes size.  Reordering it in place only matters
+     * if two threads have the same key, and then either one may be found.
+     */
+    private ArrayList<ThreadSnapshot> mIndexedThreads;
+    private int mIndexedCount;
+    private HashMap<String,ThreadSnapshot> mThreadsByName;
+    private IntMap<ThreadSnapshot> mThreadsByTid;
+    private IntMap<ThreadSnapshot> mThreadsBySysTid;
+
     /**
      * Constructs an empty ProcessSnapshot;
      */
@@ -65,36 +79,48 @@ public class ProcessSnapshot implements Comparable<ProcessSnapshot> {
      * Returns the first thread with the given name that's found, or null.
      */
     public ThreadSnapshot getThread(String name) {
-        for (ThreadSnapshot thread: this.threads) {
-            if (name.equals(thread.name)) {
-                return thread;
-            }
-        }
-        return null;
+        updateIndex();
+        return mThreadsByName.get(name);
     }
     
     /**
-     * Returns the first thread with the given name that's found, or null.
+     * Returns the first thread with the given tid that's found, or null.
      */
     public ThreadSnapshot getThread(int tid) {
-        for (ThreadSnapshot thread: this.threads) {
-            if (tid == thread.tid) {
-                return thread;
-            }
-        }
-        return null;
+        updateIndex();
+        return mThreadsByTid.get(tid);
     }
+
     /**
-     * Returns the first thread with the given name that's found, or null.
+     * Returns the first thread with the given sysTid that's found, or null.
      */
     public ThreadSnapshot getSysThread(int sysTid) {
-        for (ThreadSnapshot thread: this.threads) {
-            if (sysTid == thread.sysTid) {
-                return thread;
+        updateIndex();
+        return mThreadsBySysTid.get(sysTid);
+    }
+
+    /**
+     * Build the indexes for the getThread functions, unless they are already
+     * built for the current threads list.
+     */
+    private void updateIndex() {
+        final ArrayList<ThreadSnapshot> threads = this.threads;
+        final int N = threads.size();
+        if (mIndexedThreads == threads && mIndexedCount == N) {
+            return;
+        }
+        mThreadsByName = new HashMap<String,ThreadSnapshot>();
+        mThreadsByTid = new IntMap<ThreadSnapshot>(N);
+        mThreadsBySysTid = new IntMap<ThreadSnapshot>(N);
+        for (int i=0; i<N; i++) {
+            final ThreadSnapshot thread = threads.get(i);
+            if (thread.name != null && !mThreadsByName.containsKey(thread.name)) {
+                mThreadsByName.put(thread.name, thread);
             }
+            mThreadsByTid.putIfAbsent(thread.tid, thread);
+            mThreadsBySysTid.putIfAbsent(thread.sysTid, thread);
         }
-        return null;
+        mIndexedThreads = threads;
+        mIndexedCount = N;
     }
-
 }
-
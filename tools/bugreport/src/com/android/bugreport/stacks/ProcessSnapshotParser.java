@@ -40,10 +40,23 @@ public class ProcessSnapshotParser {
     public static final Pattern CMD_LINE_RE = Pattern.compile(
                     "Cmd line: (.*)");
 
+    private final StackTrie mStacks;
+
+    private int mDroppedLines;
+
     /**
-     * Construct a new parser.
+     * Construct a new parser, which shares stacks only among the threads of each
+     * process.
      */
     public ProcessSnapshotParser() {
+        this(null);
+    }
+
+    /**
+     * Construct a new parser that adds the stacks to the given StackTrie.
+     */
+    public ProcessSnapshotParser(StackTrie stacks) {
+        mStacks = stacks;
     }
 
     /**
@@ -52,6 +65,8 @@ public class ProcessSnapshotParser {
      */
     public ProcessSnapshot parse(Lines<? extends Line> lines) {
         final ProcessSnapshot result = new ProcessSnapshot();
+        final StackTrie stacks = mStacks != null ? mStacks : new StackTrie();
+        mDroppedLines = 0;
 
         final Matcher beginProcessRe = BEGIN_PROCESS_RE.matcher("");
         final Matcher beginUnmanagedThreadRe = ThreadSnapshotParser.BEGIN_UNMANAGED_THREAD_RE
@@ -91,6 +106,7 @@ public class ProcessSnapshotParser {
             } else if (Utils.matches(cmdLineRe, text)) {
                 result.cmdLine = cmdLineRe.group(1);
             } else {
+                mDroppedLines++;
                 if (false) {
                     System.out.println("ProcessSnapshotParser Dropping: " + text);
                 }
@@ -99,6 +115,7 @@ public class ProcessSnapshotParser {
         
         // Thread list
         if (state == STATE_THREADS) {
+            final ThreadSnapshotParser parser = new ThreadSnapshotParser(stacks);
             while (lines.hasNext()) {
                 final Line line = lines.next();
                 final String text = line.text;
@@ -106,7 +123,6 @@ public class ProcessSnapshotParser {
                         || Utils.matches(beginManagedThreadRe, text)
                         || Utils.matches(beginNotAttachedThreadRe, text)) {
                     lines.rewind();
-                    ThreadSnapshotParser parser = new ThreadSnapshotParser(); 
                     final ThreadSnapshot snapshot = parser.parse(lines);
                     if (snapshot != null) {
                         result.threads.add(snapshot);
@@ -116,6 +132,7 @@ public class ProcessSnapshotParser {
                 } else if (Utils.matches(endProcessRe, text)) {
                     break;
                 } else {
+                    mDroppedLines++;
                     if (false) {
                         System.out.println("ProcessSnapshotParser STATE_THREADS Dropping: " + text);
                     }
@@ -135,5 +152,12 @@ public class ProcessSnapshotParser {
         return result;
     }
 
+    /**
+     * Return the number of lines in the process that the last parse() skipped
+     * because it couldn't understand them.
+     */
+    public int getDroppedLineCount() {
+        return mDroppedLines;
+    }
 }
 
@@ -30,7 +30,7 @@ public class StackFrameSnapshot {
     public final int frameType;
     public String text;
     
-    protected StackFrameSnapshot() {
+    public StackFrameSnapshot() {
         this.frameType = FRAME_TYPE_UNKNOWN;
     }
 
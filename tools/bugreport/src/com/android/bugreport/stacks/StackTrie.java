@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.stacks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The stacks of the threads in a VmTraces, stored so that each distinct frame and
+ * each distinct outer part of a stack is only stored once.
+ *
+ * Frames are interned by their text, so the Looper.loop and binder idle frames that
+ * every process has are one object each.  Stacks are a trie starting from the
+ * outermost frame, so threads that are in the same place have the same Node, and
+ * the same frames list.
+ *
+ * Frames that have locks aren't interned, since the locks belong to the thread.
+ * Not thread safe.
+ */
+public class StackTrie {
+    /**
+     * A stack, made of its innermost frame and the stack that called it.
+     */
+    public static class Node {
+        /**
+         * The innermost frame, or null for the empty stack.
+         */
+        public final StackFrameSnapshot frame;
+
+        /**
+         * The rest of the stack, or null for the empty stack.
+         */
+        public final Node parent;
+
+        /**
+         * The number of frames.
+         */
+        public final int depth;
+
+        /**
+         * The stacks that this one calls.  Almost every node has at most one, so
+         * that's kept in mChild, and mChildren is only made when there's a second.
+         */
+        private Node mChild;
+        private IdentityHashMap<StackFrameSnapshot,Node> mChildren;
+
+        private ArrayList<StackFrameSnapshot> mFrames;
+
+        private Node(StackFrameSnapshot frame, Node parent) {
+            this.frame = frame;
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        /**
+         * Return the child with the given innermost frame, or null.
+         */
+        private Node getChild(StackFrameSnapshot frame) {
+            if (mChildren != null) {
+                return mChildren.get(frame);
+            }
+            if (mChild != null && mChild.frame == frame) {
+                return mChild;
+            }
+            return null;
+        }
+
+        /**
+         * Add a child, which isn't already one.
+         */
+        private void addChild(Node child) {
+            if (mChildren != null) {
+                mChildren.put(child.frame, child);
+            } else if (mChild == null) {
+                mChild = child;
+            } else {
+                mChildren = new IdentityHashMap<StackFrameSnapshot,Node>(4);
+                mChildren.put(mChild.frame, mChild);
+                mChildren.put(child.frame, child);
+                mChild = null;
+            }
+        }
+
+        /**
+         * Return the frames, innermost first.  The list is made the first time it's
+         * asked for, and then shared by every thread with this stack, so it must not
+         * be changed.
+         */
+        public ArrayList<StackFrameSnapshot> getFrames() {
+            if (mFrames == null) {
+                mFrames = new ArrayList<StackFrameSnapshot>(depth);
+                for (Node node=this; node.frame != null; node=node.parent) {
+                    mFrames.add(node.frame);
+                }
+            }
+            return mFrames;
+        }
+    }
+
+    private final HashMap<String,StackFrameSnapshot> mFrames
+            = new HashMap<String,StackFrameSnapshot>();
+    private final Node mRoot = new Node(null, null);
+    private final NativeFrameTable mNativeFrames = new NativeFrameTable();
+
+    /**
+     * Construct an empty StackTrie.
+     */
+    public StackTrie() {
+    }
+
+    /**
+     * Return the frame that's already stored with the same text, or store this one
+     * and return it.  Frames with locks are returned as they are.
+     */
+    public StackFrameSnapshot internFrame(StackFrameSnapshot frame) {
+        if (frame.text == null) {
+            return frame;
+        }
+        if (frame.frameType == StackFrameSnapshot.FRAME_TYPE_JAVA
+                && ((JavaStackFrameSnapshot)frame).locks.size() > 0) {
+            return frame;
+        }
+        final StackFrameSnapshot existing = mFrames.get(frame.text);
+        if (existing != null && existing.frameType == frame.frameType) {
+            return existing;
+        }
+        if (existing == null) {
+            mFrames.put(frame.text, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Return the frame that's already stored with the given text, or null.
+     */
+    public StackFrameSnapshot getFrame(String text) {
+        return mFrames.get(text);
+    }
+
+    /**
+     * Return the table of the library and symbol strings of the native frames.
+     */
+    public NativeFrameTable getNativeFrames() {
+        return mNativeFrames;
+    }
+
+    /**
+     * Intern the frames, which are innermost first, and return the Node for the stack.
+     */
+    public Node add(ArrayList<StackFrameSnapshot> frames) {
+        Node node = mRoot;
+        for (int i=frames.size()-1; i>=0; i--) {
+            final StackFrameSnapshot frame = internFrame(frames.get(i));
+            Node child = node.getChild(frame);
+            if (child == null) {
+                child = new Node(frame, node);
+                node.addChild(child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Return the number of distinct frames that have been interned.
+     */
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+}
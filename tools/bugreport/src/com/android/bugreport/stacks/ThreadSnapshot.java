@@ -35,11 +35,27 @@ public class ThreadSnapshot implements Comparable<ThreadSnapshot> {
     public String vmState;
     public ArrayList<String> attributeText = new ArrayList<String>();
     public String heldMutexes;
+    /**
+     * The frames, innermost first.  Once parsed, this is shared with the other threads
+     * that have the same stack, so it must not be changed.
+     */
     public ArrayList<StackFrameSnapshot> frames = new ArrayList<StackFrameSnapshot>();
+
+    /**
+     * The stack in the StackTrie of the VmTraces, or null if it hasn't been added to
+     * one.  Threads with the same stack have the same Node.
+     */
+    public StackTrie.Node stack;
     public boolean runnable;
 
     public boolean blocked;
 
+    /**
+     * If the thread is in native code, what its innermost native frame is doing, as
+     * one of the NativeStackFrameSnapshot.CLASS_ constants.
+     */
+    public int nativeState;
+
     public String outboundBinderPackage;
     public String outboundBinderClass;
     public String outboundBinderMethod;
@@ -77,8 +93,10 @@ public class ThreadSnapshot implements Comparable<ThreadSnapshot> {
         for (int i=0; i<N; i++) {
             this.frames.add(that.frames.get(i).clone());
         }
+        this.stack = that.stack;
         this.runnable = that.runnable;
         this.blocked = that.blocked;
+        this.nativeState = that.nativeState;
         this.outboundBinderPackage = that.outboundBinderPackage;
         this.outboundBinderClass = that.outboundBinderClass;
         this.outboundBinderMethod = that.outboundBinderMethod;
@@ -78,10 +78,45 @@ public class ThreadSnapshotParser {
     public static final Pattern STATE_ATTR_RE = Pattern.compile(
                     "  \\| state=R .*");
 
+    private final StackTrie mStacks;
+    private final NativeFrameTable mNativeFrames;
+
+    // The matchers are reused for every thread, so a parser is not thread safe.
+    private final Matcher mBeginUnmanagedThreadRe = BEGIN_UNMANAGED_THREAD_RE.matcher("");
+    private final Matcher mBeginManagedThreadRe = BEGIN_MANAGED_THREAD_RE.matcher("");
+    private final Matcher mBeginNotAttachedThreadRe = BEGIN_NOT_ATTACHED_THREAD_RE.matcher("");
+    private final Matcher mAttrRe = ATTR_RE.matcher("");
+    private final Matcher mHeldMutexesRe = HELD_MUTEXES_RE.matcher("");
+    private final Matcher mNativeRe = NATIVE_RE.matcher("");
+    private final Matcher mNativeNoLocRe = NATIVE_NO_LOC_RE.matcher("");
+    private final Matcher mKernelRe = KERNEL_RE.matcher("");
+    private final Matcher mKernelUnknownRe = KERNEL_UNKNOWN_RE.matcher("");
+    private final Matcher mJavaRe = JAVA_RE.matcher("");
+    private final Matcher mJniRe = JNI_RE.matcher("");
+    private final Matcher mLockedRe = LOCKED_RE.matcher("");
+    private final Matcher mWaitingOnRe = WAITING_ON_RE.matcher("");
+    private final Matcher mSleepingOnRe = SLEEPING_ON_RE.matcher("");
+    private final Matcher mWaitingToLockHeldRe = WAITING_TO_LOCK_HELD_RE.matcher("");
+    private final Matcher mWaitingToLockRe = WAITING_TO_LOCK_RE.matcher("");
+    private final Matcher mWaitingToLockUnknownRe = WAITING_TO_LOCK_UNKNOWN_RE.matcher("");
+    private final Matcher mNoManagedStackFrameRe = NO_MANAGED_STACK_FRAME_RE.matcher("");
+    private final Matcher mBlankRe = BLANK_RE.matcher("");
+    private final Matcher mSysTidAttrRe = SYS_TID_ATTR_RE.matcher("");
+    private final Matcher mStateAttrRe = STATE_ATTR_RE.matcher("");
+
     /**
-     * Construct a new parser.
+     * Construct a new parser, which shares stacks only among the threads it parses.
      */
     public ThreadSnapshotParser() {
+        this(new StackTrie());
+    }
+
+    /**
+     * Construct a new parser that adds the stacks to the given StackTrie.
+     */
+    public ThreadSnapshotParser(StackTrie stacks) {
+        mStacks = stacks;
+        mNativeFrames = stacks.getNativeFrames();
     }
 
     /**
@@ -93,30 +128,6 @@ public class ThreadSnapshotParser {
         final ThreadSnapshot result = new ThreadSnapshot();
         JavaStackFrameSnapshot lastJava = null;
 
-        final Matcher beginUnmanagedThreadRe = BEGIN_UNMANAGED_THREAD_RE.matcher("");
-        final Matcher beginManagedThreadRe = BEGIN_MANAGED_THREAD_RE.matcher("");
-        final Matcher beginNotAttachedThreadRe = BEGIN_NOT_ATTACHED_THREAD_RE.matcher("");
-        final Matcher attrRe = ATTR_RE.matcher("");
-        final Matcher heldMutexesRe = HELD_MUTEXES_RE.matcher("");
-        final Matcher nativeRe = NATIVE_RE.matcher("");
-        final Matcher nativeNoLocRe = NATIVE_NO_LOC_RE.matcher("");
-        final Matcher kernelRe = KERNEL_RE.matcher("");
-        final Matcher kernelUnknownRe = KERNEL_UNKNOWN_RE.matcher("");
-        final Matcher javaRe = JAVA_RE.matcher("");
-        final Matcher jniRe = JNI_RE.matcher("");
-        final Matcher lockedRe = LOCKED_RE.matcher("");
-        final Matcher waitingOnRe = WAITING_ON_RE.matcher("");
-        final Matcher sleepingOnRe = SLEEPING_ON_RE.matcher("");
-        final Matcher waitingToLockHeldRe = WAITING_TO_LOCK_HELD_RE.matcher("");
-        final Matcher waitingToLockRe = WAITING_TO_LOCK_RE.matcher("");
-        final Matcher waitingToLockUnknownRe = WAITING_TO_LOCK_UNKNOWN_RE.matcher("");
-        final Matcher noManagedStackFrameRe = NO_MANAGED_STACK_FRAME_RE.matcher("");
-        final Matcher blankRe = BLANK_RE.matcher("");
-
-        final Matcher sysTidAttrRe = SYS_TID_ATTR_RE.matcher("");
-        final Matcher stateAttrRe = STATE_ATTR_RE.matcher("");
-
-
         Line line;
         String text;
 
@@ -126,41 +137,41 @@ public class ThreadSnapshotParser {
             return null;
         }
         line = lines.next();
-        if (Utils.matches(beginUnmanagedThreadRe, line.text)) {
+        if (Utils.matches(mBeginUnmanagedThreadRe, line.text)) {
             result.type = ThreadSnapshot.TYPE_UNMANAGED;
-            result.name = beginUnmanagedThreadRe.group(1);
+            result.name = mBeginUnmanagedThreadRe.group(1);
             result.priority = -1;
             result.tid = -1;
-            result.sysTid = Integer.parseInt(beginUnmanagedThreadRe.group(2));
-        } else if (Utils.matches(beginManagedThreadRe, line.text)) {
+            result.sysTid = Integer.parseInt(mBeginUnmanagedThreadRe.group(2));
+        } else if (Utils.matches(mBeginManagedThreadRe, line.text)) {
             result.type = ThreadSnapshot.TYPE_MANAGED;
-            result.name = beginManagedThreadRe.group(1);
-            result.daemon = beginManagedThreadRe.group(2);
-            result.priority = Utils.getInt(beginManagedThreadRe, 3, -1);
-            result.tid = Utils.getInt(beginManagedThreadRe, 4, -1);
-            result.vmState = beginManagedThreadRe.group(5);
-        } else if (Utils.matches(beginNotAttachedThreadRe, line.text)) {
+            result.name = mBeginManagedThreadRe.group(1);
+            result.daemon = mBeginManagedThreadRe.group(2);
+            result.priority = Utils.getInt(mBeginManagedThreadRe, 3, -1);
+            result.tid = Utils.getInt(mBeginManagedThreadRe, 4, -1);
+            result.vmState = mBeginManagedThreadRe.group(5);
+        } else if (Utils.matches(mBeginNotAttachedThreadRe, line.text)) {
             result.type = ThreadSnapshot.TYPE_MANAGED;
-            result.name = beginNotAttachedThreadRe.group(1);
-            result.daemon = beginNotAttachedThreadRe.group(2);
-            result.priority = Utils.getInt(beginNotAttachedThreadRe, 3, -1);
+            result.name = mBeginNotAttachedThreadRe.group(1);
+            result.daemon = mBeginNotAttachedThreadRe.group(2);
+            result.priority = Utils.getInt(mBeginNotAttachedThreadRe, 3, -1);
             result.tid = -1;
-            result.vmState = beginNotAttachedThreadRe.group(4);
+            result.vmState = mBeginNotAttachedThreadRe.group(4);
         }
 
         // Attributes
         while (lines.hasNext()) {
             line = lines.next();
             text = line.text;
-            if (Utils.matches(heldMutexesRe, text)) {
-                result.attributeText.add(heldMutexesRe.group(1));
-                result.heldMutexes = heldMutexesRe.group(2);
-            } else if (Utils.matches(attrRe, text)) {
-                result.attributeText.add(attrRe.group(1));
-                if (Utils.matches(sysTidAttrRe, text)) {
-                    result.sysTid = Integer.parseInt(sysTidAttrRe.group(1));
+            if (Utils.matches(mHeldMutexesRe, text)) {
+                result.attributeText.add(mHeldMutexesRe.group(1));
+                result.heldMutexes = mHeldMutexesRe.group(2);
+            } else if (Utils.matches(mAttrRe, text)) {
+                result.attributeText.add(mAttrRe.group(1));
+                if (Utils.matches(mSysTidAttrRe, text)) {
+                    result.sysTid = Integer.parseInt(mSysTidAttrRe.group(1));
                 }
-                if (Utils.matches(stateAttrRe, text)) {
+                if (Utils.matches(mStateAttrRe, text)) {
                     result.runnable = true;
                 }
             } else {
@@ -173,114 +184,138 @@ public class ThreadSnapshotParser {
         while (lines.hasNext()) {
             line = lines.next();
             text = line.text;
-            if (Utils.matches(nativeRe, text)) {
-                final NativeStackFrameSnapshot frame = new NativeStackFrameSnapshot();
-                frame.text = text;
-                frame.library = nativeRe.group(1);
-                frame.symbol = nativeRe.group(2);
-                frame.offset = Integer.parseInt(nativeRe.group(3));
-                result.frames.add(frame);
-                lastJava = null;
-            } else if (Utils.matches(nativeNoLocRe, text)) {
-                final NativeStackFrameSnapshot frame = new NativeStackFrameSnapshot();
-                frame.text = text;
-                frame.library = nativeNoLocRe.group(1);
-                frame.symbol = nativeNoLocRe.group(2);
-                frame.offset = -1;
-                result.frames.add(frame);
-                lastJava = null;
-            } else if (Utils.matches(kernelRe, text)) {
-                final KernelStackFrameSnapshot frame = new KernelStackFrameSnapshot();
-                frame.text = text;
-                frame.syscall = kernelRe.group(1);
-                frame.offset0 = Integer.parseInt(kernelRe.group(3), 16);
-                frame.offset1 = Integer.parseInt(kernelRe.group(3), 16);
-                result.frames.add(frame);
-                lastJava = null;
-            } else if (Utils.matches(kernelUnknownRe, text)) {
-                final StackFrameSnapshot frame = new StackFrameSnapshot();
-                frame.text = text;
-                result.frames.add(frame);
-                lastJava = null;
-            } else if (Utils.matches(javaRe, text)) {
-                final JavaStackFrameSnapshot frame = new JavaStackFrameSnapshot();
-                frame.text = text;
-                frame.packageName = javaRe.group(1);
-                frame.className = javaRe.group(2);
-                frame.methodName = javaRe.group(3);
-                frame.sourceFile = javaRe.group(4);
-                frame.sourceLine = Integer.parseInt(javaRe.group(5));
-                frame.language = JavaStackFrameSnapshot.LANGUAGE_JAVA;
-                result.frames.add(frame);
-                lastJava = frame;
-            } else if (Utils.matches(jniRe, text)) {
-                final JavaStackFrameSnapshot frame = new JavaStackFrameSnapshot();
-                frame.text = text;
-                frame.packageName = jniRe.group(1);
-                frame.className = jniRe.group(2);
-                frame.methodName = jniRe.group(3);
-                frame.language = JavaStackFrameSnapshot.LANGUAGE_JNI;
-                result.frames.add(frame);
-                lastJava = frame;
-            } else if (Utils.matches(lockedRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
-                    lock.type = LockSnapshot.LOCKED;
-                    lock.address = lockedRe.group(1);
-                    lock.packageName = lockedRe.group(2);
-                    lock.className = lockedRe.group(3);
-                    lastJava.locks.add(lock);
+
+            // The first few characters decide which of the patterns could match, so
+            // only those are tried.  Anything that none of them match is a blank line
+            // or an unknown frame.
+            final char first = (text.length() > 2 && text.charAt(0) == ' '
+                    && text.charAt(1) == ' ') ? text.charAt(2) : 0;
+            if (first == '#' || first == 'n') {
+                // The same native frames are in most threads, so they're usually
+                // already parsed.
+                final StackFrameSnapshot known = mStacks.getFrame(text);
+                if (known != null && known.frameType == StackFrameSnapshot.FRAME_TYPE_NATIVE) {
+                    result.frames.add(known);
+                    lastJava = null;
+                    continue;
                 }
-            } else if (Utils.matches(waitingOnRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
-                    lock.type = LockSnapshot.WAITING;
-                    lock.address = waitingOnRe.group(1);
-                    lock.packageName = waitingOnRe.group(2);
-                    lock.className = waitingOnRe.group(3);
-                    lastJava.locks.add(lock);
+                NativeStackFrameSnapshot frame = parseNativeFrame(text);
+                if (frame == null && Utils.matches(mNativeRe, text)) {
+                    frame = new NativeStackFrameSnapshot();
+                    frame.text = text;
+                    frame.library = mNativeRe.group(1);
+                    frame.symbol = mNativeRe.group(2);
+                    frame.offset = Integer.parseInt(mNativeRe.group(3));
+                } else if (frame == null && Utils.matches(mNativeNoLocRe, text)) {
+                    frame = new NativeStackFrameSnapshot();
+                    frame.text = text;
+                    frame.library = mNativeNoLocRe.group(1);
+                    frame.symbol = mNativeNoLocRe.group(2);
+                    frame.offset = -1;
                 }
-            } else if (Utils.matches(sleepingOnRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
-                    lock.type = LockSnapshot.SLEEPING;
-                    lock.address = sleepingOnRe.group(1);
-                    lock.packageName = sleepingOnRe.group(2);
-                    lock.className = sleepingOnRe.group(3);
-                    lastJava.locks.add(lock);
+                if (frame != null) {
+                    mNativeFrames.intern(frame);
+                    result.frames.add(frame);
+                    lastJava = null;
+                    continue;
                 }
-            } else if (Utils.matches(waitingToLockHeldRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
-                    lock.type = LockSnapshot.BLOCKED;
-                    lock.address = waitingToLockHeldRe.group(1);
-                    lock.packageName = waitingToLockHeldRe.group(2);
-                    lock.className = waitingToLockHeldRe.group(3);
-                    lock.threadId = Integer.parseInt(waitingToLockHeldRe.group(4));
-                    lastJava.locks.add(lock);
+            } else if (first == 'k') {
+                if (Utils.matches(mKernelRe, text)) {
+                    final KernelStackFrameSnapshot frame = new KernelStackFrameSnapshot();
+                    frame.text = text;
+                    frame.syscall = mKernelRe.group(1);
+                    frame.offset0 = Integer.parseInt(mKernelRe.group(3), 16);
+                    frame.offset1 = Integer.parseInt(mKernelRe.group(3), 16);
+                    result.frames.add(frame);
+                    lastJava = null;
+                    continue;
+                } else if (Utils.matches(mKernelUnknownRe, text)) {
+                    final StackFrameSnapshot frame = new StackFrameSnapshot();
+                    frame.text = text;
+                    result.frames.add(frame);
+                    lastJava = null;
+                    continue;
+                }
+            } else if (first == 'a') {
+                JavaStackFrameSnapshot frame = parseJavaFrame(text);
+                if (frame == null && Utils.matches(mJavaRe, text)) {
+                    frame = new JavaStackFrameSnapshot();
+                    frame.text = text;
+                    frame.packageName = mJavaRe.group(1);
+                    frame.className = mJavaRe.group(2);
+                    frame.methodName = mJavaRe.group(3);
+                    frame.sourceFile = mJavaRe.group(4);
+                    frame.sourceLine = Integer.parseInt(mJavaRe.group(5));
+                    frame.language = JavaStackFrameSnapshot.LANGUAGE_JAVA;
+                } else if (frame == null && Utils.matches(mJniRe, text)) {
+                    frame = new JavaStackFrameSnapshot();
+                    frame.text = text;
+                    frame.packageName = mJniRe.group(1);
+                    frame.className = mJniRe.group(2);
+                    frame.methodName = mJniRe.group(3);
+                    frame.language = JavaStackFrameSnapshot.LANGUAGE_JNI;
                 }
-            } else if (Utils.matches(waitingToLockRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
+                if (frame != null) {
+                    result.frames.add(frame);
+                    lastJava = frame;
+                    continue;
+                }
+            } else if (first == '-') {
+                LockSnapshot lock = null;
+                if (Utils.matches(mLockedRe, text)) {
+                    lock = new LockSnapshot();
+                    lock.type = LockSnapshot.LOCKED;
+                    lock.address = mLockedRe.group(1);
+                    lock.packageName = mLockedRe.group(2);
+                    lock.className = mLockedRe.group(3);
+                } else if (Utils.matches(mWaitingOnRe, text)) {
+                    lock = new LockSnapshot();
+                    lock.type = LockSnapshot.WAITING;
+                    lock.address = mWaitingOnRe.group(1);
+                    lock.packageName = mWaitingOnRe.group(2);
+                    lock.className = mWaitingOnRe.group(3);
+                } else if (Utils.matches(mSleepingOnRe, text)) {
+                    lock = new LockSnapshot();
+                    lock.type = LockSnapshot.SLEEPING;
+                    lock.address = mSleepingOnRe.group(1);
+                    lock.packageName = mSleepingOnRe.group(2);
+                    lock.className = mSleepingOnRe.group(3);
+                } else if (Utils.matches(mWaitingToLockHeldRe, text)) {
+                    lock = new LockSnapshot();
+                    lock.type = LockSnapshot.BLOCKED;
+                    lock.address = mWaitingToLockHeldRe.group(1);
+                    lock.packageName = mWaitingToLockHeldRe.group(2);
+                    lock.className = mWaitingToLockHeldRe.group(3);
+                    lock.threadId = Integer.parseInt(mWaitingToLockHeldRe.group(4));
+                } else if (Utils.matches(mWaitingToLockRe, text)) {
+                    lock = new LockSnapshot();
                     lock.type = LockSnapshot.BLOCKED;
-                    lock.address = waitingToLockRe.group(1);
-                    lock.packageName = waitingToLockRe.group(2);
-                    lock.className = waitingToLockRe.group(3);
+                    lock.address = mWaitingToLockRe.group(1);
+                    lock.packageName = mWaitingToLockRe.group(2);
+                    lock.className = mWaitingToLockRe.group(3);
                     lock.threadId = -1;
-                    lastJava.locks.add(lock);
-                }
-            } else if (Utils.matches(waitingToLockUnknownRe, text)) {
-                if (lastJava != null) {
-                    final LockSnapshot lock = new LockSnapshot();
+                } else if (Utils.matches(mWaitingToLockUnknownRe, text)) {
+                    lock = new LockSnapshot();
                     lock.type = LockSnapshot.BLOCKED;
-                    lastJava.locks.add(lock);
                 }
-            } else if (Utils.matches(noManagedStackFrameRe, text)) {
-                final StackFrameSnapshot frame = new StackFrameSnapshot();
-                frame.text = noManagedStackFrameRe.group(1);
-                result.frames.add(frame);
-                lastJava = null;
-            } else if (text.length() == 0 || Utils.matches(blankRe, text)) {
+                if (lock != null) {
+                    // Locks go with the java frame before them.
+                    if (lastJava != null) {
+                        lastJava.locks.add(lock);
+                    }
+                    continue;
+                }
+            } else if (first == '(') {
+                if (Utils.matches(mNoManagedStackFrameRe, text)) {
+                    final StackFrameSnapshot frame = new StackFrameSnapshot();
+                    frame.text = mNoManagedStackFrameRe.group(1);
+                    result.frames.add(frame);
+                    lastJava = null;
+                    continue;
+                }
+            }
+
+            if (text.length() == 0 || Utils.matches(mBlankRe, text)) {
                 break;
             } else {
                 final StackFrameSnapshot frame = new StackFrameSnapshot();
@@ -291,6 +326,10 @@ public class ThreadSnapshotParser {
             }
         }
 
+        // Now that the locks are known, share the frames with the other threads that
+        // have the same stack.
+        result.stack = mStacks.add(result.frames);
+        result.frames = result.stack.getFrames();
 
         if (false) {
             System.out.println();
@@ -335,5 +374,183 @@ public class ThreadSnapshotParser {
 
         return result;
     }
-}
 
+    /**
+     * Parse the usual "  at pkg.Class.method(File.java:123)" form of a java frame
+     * without running JAVA_RE.  Returns null for anything else, including the odd
+     * ones, like a '(' in the name, and the regexes decide those.  When it does return
+     * a frame, the fields are exactly the groups that JAVA_RE would have matched.
+     */
+    static JavaStackFrameSnapshot parseJavaFrame(String text) {
+        final int N = text.length();
+        if (!text.startsWith("  at ") || text.charAt(N - 1) != ')') {
+            return null;
+        }
+
+        // Find the '(', the last ':', and the last two '.' before the '('.
+        int paren = -1;
+        int colon = -1;
+        int lastDot = -1;
+        int prevDot = -1;
+        for (int i=5; i<N-1; i++) {
+            final char c = text.charAt(i);
+            if (c == '(') {
+                if (paren >= 0) {
+                    return null;
+                }
+                paren = i;
+            } else if (c == ':') {
+                colon = i;
+            } else if (c == '.') {
+                if (paren < 0) {
+                    prevDot = lastDot;
+                    lastDot = i;
+                }
+            } else if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                    || c == '\u2029') {
+                // The regex's '.' doesn't match these.
+                return null;
+            }
+        }
+
+        // The method and the class can't be empty, and neither can the package, if
+        // there is one.
+        if (paren < 0 || lastDot < 0 || lastDot + 1 >= paren
+                || (prevDot >= 0 ? (prevDot <= 5 || prevDot + 1 >= lastDot) : lastDot <= 5)) {
+            return null;
+        }
+
+        // The line number is after the last ':', and is only digits and '-'.
+        if (colon < paren || colon + 1 >= N - 1) {
+            return null;
+        }
+        for (int i=colon+1; i<N-1; i++) {
+            final char c = text.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == '-')) {
+                return null;
+            }
+        }
+
+        final JavaStackFrameSnapshot frame = new JavaStackFrameSnapshot();
+        frame.text = text;
+        if (prevDot >= 0) {
+            frame.packageName = text.substring(5, prevDot);
+            frame.className = text.substring(prevDot + 1, lastDot);
+        } else {
+            frame.className = text.substring(5, lastDot);
+        }
+        frame.methodName = text.substring(lastDot + 1, paren);
+        frame.sourceFile = text.substring(paren + 1, colon);
+        frame.sourceLine = Integer.parseInt(text.substring(colon + 1, N - 1));
+        frame.language = JavaStackFrameSnapshot.LANGUAGE_JAVA;
+        return frame;
+    }
+
+    /**
+     * Parse a "  native: #00 pc 0000000000012345  /system/lib64/libc.so (symbol+8)"
+     * line without running NATIVE_RE or NATIVE_NO_LOC_RE.  Returns null for the odd
+     * ones, like a '(' right after the pc, and the regexes decide those.  When it does
+     * return a frame, the fields are exactly the groups that the regexes would have
+     * matched, including the library with the rest of the line when there's no
+     * "(symbol+offset)".
+     */
+    static NativeStackFrameSnapshot parseNativeFrame(String text) {
+        final int N = text.length();
+        if (!text.startsWith("  ")) {
+            return null;
+        }
+        int i = text.startsWith("native: ", 2) ? 10 : 2;
+
+        // "#00 "
+        if (i >= N || text.charAt(i) != '#') {
+            return null;
+        }
+        i++;
+        final int frameNumber = i;
+        while (i < N && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        if (i == frameNumber || i >= N || text.charAt(i) != ' ') {
+            return null;
+        }
+        i++;
+
+        // "pc "
+        final int pc = i;
+        while (i < N && !isSpace(text.charAt(i))) {
+            i++;
+        }
+        if (i == pc || i >= N || text.charAt(i) != ' ') {
+            return null;
+        }
+        i++;
+
+        // The address, and the space after it.
+        final int address = i;
+        while (i < N && isHexDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i == address || i >= N || !isSpace(text.charAt(i))) {
+            return null;
+        }
+        while (i < N && isSpace(text.charAt(i))) {
+            i++;
+        }
+        final int rest = i;
+        if (rest < N && text.charAt(rest) == '(') {
+            return null;
+        }
+        for (int j=rest; j<N; j++) {
+            final char c = text.charAt(j);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                // The regex's '.' doesn't match these.
+                return null;
+            }
+        }
+
+        final NativeStackFrameSnapshot frame = new NativeStackFrameSnapshot();
+        frame.text = text;
+
+        // "(symbol+8)" at the end, with whitespace before it.  The symbol ends at the
+        // '+' before the last digits, and starts after the last '(' before that.
+        int plus = -1;
+        if (N - 1 > rest && text.charAt(N - 1) == ')') {
+            int j = N - 2;
+            while (j >= rest && text.charAt(j) >= '0' && text.charAt(j) <= '9') {
+                j--;
+            }
+            if (j < N - 2 && j >= rest && text.charAt(j) == '+') {
+                plus = j;
+            }
+        }
+        int paren = -1;
+        for (int j=plus-1; j>rest; j--) {
+            if (text.charAt(j) == '(' && isSpace(text.charAt(j - 1))) {
+                paren = j;
+                break;
+            }
+        }
+
+        if (paren > 0) {
+            frame.library = text.substring(rest, paren - 1);
+            frame.symbol = text.substring(paren + 1, plus);
+            frame.offset = Integer.parseInt(text.substring(plus + 1, N - 1));
+        } else {
+            frame.library = text.substring(rest);
+            frame.symbol = "";
+            frame.offset = -1;
+        }
+        return frame;
+    }
+
+    /**
+     * Return whether the regex's \s would match c.
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
@@ -19,6 +19,7 @@ package com.android.bugreport.stacks;
 import com.android.bugreport.cpuinfo.CpuUsageSnapshot;
 import com.android.bugreport.stacks.ProcessSnapshot;
 import com.android.bugreport.stacks.ThreadSnapshot;
+import com.android.bugreport.util.IntMap;
 
 import java.util.ArrayList;
 
@@ -29,14 +30,37 @@ public class VmTraces {
     public ArrayList<ProcessSnapshot> processes = new ArrayList<ProcessSnapshot>();
     public ArrayList<ProcessSnapshot> interestingProcesses = new ArrayList<ProcessSnapshot>();
     public ArrayList<ProcessSnapshot> deadlockedProcesses = new ArrayList<ProcessSnapshot>();
+    public ArrayList<ArrayList<ProcessSnapshot>> deadlockCycles
+            = new ArrayList<ArrayList<ProcessSnapshot>>();
 
+    /**
+     * The stacks of all the threads, so identical frames and stacks are shared.
+     */
+    public StackTrie stacks = new StackTrie();
+
+    /**
+     * Index of processes by pid, for getProcess.  It is rebuilt when processes is
+     * replaced or changes size.
+     */
+    private ArrayList<ProcessSnapshot> mIndexedProcesses;
+    private int mIndexedCount;
+    private IntMap<ProcessSnapshot> mProcessesByPid;
+
+    /**
+     * Returns the first process with the given pid, or null.
+     */
     public ProcessSnapshot getProcess(int pid) {
-        for (ProcessSnapshot process: this.processes) {
-            if (process.pid == pid) {
-                return process;
+        final ArrayList<ProcessSnapshot> processes = this.processes;
+        final int N = processes.size();
+        if (mIndexedProcesses != processes || mIndexedCount != N) {
+            mProcessesByPid = new IntMap<ProcessSnapshot>(N);
+            for (int i=0; i<N; i++) {
+                mProcessesByPid.putIfAbsent(processes.get(i).pid, processes.get(i));
             }
+            mIndexedProcesses = processes;
+            mIndexedCount = N;
         }
-        return null;
+        return mProcessesByPid.get(pid);
     }
 
     public ThreadSnapshot getThread(int pid, String name) {
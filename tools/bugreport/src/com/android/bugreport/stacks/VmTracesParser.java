@@ -39,6 +39,8 @@ import java.util.regex.Matcher;
 public class VmTracesParser {
 
     private final Matcher mBeginProcessRe = ProcessSnapshotParser.BEGIN_PROCESS_RE.matcher("");
+
+    private int mDroppedLines;
     
     /**
      * Construct a new parser.
@@ -51,6 +53,7 @@ public class VmTracesParser {
      */
     public VmTraces parse(Lines<? extends Line> lines) {
         final VmTraces result = new VmTraces();
+        mDroppedLines = 0;
 
         // Drop any preamble
         while (lines.hasNext()) {
@@ -60,6 +63,7 @@ public class VmTracesParser {
                 lines.rewind();
                 break;
             }
+            mDroppedLines++;
         }
 
         while (lines.hasNext()) {
@@ -68,14 +72,16 @@ public class VmTracesParser {
 
             if (Utils.matches(mBeginProcessRe, text)) {
                 lines.rewind();
-                ProcessSnapshotParser parser = new ProcessSnapshotParser(); 
+                ProcessSnapshotParser parser = new ProcessSnapshotParser(result.stacks);
                 final ProcessSnapshot snapshot = parser.parse(lines);
+                mDroppedLines += parser.getDroppedLineCount();
                 if (snapshot != null) {
                     result.processes.add(snapshot);
                 } else {
                     // TODO: Try to backtrack and correct the parsing.
                 }
             } else {
+                mDroppedLines++;
                 if (false) {
                     System.out.println("VmTracesParser Dropping: " + text);
                 }
@@ -85,6 +91,14 @@ public class VmTracesParser {
         return result;
     }
 
+    /**
+     * Return the number of lines that the last parse() skipped: the preamble before
+     * the first process, and whatever each process's parser skipped.
+     */
+    public int getDroppedLineCount() {
+        return mDroppedLines;
+    }
+
 }
 
 
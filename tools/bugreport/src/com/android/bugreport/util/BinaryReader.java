@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Reads a file written by BinaryWriter.
+ *
+ * The file is memory-mapped, and the arrays are read with bulk gets, so reading
+ * is mostly copying.  If the file is truncated or otherwise doesn't make sense,
+ * the reads throw IOException.
+ */
+public class BinaryReader {
+    private final ByteBuffer mBuffer;
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+
+    /**
+     * Open and map the file.
+     */
+    public BinaryReader(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    public int readInt() throws IOException {
+        try {
+            return mBuffer.getInt();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Unexpected end of file");
+        }
+    }
+
+    public long readLong() throws IOException {
+        try {
+            return mBuffer.getLong();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Unexpected end of file");
+        }
+    }
+
+    public boolean readBoolean() throws IOException {
+        try {
+            return mBuffer.get() != 0;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Unexpected end of file");
+        }
+    }
+
+    /**
+     * Read a string written with BinaryWriter.writeString.
+     */
+    public String readString() throws IOException {
+        final int index = readInt();
+        if (index == -1) {
+            return null;
+        } else if (index == -2) {
+            final String result = readText();
+            mStrings.add(result);
+            return result;
+        } else if (index >= 0 && index < mStrings.size()) {
+            return mStrings.get(index);
+        } else {
+            throw new IOException("Bad string index " + index);
+        }
+    }
+
+    /**
+     * Read a string written with BinaryWriter.writeText.
+     */
+    public String readText() throws IOException {
+        final int length = readLength(1);
+        final byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read count ints written with BinaryWriter.writeInts.
+     */
+    public int[] readInts(int count) throws IOException {
+        checkRemaining(count, 4);
+        final int[] result = new int[count];
+        mBuffer.asIntBuffer().get(result);
+        mBuffer.position(mBuffer.position() + (count * 4));
+        return result;
+    }
+
+    /**
+     * Read count longs written with BinaryWriter.writeLongs.
+     */
+    public long[] readLongs(int count) throws IOException {
+        checkRemaining(count, 8);
+        final long[] result = new long[count];
+        mBuffer.asLongBuffer().get(result);
+        mBuffer.position(mBuffer.position() + (count * 8));
+        return result;
+    }
+
+    /**
+     * Read count chars written with BinaryWriter.writeChars.
+     */
+    public char[] readChars(int count) throws IOException {
+        checkRemaining(count, 2);
+        final char[] result = new char[count];
+        mBuffer.asCharBuffer().get(result);
+        mBuffer.position(mBuffer.position() + (count * 2));
+        return result;
+    }
+
+    /**
+     * Read a BitSet written with BinaryWriter.writeBits.
+     */
+    public BitSet readBits() throws IOException {
+        return BitSet.valueOf(readLongs(readLength(8)));
+    }
+
+    /**
+     * Read a count or length, and check that there are at least that many items of
+     * the given size left in the file.
+     */
+    public int readLength(int size) throws IOException {
+        final int length = readInt();
+        if (length < 0) {
+            throw new IOException("Bad length " + length);
+        }
+        checkRemaining(length, size);
+        return length;
+    }
+
+    /**
+     * Return whether the whole file has been read.
+     */
+    public boolean isAtEnd() {
+        return !mBuffer.hasRemaining();
+    }
+
+    private void checkRemaining(int count, int size) throws IOException {
+        if (count < 0 || ((long)count) * size > mBuffer.remaining()) {
+            throw new IOException("Unexpected end of file");
+        }
+    }
+}
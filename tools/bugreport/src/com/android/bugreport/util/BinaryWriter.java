@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Writes a binary file to be read back by BinaryReader.
+ *
+ * Everything is big endian.  Strings are written once each; after that they're
+ * written as their index in the table of strings seen so far.
+ */
+public class BinaryWriter {
+    private final DataOutputStream mOut;
+    private final HashMap<String,Integer> mStrings = new HashMap<String,Integer>();
+
+    /**
+     * Open the file for writing.
+     */
+    public BinaryWriter(File file) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    64 * 1024));
+    }
+
+    public void writeInt(int value) throws IOException {
+        mOut.writeInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        mOut.writeLong(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        mOut.writeBoolean(value);
+    }
+
+    /**
+     * Write a string, which may be null.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        final Integer index = mStrings.get(value);
+        if (index != null) {
+            mOut.writeInt(index);
+            return;
+        }
+        mStrings.put(value, mStrings.size());
+        mOut.writeInt(-2);
+        writeText(value);
+    }
+
+    /**
+     * Write a string without putting it in the table.  For big ones that won't
+     * be repeated.
+     */
+    public void writeText(CharSequence value) throws IOException {
+        final byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    /**
+     * Write the first count values of the array.
+     */
+    public void writeInts(int[] values, int count) throws IOException {
+        for (int i=0; i<count; i++) {
+            mOut.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Write the first count values of the array.
+     */
+    public void writeLongs(long[] values, int count) throws IOException {
+        for (int i=0; i<count; i++) {
+            mOut.writeLong(values[i]);
+        }
+    }
+
+    /**
+     * Write the first count values of the array.
+     */
+    public void writeChars(char[] values, int count) throws IOException {
+        for (int i=0; i<count; i++) {
+            mOut.writeChar(values[i]);
+        }
+    }
+
+    /**
+     * Write the bits, up to but not including count.
+     */
+    public void writeBits(BitSet bits, int count) throws IOException {
+        final long[] words = bits.get(0, count).toLongArray();
+        mOut.writeInt(words.length);
+        writeLongs(words, words.length);
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
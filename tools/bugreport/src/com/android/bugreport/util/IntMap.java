@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.util;
+
+/**
+ * A hash map from int to a non-null value, without boxing the keys.
+ *
+ * Open addressing with linear probing.  There's no remove, because the indexes
+ * that use it are thrown away and rebuilt instead.
+ */
+public class IntMap<T> {
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    /**
+     * Construct an IntMap with room for about capacity entries before it grows.
+     */
+    public IntMap(int capacity) {
+        int tableSize = 8;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        mKeys = new int[tableSize];
+        mValues = new Object[tableSize];
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the value for key, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int key) {
+        final int mask = mKeys.length - 1;
+        for (int i=hash(key) & mask; mValues[i] != null; i=(i+1) & mask) {
+            if (mKeys[i] == key) {
+                return (T)mValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the value for key, unless it already has one.  Returns whether it was set.
+     */
+    public boolean putIfAbsent(int key, T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        for (; mValues[i] != null; i=(i+1) & mask) {
+            if (mKeys[i] == key) {
+                return false;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+        if (mSize * 2 > mKeys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Double the size of the table.
+     */
+    private void grow() {
+        final int[] keys = mKeys;
+        final Object[] values = mValues;
+        mKeys = new int[keys.length * 2];
+        mValues = new Object[values.length * 2];
+        final int mask = mKeys.length - 1;
+        for (int j=0; j<keys.length; j++) {
+            if (values[j] != null) {
+                int i = hash(keys[j]) & mask;
+                while (mValues[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = keys[j];
+                mValues[i] = values[j];
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of the key, since pids and tids are often close together.
+     */
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
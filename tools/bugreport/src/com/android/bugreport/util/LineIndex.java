@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A memory-mapped text file, and an index of where each of its lines starts.
+ *
+ * Nothing is decoded when the index is built. The text of a line is only turned
+ * into a String when somebody asks for it, so lines that are never looked at cost
+ * one long in the index and nothing on the heap.
+ *
+ * Line endings are the same as BufferedReader.readLine: "\n", "\r" or "\r\n".
+ * The contents are decoded with the default charset, the same as FileReader.
+ *
+ * Reading is done with absolute gets only, so one index can be shared between
+ * threads.
+ */
+public class LineIndex {
+    /**
+     * The files are mapped in chunks of this size, because a single
+     * MappedByteBuffer can't be larger than 2GB.
+     */
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final MappedByteBuffer[] mChunks;
+    private final Charset mCharset;
+
+    /**
+     * The offset of the beginning of each line. There is one extra entry at the
+     * end, which is the offset just past the last line terminator, so line i always
+     * covers [mStarts[i], mStarts[i+1]) including its terminator.
+     */
+    private final long[] mStarts;
+    private final int mCount;
+
+    /**
+     * Map the file and build the line index.
+     */
+    public LineIndex(File file) throws IOException {
+        mCharset = Charset.defaultCharset();
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            final int chunkCount = (int)((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            mChunks = new MappedByteBuffer[chunkCount];
+            for (int i=0; i<chunkCount; i++) {
+                final long offset = ((long)i) << CHUNK_SHIFT;
+                mChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(CHUNK_SIZE, length - offset));
+            }
+        } finally {
+            // The mappings stay valid after the channel is closed.
+            raf.close();
+        }
+
+        // Find the line starts.
+        long[] starts = new long[1024];
+        int count = 0;
+        long lineStart = 0;
+        boolean afterCr = false;
+        long offset = 0;
+        for (MappedByteBuffer chunk: mChunks) {
+            final int N = chunk.limit();
+            for (int i=0; i<N; i++, offset++) {
+                final byte b = chunk.get(i);
+                if (b == '\n') {
+                    if (afterCr) {
+                        // Second half of a "\r\n". The line was already ended by the '\r'.
+                        lineStart = offset + 1;
+                        afterCr = false;
+                        continue;
+                    }
+                } else if (b != '\r') {
+                    afterCr = false;
+                    continue;
+                }
+                if (count + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[count++] = lineStart;
+                lineStart = offset + 1;
+                afterCr = b == '\r';
+            }
+        }
+        if (lineStart < offset) {
+            // Last line without a terminator.
+            if (count + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length + 1);
+            }
+            starts[count++] = lineStart;
+            lineStart = offset;
+        }
+        starts[count] = lineStart;
+
+        mStarts = starts;
+        mCount = count;
+    }
+
+    /**
+     * Return the number of lines in the file.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Return the line at index (starting at 0). Its lineno will be index+1.
+     */
+    public Line getLine(int index) {
+        return new Line(index + 1, getText(index));
+    }
+
+    /**
+     * Decode and return the text of the line at index, without the line terminator.
+     */
+    public String getText(int index) {
+        final long start = mStarts[index];
+        final int length = (int)(getEnd(index) - start);
+        final byte[] bytes = new byte[length];
+        for (int i=0; i<length; i++) {
+            bytes[i] = getByte(start + i);
+        }
+        return new String(bytes, mCharset);
+    }
+
+    /**
+     * Return whether the line at index starts with the given prefix, without decoding
+     * the line. The prefix must be plain ASCII.
+     */
+    public boolean startsWith(int index, String prefix) {
+        final long start = mStarts[index];
+        final int length = prefix.length();
+        if (getEnd(index) - start < length) {
+            return false;
+        }
+        for (int i=0; i<length; i++) {
+            if (getByte(start + i) != (byte)prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the offset just past the last character of the line at index.
+     */
+    private long getEnd(int index) {
+        final long start = mStarts[index];
+        long end = mStarts[index + 1];
+        if (end > start && getByte(end - 1) == '\n') {
+            end--;
+            if (end > start && getByte(end - 1) == '\r') {
+                end--;
+            }
+        } else if (end > start && getByte(end - 1) == '\r') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Return the byte at the offset in the file.
+     */
+    private byte getByte(long offset) {
+        return mChunks[(int)(offset >>> CHUNK_SHIFT)].get((int)(offset & CHUNK_MASK));
+    }
+}
@@ -21,15 +21,20 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 /**
  * A stream of parsed lines.  Can be rewound, and sub-regions cloned for 
  * recursive descent parsing.
+ *
+ * The lines either come from a list, or from a LineIndex over a memory-mapped
+ * file, in which case each line is only decoded when it is read.
  */
 public class Lines<T extends Line> {
-    private final ArrayList<? extends Line> mList;
+    private final List<? extends Line> mList;
+    private final LineIndex mIndex;
     private final int mMin;
     private final int mMax;
 
@@ -68,23 +73,45 @@ public class Lines<T extends Line> {
 
         return new Lines<Line>(list);
     }
+
+    /**
+     * Memory-map the file and index its lines. The text of each line is only
+     * decoded when it is read.
+     *
+     * @see LineIndex
+     */
+    public static Lines<Line> mapLines(File file) throws IOException {
+        return new Lines<Line>(new LineIndex(file));
+    }
     
     /**
      * Construct with a list of lines.
      */
-    public Lines(ArrayList<? extends Line> list) {
+    public Lines(List<? extends Line> list) {
         this.mList = list;
+        mIndex = null;
         mMin = 0;
         mMax = mList.size();
     }
 
+    /**
+     * Construct with the lines of a mapped file.
+     */
+    public Lines(LineIndex index) {
+        mList = null;
+        mIndex = index;
+        mMin = 0;
+        mMax = index.size();
+    }
+
     /**
      * Construct with a list of lines, and a range inside that list.  The
      * read position will be set to min, so the new Lines can be read from
      * the beginning.
      */
-    private Lines(ArrayList<? extends Line> list, int min, int max) {
+    private Lines(List<? extends Line> list, LineIndex index, int min, int max) {
         mList = list;
+        mIndex = index;
         mMin = min;
         mMax = max;
         this.pos = min;
@@ -103,12 +130,38 @@ public class Lines<T extends Line> {
      */
     public Line next() {
         if (pos >= mMin && pos < mMax) {
+            if (mIndex != null) {
+                return mIndex.getLine(pos++);
+            }
             return this.mList.get(pos++);
         } else {
             return null;
         }
     }
 
+    /**
+     * Return whether there is a next line and it starts with prefix, without
+     * moving the read position.  For mapped files the line is not decoded, so
+     * this is a cheap way to skip over lines.  The prefix must be plain ASCII.
+     */
+    public boolean peekStartsWith(String prefix) {
+        if (pos >= mMin && pos < mMax) {
+            if (mIndex != null) {
+                return mIndex.startsWith(pos, prefix);
+            }
+            return this.mList.get(pos).text.startsWith(prefix);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Move the read position forward by one line without reading it.
+     */
+    public void skip() {
+        pos++;
+    }
+
     /**
      * Move the read position back by one line.
      */
@@ -136,7 +189,7 @@ public class Lines<T extends Line> {
      * if you modify the lines themselves.
      */
     public Lines<T> copy(int from, int to) {
-        return new Lines<T>(mList, Math.max(mMin, from), Math.min(mMax, to));
+        return new Lines<T>(mList, mIndex, Math.max(mMin, from), Math.min(mMax, to));
     }
 }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bugreport.util;
+
+import java.util.AbstractList;
+
+/**
+ * A list of the most recent items added, up to a fixed capacity.  Adding to a
+ * full one drops the oldest item.  Index 0 is the oldest one still there.
+ *
+ * Each item also has a sequence number, which is how many items were added before
+ * it, so items can be referred to after older ones have been dropped.
+ */
+public class RingBuffer<T> extends AbstractList<T> {
+    private final Object[] mItems;
+    private long mAdded;
+
+    /**
+     * Construct an empty RingBuffer.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        mItems = new Object[capacity];
+    }
+
+    /**
+     * Add an item, dropping the oldest one if it's full.
+     */
+    @Override
+    public boolean add(T item) {
+        mItems[(int)(mAdded % mItems.length)] = item;
+        mAdded++;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+        return (T)mItems[(int)((getFirstSequence() + index) % mItems.length)];
+    }
+
+    @Override
+    public int size() {
+        return (int)Math.min(mAdded, mItems.length);
+    }
+
+    /**
+     * Return the sequence number of the oldest item that's still there.
+     */
+    public long getFirstSequence() {
+        return mAdded - size();
+    }
+
+    /**
+     * Return the sequence number that the next item added will get.
+     */
+    public long getNextSequence() {
+        return mAdded;
+    }
+
+    /**
+     * Return the item with the given sequence number, or null if it has been dropped
+     * or hasn't been added yet.
+     */
+    public T getBySequence(long sequence) {
+        if (sequence < getFirstSequence() || sequence >= mAdded) {
+            return null;
+        }
+        return get((int)(sequence - getFirstSequence()));
+    }
+}
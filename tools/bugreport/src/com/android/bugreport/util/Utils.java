@@ -105,4 +105,75 @@ public class Utils {
 
         return result;
     }
+
+    /**
+     * Returns the current year in UTC, which is what parseCalendar uses when the
+     * year is missing.
+     */
+    public static int currentYear() {
+        return new GregorianCalendar(UTC).get(Calendar.YEAR);
+    }
+
+    /**
+     * Gets the date time groups from the matcher and returns the time in milliseconds
+     * since the epoch.  The year is optional, and defaultYear is used if it is missing.
+     * Gives the same result as parseCalendar(matcher, startGroup, true).getTimeInMillis(),
+     * without making a Calendar.
+     *
+     * @see #DATE_TIME_MS_PATTERN
+     * @see #makeTime
+     */
+    public static long parseTime(Matcher matcher, int startGroup, int defaultYear) {
+        return makeTime(getInt(matcher, startGroup + 0, defaultYear),
+                Integer.parseInt(matcher.group(startGroup + 1)),
+                Integer.parseInt(matcher.group(startGroup + 2)),
+                Integer.parseInt(matcher.group(startGroup + 3)),
+                Integer.parseInt(matcher.group(startGroup + 4)),
+                Integer.parseInt(matcher.group(startGroup + 5)),
+                Integer.parseInt(matcher.group(startGroup + 6)));
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch of the given UTC date and time.
+     *
+     * The fields are interpreted the same way parseCalendar does, so this matches
+     * parseCalendar(...).getTimeInMillis(). In particular month is used as the value of
+     * Calendar.MONTH, and fields that are out of range roll over like a lenient Calendar.
+     */
+    public static long makeTime(int year, int month, int day, int hour, int minute,
+            int second, int millisecond) {
+        if (year < 1600) {
+            // Let Calendar deal with the switch from the Julian calendar.
+            final GregorianCalendar cal = new GregorianCalendar(UTC);
+            cal.set(Calendar.YEAR, year);
+            cal.set(Calendar.MONTH, month);
+            cal.set(Calendar.DAY_OF_MONTH, day);
+            cal.set(Calendar.HOUR_OF_DAY, hour);
+            cal.set(Calendar.MINUTE, minute);
+            cal.set(Calendar.SECOND, second);
+            cal.set(Calendar.MILLISECOND, millisecond);
+            return cal.getTimeInMillis();
+        }
+
+        final long months = (year * 12L) + month;
+        final long days = daysFromCivil(Math.floorDiv(months, 12),
+                Math.floorMod(months, 12) + 1) + day - 1;
+        return (days * 86400000L) + (hour * 3600000L) + (minute * 60000L)
+                + (second * 1000L) + millisecond;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the first of the given month
+     * (1-12) in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(long year, long month) {
+        if (month <= 2) {
+            year--;
+        }
+        final long era = Math.floorDiv(year, 400);
+        final long yearOfEra = year - (era * 400);
+        final long dayOfYear = ((153 * (month + (month > 2 ? -3 : 9))) + 2) / 5;
+        final long dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+        return (era * 146097) + dayOfEra - 719468;
+    }
 }